@@ -1,6 +1,7 @@
 package malictus.robusta.demo;
 
 import java.io.*;
+import java.nio.file.Files;
 import malictus.robusta.file.*;
 
 /**
@@ -180,7 +181,78 @@ public class SmartFileDemo {
 			}
 			System.out.println("Passed!");
 			yRaf.close();
-			
+
+			//make a larger file, and a changed version of it, for the copy, sync and storage tests
+			System.out.println("Creating larger files for copy, sync and storage tests");
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j < 20000; j++) {
+				text.append("Line " + j + " of the sample text.\n");
+			}
+			SmartFile big = new SmartFile(File.createTempFile("robusta", ".tmp"));
+			big.writeStringToFile(text.toString(), true);
+			text.insert(200000, "A line that wasn't there before.\n");
+			text.replace(400000, 400004, "LINE");
+			SmartFile big2 = new SmartFile(File.createTempFile("robusta", ".tmp"));
+			big2.writeStringToFile(text.toString(), true);
+			SmartFile work = new SmartFile(File.createTempFile("robusta", ".tmp"));
+
+			//pipelined and resumable copies
+			System.out.println("Testing pipelined and resumable copies");
+			SmartFile.copyFilePipelined(big, work, true, null);
+			checkSame(big, work, "Pipelined copy");
+			SmartFile.copyFileResumable(big2, work, true, null);
+			checkSame(big2, work, "Resumable copy");
+
+			//compress, then decompress and read part of the compressed file directly
+			System.out.println("Testing compressed copies");
+			SmartFile gz = new SmartFile(File.createTempFile("robusta", ".gz"));
+			SmartFile.copyFileCompressed(big, gz, true, null);
+			SmartFile.copyFileDecompressed(gz, work, true, null);
+			checkSame(big, work, "Compressed copy");
+			SmartBlockGzipReader reader = new SmartBlockGzipReader(gz);
+			byte[] part = new byte[100];
+			reader.read(100000, part, 0, part.length);
+			reader.close();
+			if (!new String(part, "US-ASCII").equals(text.substring(100000, 100100))) {
+				throw new IOException("Compressed file random read test failed");
+			}
+
+			//patch the old file into the new one, and sync a copy of the old file to the new one in place
+			System.out.println("Testing patches and delta sync");
+			SmartFile patch = new SmartFile(File.createTempFile("robusta", ".patch"));
+			SmartPatch.createPatch(big, big2, patch, null);
+			SmartPatch.applyPatch(big, patch, work, null);
+			checkSame(big2, work, "Patch");
+			System.out.println("Patch is " + patch.length() + " bytes, for a file of " + big2.length() + " bytes");
+			SmartFile.copyFile(big, work, true);
+			SmartDeltaSync sync = new SmartDeltaSync(big2, work);
+			sync.sync(null);
+			checkSame(big2, work, "Delta sync");
+			System.out.println("Delta sync wrote " + sync.getBytesWritten() + " bytes, and moved " + sync.getBytesMoved() + " bytes");
+
+			//store both versions in a chunk store, and get the new one back
+			System.out.println("Testing chunk store");
+			File storeDir = Files.createTempDirectory("robusta").toFile();
+			SmartChunkStore store = new SmartChunkStore(storeDir);
+			store.put("big", big, null);
+			SmartChunkStore.Manifest manifest = store.put("big2", big2, null);
+			System.out.println("Second version wrote " + manifest.getBytesWritten() + " bytes, and found "
+					+ manifest.getBytesDeduplicated() + " bytes in the store already");
+			store.get("big2", work, true, null);
+			checkSame(big2, work, "Chunk store");
+
+			//clean up the files from the copy, sync and storage tests
+			deleteTree(storeDir);
+			patch.delete();
+			gz.delete();
+			new File(gz.getPath() + ".index").delete();
+			big.delete();
+			big2.delete();
+			work.delete();
+			if (storeDir.exists() || patch.exists() || gz.exists() || big.exists() || big2.exists() || work.exists()) {
+				throw new IOException("Temp files from the copy, sync and storage tests cannot be deleted.");
+			}
+
 
 			//delete temp files and confirm that deletion happens (confirms that all file refs are successfully removed)
 			System.out.println("Attempting to delete files");
@@ -199,5 +271,28 @@ public class SmartFileDemo {
 		}
 	}
 
+	/**
+	 * Throw an exception if a file doesn't have the same contents as the one it was made from
+	 */
+	private static void checkSame(SmartFile expected, File actual, String test) throws IOException {
+		if (!expected.getMD5Checksum().equals(new SmartFile(actual).getMD5Checksum())) {
+			throw new IOException(test + " test failed");
+		}
+		System.out.println(test + " checksums match! Success");
+	}
+
+	/**
+	 * Delete a directory and everything in it
+	 */
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
 }
 
@@ -0,0 +1,582 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * Compresses and decompresses files in the gzip format, a block at a time, with the blocks deflated or inflated in parallel
+ * on all cores. This is used by SmartFile.copyFileCompressed(), SmartFile.copyFileDecompressed() and SmartBlockGzipReader.
+ *
+ * Each block is written as a complete gzip member of its own. A gzip file may hold any number of members one after
+ * another, and decompresses to their contents joined together, so the output can be read by gunzip or GZIPInputStream.
+ * Since no member refers back to the data of another, the members can be compressed independently, and any one can be
+ * decompressed without the others. An index is kept next to the compressed file (with ".index" added to its name),
+ * giving the position of each member, so that a block can be found without reading what comes before it.
+ *
+ * The index starts with a header: "RBGI", a version, the block size, the number of blocks, the uncompressed length, and
+ * the compressed length, which is used to tell that the index belongs to the file. The position of each member follows.
+ */
+class BlockGzip {
+
+	//"RBGI"
+	private static final int MAGIC = 0x52424749;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int GZIP_MAGIC = 0x8B1F;
+	//the fixed part of a gzip member header, and the trailer of CRC-32 and length
+	private static final int MEMBER_HEADER_SIZE = 10;
+	private static final int MEMBER_TRAILER_SIZE = 8;
+
+	//shared by all compression and decompression
+	private static ExecutorService gzipPool = null;
+
+	private BlockGzip() {
+	}
+
+	/**
+	 * Return the index file for a compressed file.
+	 */
+	static File indexFor(File gzipFile) {
+		return new File(gzipFile.getPath() + ".index");
+	}
+
+	/**
+	 * Compress a file into a multi-member gzip file, and write its index.
+	 *
+	 * @param source the file to compress
+	 * @param dest the compressed file
+	 * @param overwrite whether to overwrite dest and its index if either exists already
+	 * @param blockSize the number of bytes of the source in each member
+	 * @param level the compression level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION
+	 * @param listener a SmartProgressListener to track progress, counted in bytes of the source; may be null
+	 * @return true if the file was compressed, or false if the task was canceled
+	 * @throws IOException if the files can't be read or written
+	 */
+	static boolean compress(File source, File dest, boolean overwrite, final int blockSize, final int level, SmartProgressListener listener)
+			throws IOException {
+		if (blockSize <= 0) {
+			throw new IOException("Incorrect block size");
+		}
+		if ((level != Deflater.DEFAULT_COMPRESSION) && ((level < Deflater.BEST_SPEED) || (level > Deflater.BEST_COMPRESSION))) {
+			throw new IOException("Incorrect compression level");
+		}
+		if (dest.exists() && !overwrite) {
+			throw new IOException("File already exists");
+		}
+		if (indexFor(dest).exists() && !overwrite) {
+			throw new IOException("Index file already exists");
+		}
+		File dir = dest.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("robusta", ".gz", dir);
+		File tempIndex = null;
+		final SmartBufferPool pool = SmartBufferPool.getDefault();
+		FileInputStream fin = null;
+		FileOutputStream fos = null;
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		boolean done = false;
+		try {
+			fin = new FileInputStream(source);
+			fos = new FileOutputStream(temp);
+			FileChannel in = fin.getChannel();
+			FileChannel out = fos.getChannel();
+			long length = in.size();
+			if (listener != null) {
+				listener.progressStarted(length);
+			}
+			List<Long> offsets = new ArrayList<Long>();
+			long written = 0;
+			long pos = 0;
+			while (pos < length) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return false;
+					}
+					listener.progressUpdated(pos, length);
+				}
+				final ByteBuffer block = pool.acquireHeap(blockSize);
+				final int len = (int)Math.min(blockSize, length - pos);
+				try {
+					block.clear().limit(len);
+					while (block.hasRemaining()) {
+						if (in.read(block, pos + block.position()) < 0) {
+							throw new IOException("Source file changed while being compressed");
+						}
+					}
+					SmartIOThrottle.charge(len);
+				} catch (IOException err) {
+					pool.release(block);
+					throw err;
+				}
+				pending.add(getGzipPool().submit(new Callable<byte[]>() {
+					public byte[] call() {
+						try {
+							return deflateMember(block.array(), len, level);
+						} finally {
+							pool.release(block);
+						}
+					}
+				}));
+				pos = pos + len;
+				//keep every core busy, without holding the whole file in memory
+				if (pending.size() > threadCount() * 2) {
+					offsets.add(written);
+					written = written + writeFully(out, waitFor(pending.poll()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				offsets.add(written);
+				written = written + writeFully(out, waitFor(pending.poll()));
+			}
+			if (length == 0) {
+				//an empty file is still a valid gzip file
+				offsets.add(written);
+				written = written + writeFully(out, deflateMember(new byte[0], 0, level));
+			}
+			if (in.size() != length) {
+				throw new IOException("Source file changed while being compressed");
+			}
+			fos.close();
+			tempIndex = File.createTempFile("robusta", ".index", dir);
+			writeIndex(tempIndex, blockSize, length, written, offsets);
+			SmartFile.moveOver(temp, dest);
+			SmartFile.moveOver(tempIndex, indexFor(dest));
+			done = true;
+			if (listener != null) {
+				listener.progressUpdated(length, length);
+			}
+			return true;
+		} finally {
+			//blocks still being compressed give their buffers back to the pool when they finish
+			for (Future<byte[]> future : pending) {
+				waitQuietly(future);
+			}
+			if (fin != null) {
+				fin.close();
+			}
+			if (fos != null) {
+				fos.close();
+			}
+			if (!done) {
+				temp.delete();
+				if (tempIndex != null) {
+					tempIndex.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decompress a gzip file. If it has an index that matches it, the members are inflated in parallel; otherwise, it is
+	 * decompressed from start to end, which works for any gzip file.
+	 *
+	 * @param source the compressed file
+	 * @param dest the file to decompress to
+	 * @param overwrite whether to overwrite dest if it exists already
+	 * @param listener a SmartProgressListener to track progress, counted in bytes of the compressed file; may be null
+	 * @return true if the file was decompressed, or false if the task was canceled
+	 * @throws IOException if the files can't be read or written, or the compressed file is corrupt
+	 */
+	static boolean decompress(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		if (dest.exists() && !overwrite) {
+			throw new IOException("File already exists");
+		}
+		Index index = readIndex(source);
+		File temp = File.createTempFile("robusta", ".tmp", dest.getAbsoluteFile().getParentFile());
+		boolean done = false;
+		try {
+			boolean finished;
+			if (index != null) {
+				finished = decompressParallel(source, temp, index, listener);
+			} else {
+				finished = decompressSerial(source, temp, listener);
+			}
+			if (!finished) {
+				return false;
+			}
+			SmartFile.moveOver(temp, dest);
+			done = true;
+			return true;
+		} finally {
+			if (!done) {
+				temp.delete();
+			}
+		}
+	}
+
+	private static boolean decompressParallel(File source, File dest, Index index, SmartProgressListener listener) throws IOException {
+		FileInputStream fin = new FileInputStream(source);
+		FileOutputStream fos = null;
+		Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		try {
+			fos = new FileOutputStream(dest);
+			FileChannel in = fin.getChannel();
+			FileChannel out = fos.getChannel();
+			if (listener != null) {
+				listener.progressStarted(index.compressedLength);
+			}
+			for (int i = 0; i < index.offsets.length; i++) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return false;
+					}
+					listener.progressUpdated(index.offsets[i], index.compressedLength);
+				}
+				final byte[] member = readMember(in, index, i);
+				final int expected = index.blockLength(i);
+				pending.add(getGzipPool().submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return inflateMember(member, expected);
+					}
+				}));
+				if (pending.size() > threadCount() * 2) {
+					writeFully(out, waitFor(pending.poll()));
+				}
+			}
+			while (!pending.isEmpty()) {
+				writeFully(out, waitFor(pending.poll()));
+			}
+			if (listener != null) {
+				listener.progressUpdated(index.compressedLength, index.compressedLength);
+			}
+			return true;
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(false);
+			}
+			fin.close();
+			if (fos != null) {
+				fos.close();
+			}
+		}
+	}
+
+	private static boolean decompressSerial(File source, File dest, SmartProgressListener listener) throws IOException {
+		final FileInputStream fin = new FileInputStream(source);
+		FileOutputStream fos = null;
+		try {
+			final long length = fin.getChannel().size();
+			fos = new FileOutputStream(dest);
+			//count the compressed bytes as they are read, for progress and throttling
+			final long[] read = new long[1];
+			InputStream counted = new FilterInputStream(fin) {
+				public int read() throws IOException {
+					int b = super.read();
+					if (b >= 0) {
+						read[0]++;
+					}
+					return b;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					int count = super.read(b, off, len);
+					if (count > 0) {
+						read[0] = read[0] + count;
+						SmartIOThrottle.charge(count);
+					}
+					return count;
+				}
+			};
+			//GZIPInputStream carries on through every member of the file
+			GZIPInputStream gin = new GZIPInputStream(counted, 65536);
+			if (listener != null) {
+				listener.progressStarted(length);
+			}
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquireHeap(SmartDeviceProfile.bufferSizeFor(source, dest));
+			try {
+				byte[] buf = buffer.array();
+				while (true) {
+					if (listener != null) {
+						if (listener.isCanceled()) {
+							listener.progressCanceled();
+							return false;
+						}
+						listener.progressUpdated(read[0], length);
+					}
+					int len = gin.read(buf, 0, buf.length);
+					if (len < 0) {
+						break;
+					}
+					fos.write(buf, 0, len);
+				}
+			} finally {
+				pool.release(buffer);
+			}
+			return true;
+		} catch (ZipException err) {
+			throw new IOException("Compressed file is corrupt: " + err.getMessage());
+		} finally {
+			fin.close();
+			if (fos != null) {
+				fos.close();
+			}
+		}
+	}
+
+	/**
+	 * Read the compressed bytes of one member.
+	 */
+	static byte[] readMember(FileChannel in, Index index, int block) throws IOException {
+		long start = index.offsets[block];
+		long end = (block + 1 < index.offsets.length) ? index.offsets[block + 1] : index.compressedLength;
+		ByteBuffer member = ByteBuffer.allocate((int)(end - start));
+		while (member.hasRemaining()) {
+			if (in.read(member, start + member.position()) < 0) {
+				throw new IOException("Compressed file is shorter than its index");
+			}
+		}
+		SmartIOThrottle.charge(member.capacity());
+		return member.array();
+	}
+
+	/**
+	 * Compress data into a complete gzip member: header, deflated data, and trailer.
+	 */
+	static byte[] deflateMember(byte[] data, int len, int level) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 64);
+		out.write(GZIP_MAGIC & 0xFF);
+		out.write(GZIP_MAGIC >> 8);
+		out.write(Deflater.DEFLATED);
+		//no flags, no modification time, no extra flags, unknown operating system
+		out.write(new byte[] {0, 0, 0, 0, 0, 0, (byte)255}, 0, 7);
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(data, 0, len);
+			deflater.finish();
+			byte[] buf = new byte[65536];
+			while (!deflater.finished()) {
+				int count = deflater.deflate(buf);
+				out.write(buf, 0, count);
+			}
+		} finally {
+			deflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, len);
+		writeIntLE(out, (int)crc.getValue());
+		writeIntLE(out, len);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompress a single gzip member that is expected to hold a given number of bytes, checking its trailer.
+	 */
+	static byte[] inflateMember(byte[] member, int expected) throws IOException {
+		int pos = skipHeader(member);
+		byte[] data = new byte[expected];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(member, pos, member.length - pos);
+			int filled = 0;
+			while (!inflater.finished()) {
+				int count = inflater.inflate(data, filled, data.length - filled);
+				filled = filled + count;
+				if ((count == 0) && !inflater.finished()) {
+					if (inflater.needsInput() || inflater.needsDictionary() || (filled == data.length)) {
+						throw new IOException("Compressed file is corrupt");
+					}
+				}
+			}
+			if ((filled != expected) || (inflater.getRemaining() != MEMBER_TRAILER_SIZE)) {
+				throw new IOException("Compressed file is corrupt");
+			}
+		} catch (DataFormatException err) {
+			throw new IOException("Compressed file is corrupt: " + err.getMessage());
+		} finally {
+			inflater.end();
+		}
+		int trailer = member.length - MEMBER_TRAILER_SIZE;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if ((readIntLE(member, trailer) != (int)crc.getValue()) || (readIntLE(member, trailer + 4) != expected)) {
+			throw new IOException("Compressed file is corrupt");
+		}
+		return data;
+	}
+
+	/**
+	 * Return the position just after a gzip member header, including any optional fields it has.
+	 */
+	private static int skipHeader(byte[] member) throws IOException {
+		if ((member.length < MEMBER_HEADER_SIZE + MEMBER_TRAILER_SIZE) || ((member[0] & 0xFF) != (GZIP_MAGIC & 0xFF))
+				|| ((member[1] & 0xFF) != (GZIP_MAGIC >> 8)) || (member[2] != Deflater.DEFLATED)) {
+			throw new IOException("Compressed file is corrupt");
+		}
+		int flags = member[3] & 0xFF;
+		int pos = MEMBER_HEADER_SIZE;
+		try {
+			//FEXTRA
+			if ((flags & 4) != 0) {
+				pos = pos + 2 + ((member[pos] & 0xFF) | ((member[pos + 1] & 0xFF) << 8));
+			}
+			//FNAME, then FCOMMENT, each ending in a zero byte
+			for (int flag = 8; flag <= 16; flag = flag * 2) {
+				if ((flags & flag) != 0) {
+					while (member[pos] != 0) {
+						pos++;
+					}
+					pos++;
+				}
+			}
+			//FHCRC
+			if ((flags & 2) != 0) {
+				pos = pos + 2;
+			}
+		} catch (ArrayIndexOutOfBoundsException err) {
+			throw new IOException("Compressed file is corrupt");
+		}
+		if (pos > member.length - MEMBER_TRAILER_SIZE) {
+			throw new IOException("Compressed file is corrupt");
+		}
+		return pos;
+	}
+
+	/**
+	 * Read the index for a compressed file, or return null if there is none, or it doesn't match the file.
+	 */
+	static Index readIndex(File gzipFile) throws IOException {
+		File file = indexFor(gzipFile);
+		if (!file.isFile() || (file.length() < HEADER_SIZE)) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+				return null;
+			}
+			int blockSize = in.readInt();
+			int count = in.readInt();
+			long length = in.readLong();
+			long compressedLength = in.readLong();
+			if ((blockSize <= 0) || (count < 0) || (compressedLength != gzipFile.length()) || (file.length() != HEADER_SIZE + (8L * count))
+					|| (count != Math.max(1, (length + blockSize - 1) / blockSize))) {
+				return null;
+			}
+			long[] offsets = new long[count];
+			for (int i = 0; i < count; i++) {
+				offsets[i] = in.readLong();
+				if ((offsets[i] < 0) || (offsets[i] >= compressedLength) || ((i > 0) && (offsets[i] <= offsets[i - 1]))) {
+					return null;
+				}
+			}
+			return new Index(blockSize, length, compressedLength, offsets);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeIndex(File file, int blockSize, long length, long compressedLength, List<Long> offsets) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(blockSize);
+			out.writeInt(offsets.size());
+			out.writeLong(length);
+			out.writeLong(compressedLength);
+			for (long offset : offsets) {
+				out.writeLong(offset);
+			}
+			out.flush();
+		} finally {
+			fos.close();
+		}
+	}
+
+	private static int writeFully(FileChannel out, byte[] data) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		return data.length;
+	}
+
+	private static byte[] waitFor(Future<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing");
+		} catch (ExecutionException err) {
+			if (err.getCause() instanceof IOException) {
+				throw (IOException)err.getCause();
+			}
+			throw new IOException("Error while compressing: " + err.getCause());
+		}
+	}
+
+	private static void waitQuietly(Future<byte[]> future) {
+		try {
+			future.get();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException err) {
+			//already failed
+		}
+	}
+
+	private static void writeIntLE(OutputStream out, int value) {
+		try {
+			for (int i = 0; i < 4; i++) {
+				out.write(value >>> (8 * i));
+			}
+		} catch (IOException err) {
+			//can't happen with a ByteArrayOutputStream
+		}
+	}
+
+	private static int readIntLE(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | ((b[pos + 1] & 0xFF) << 8) | ((b[pos + 2] & 0xFF) << 16) | ((b[pos + 3] & 0xFF) << 24);
+	}
+
+	private static int threadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	private static synchronized ExecutorService getGzipPool() {
+		if (gzipPool == null) {
+			gzipPool = Executors.newFixedThreadPool(threadCount(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "robusta-gzip");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return gzipPool;
+	}
+
+	/**
+	 * Where each block of a compressed file starts.
+	 */
+	static class Index {
+
+		final int blockSize;
+		final long length;
+		final long compressedLength;
+		final long[] offsets;
+
+		Index(int blockSize, long length, long compressedLength, long[] offsets) {
+			this.blockSize = blockSize;
+			this.length = length;
+			this.compressedLength = compressedLength;
+			this.offsets = offsets;
+		}
+
+		/**
+		 * Return the number of uncompressed bytes in a block.
+		 */
+		int blockLength(int block) {
+			return (int)Math.min(blockSize, length - ((long)block * blockSize));
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package malictus.robusta.file;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum and hash algorithms that SmartFile can calculate.
+ */
+public enum ChecksumAlgorithm {
+
+	MD5("MD5"),
+	SHA1("SHA-1"),
+	SHA256("SHA-256"),
+	CRC32("CRC32"),
+	CRC32C("CRC32C"),
+	XXHASH64("XXH64");
+
+	private final String name;
+
+	private ChecksumAlgorithm(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Return the standard name of this algorithm (for instance, "SHA-256").
+	 *
+	 * @return the name of the algorithm
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return whether this algorithm is a cryptographic hash, as opposed to a checksum that is only suitable for detecting
+	 * accidental corruption.
+	 *
+	 * @return true for cryptographic hashes
+	 */
+	public boolean isCryptographic() {
+		return (this == MD5) || (this == SHA1) || (this == SHA256);
+	}
+
+	/**
+	 * Return whether this algorithm can be calculated on the running JVM. CRC32C needs Java 9 or later; all other
+	 * algorithms are always available.
+	 *
+	 * @return true if the algorithm is available
+	 */
+	public boolean isAvailable() {
+		if (this == CRC32C) {
+			try {
+				Class.forName("java.util.zip.CRC32C");
+			} catch (ClassNotFoundException err) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Create a new, empty digester for this algorithm.
+	 */
+	Digester createDigester() throws IOException {
+		switch (this) {
+			case CRC32:
+				return new Digester.ChecksumDigester(new CRC32());
+			case CRC32C:
+				return new Digester.ChecksumDigester(newCRC32C());
+			case XXHASH64:
+				return new XXHash64();
+			default:
+				try {
+					return new Digester.MessageDigester(MessageDigest.getInstance(name));
+				} catch (NoSuchAlgorithmException err) {
+					throw new IOException("Error generating " + name);
+				}
+		}
+	}
+
+	/**
+	 * Create a java.util.zip.CRC32C, which is looked up at run time so that the library still runs on Java 8.
+	 */
+	private static Checksum newCRC32C() throws IOException {
+		try {
+			return (Checksum)Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException err) {
+			throw new IOException("CRC32C is not available on this JVM");
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package malictus.robusta.file;
+
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * A common interface over the different kinds of checksum and hash implementations used by ChecksumAlgorithm.
+ */
+interface Digester {
+
+	/**
+	 * Feed part of a byte array to the digester.
+	 */
+	void update(byte[] b, int off, int len);
+
+	/**
+	 * Return the final digest value. The digester should not be used afterwards.
+	 */
+	byte[] digest();
+
+	/**
+	 * A Digester backed by a MessageDigest.
+	 */
+	static class MessageDigester implements Digester {
+		private final MessageDigest md;
+
+		MessageDigester(MessageDigest md) {
+			this.md = md;
+		}
+
+		public void update(byte[] b, int off, int len) {
+			md.update(b, off, len);
+		}
+
+		public byte[] digest() {
+			return md.digest();
+		}
+	}
+
+	/**
+	 * A Digester backed by a 32-bit java.util.zip.Checksum, such as CRC32. The digest is the checksum value in big-endian order.
+	 */
+	static class ChecksumDigester implements Digester {
+		private final Checksum checksum;
+
+		ChecksumDigester(Checksum checksum) {
+			this.checksum = checksum;
+		}
+
+		public void update(byte[] b, int off, int len) {
+			checksum.update(b, off, len);
+		}
+
+		public byte[] digest() {
+			long value = checksum.getValue();
+			return new byte[] {(byte)(value >>> 24), (byte)(value >>> 16), (byte)(value >>> 8), (byte)value};
+		}
+	}
+
+}
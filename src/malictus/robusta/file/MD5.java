@@ -0,0 +1,149 @@
+package malictus.robusta.file;
+
+/**
+ * A streaming implementation of MD5 (RFC 1321) whose internal state can be read out and restored, so that hashing can be
+ * stopped and later carried on from where it left off, even in another process. MessageDigest doesn't allow this. Unlike
+ * other digesters, digest() doesn't end the hash; more data may be added afterwards.
+ */
+class MD5 implements Digester {
+
+	private static final int[] K = {
+		0xD76AA478, 0xE8C7B756, 0x242070DB, 0xC1BDCEEE,
+		0xF57C0FAF, 0x4787C62A, 0xA8304613, 0xFD469501,
+		0x698098D8, 0x8B44F7AF, 0xFFFF5BB1, 0x895CD7BE,
+		0x6B901122, 0xFD987193, 0xA679438E, 0x49B40821,
+		0xF61E2562, 0xC040B340, 0x265E5A51, 0xE9B6C7AA,
+		0xD62F105D, 0x02441453, 0xD8A1E681, 0xE7D3FBC8,
+		0x21E1CDE6, 0xC33707D6, 0xF4D50D87, 0x455A14ED,
+		0xA9E3E905, 0xFCEFA3F8, 0x676F02D9, 0x8D2A4C8A,
+		0xFFFA3942, 0x8771F681, 0x6D9D6122, 0xFDE5380C,
+		0xA4BEEA44, 0x4BDECFA9, 0xF6BB4B60, 0xBEBFBC70,
+		0x289B7EC6, 0xEAA127FA, 0xD4EF3085, 0x04881D05,
+		0xD9D4D039, 0xE6DB99E5, 0x1FA27CF8, 0xC4AC5665,
+		0xF4292244, 0x432AFF97, 0xAB9423A7, 0xFC93A039,
+		0x655B59C3, 0x8F0CCC92, 0xFFEFF47D, 0x85845DD1,
+		0x6FA87E4F, 0xFE2CE6E0, 0xA3014314, 0x4E0811A1,
+		0xF7537E82, 0xBD3AF235, 0x2AD7D2BB, 0xEB86D391
+	};
+	private static final int[] SHIFTS = {7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21};
+
+	private final int[] state;
+	private long totalLength;
+	//input that doesn't yet fill a 64-byte block
+	private final byte[] pending = new byte[64];
+	private int pendingLength = 0;
+	private final int[] words = new int[16];
+
+	MD5() {
+		state = new int[] {0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476};
+		totalLength = 0;
+	}
+
+	/**
+	 * Restore a hash from the state returned by getState(), getLength() and getPending().
+	 */
+	MD5(int[] state, long totalLength, byte[] pending) {
+		if ((state.length != 4) || (pending.length != (int)(totalLength % 64))) {
+			throw new IllegalArgumentException("Incorrect MD5 state");
+		}
+		this.state = state.clone();
+		this.totalLength = totalLength;
+		System.arraycopy(pending, 0, this.pending, 0, pending.length);
+		this.pendingLength = pending.length;
+	}
+
+	int[] getState() {
+		return state.clone();
+	}
+
+	long getLength() {
+		return totalLength;
+	}
+
+	byte[] getPending() {
+		byte[] b = new byte[pendingLength];
+		System.arraycopy(pending, 0, b, 0, pendingLength);
+		return b;
+	}
+
+	public void update(byte[] b, int off, int len) {
+		totalLength = totalLength + len;
+		if (pendingLength > 0) {
+			int count = Math.min(len, 64 - pendingLength);
+			System.arraycopy(b, off, pending, pendingLength, count);
+			pendingLength = pendingLength + count;
+			off = off + count;
+			len = len - count;
+			if (pendingLength < 64) {
+				return;
+			}
+			block(state, pending, 0);
+			pendingLength = 0;
+		}
+		while (len >= 64) {
+			block(state, b, off);
+			off = off + 64;
+			len = len - 64;
+		}
+		System.arraycopy(b, off, pending, 0, len);
+		pendingLength = len;
+	}
+
+	public byte[] digest() {
+		//pad a copy, so that the hash can carry on afterwards
+		int[] s = state.clone();
+		byte[] tail = new byte[(pendingLength < 56) ? 64 : 128];
+		System.arraycopy(pending, 0, tail, 0, pendingLength);
+		tail[pendingLength] = (byte)0x80;
+		long bits = totalLength * 8;
+		for (int i = 0; i < 8; i++) {
+			tail[tail.length - 8 + i] = (byte)(bits >>> (8 * i));
+		}
+		for (int off = 0; off < tail.length; off = off + 64) {
+			block(s, tail, off);
+		}
+		byte[] out = new byte[16];
+		for (int i = 0; i < 16; i++) {
+			out[i] = (byte)(s[i / 4] >>> (8 * (i % 4)));
+		}
+		return out;
+	}
+
+	private void block(int[] s, byte[] b, int off) {
+		for (int i = 0; i < 16; i++) {
+			int p = off + (i * 4);
+			words[i] = (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) | ((b[p + 2] & 0xFF) << 16) | ((b[p + 3] & 0xFF) << 24);
+		}
+		int a = s[0];
+		int bb = s[1];
+		int c = s[2];
+		int d = s[3];
+		for (int i = 0; i < 64; i++) {
+			int f;
+			int g;
+			if (i < 16) {
+				f = (bb & c) | (~bb & d);
+				g = i;
+			} else if (i < 32) {
+				f = (d & bb) | (~d & c);
+				g = (5 * i + 1) & 15;
+			} else if (i < 48) {
+				f = bb ^ c ^ d;
+				g = (3 * i + 5) & 15;
+			} else {
+				f = c ^ (bb | ~d);
+				g = (7 * i) & 15;
+			}
+			int temp = d;
+			d = c;
+			c = bb;
+			bb = bb + Integer.rotateLeft(a + f + K[i] + words[g], SHIFTS[((i / 16) * 4) + (i % 4)]);
+			a = temp;
+		}
+		s[0] = s[0] + a;
+		s[1] = s[1] + bb;
+		s[2] = s[2] + c;
+		s[3] = s[3] + d;
+	}
+
+}
@@ -0,0 +1,226 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * Copies a file using AsynchronousFileChannel, with several direct buffers in flight at once. Each buffer is written
+ * out as soon as it has been filled, and is refilled from further along in the file as soon as its write is finished,
+ * so that reads of the next blocks overlap the writes of earlier ones. Only when every buffer is waiting to be written
+ * does the copy wait for a write. This is used by SmartFile.copyFilePipelined().
+ */
+class PipelinedCopy {
+
+	private final AsynchronousFileChannel in;
+	private final AsynchronousFileChannel out;
+	private final long size;
+	private final SmartProgressListener listener;
+	//buffers with a read in progress, and with a write in progress, oldest first
+	private final ArrayDeque<Slot> reading = new ArrayDeque<Slot>();
+	private final ArrayDeque<Slot> writing = new ArrayDeque<Slot>();
+	private long nextRead = 0;
+	private long written = 0;
+
+	private PipelinedCopy(AsynchronousFileChannel in, AsynchronousFileChannel out, long size, SmartProgressListener listener) {
+		this.in = in;
+		this.out = out;
+		this.size = size;
+		this.listener = listener;
+	}
+
+	/**
+	 * Copy the entire contents of one file to another.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file, which will be created or truncated
+	 * @param queueDepth the number of buffers in flight at once; at least 2
+	 * @param bufferSize the size of each buffer
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the read/write operations fail
+	 */
+	static boolean copy(File source, File dest, int queueDepth, int bufferSize, SmartProgressListener listener) throws IOException {
+		if (queueDepth < 2) {
+			throw new IOException("Queue depth must be at least 2");
+		}
+		if (bufferSize <= 0) {
+			throw new IOException("Incorrect buffer size");
+		}
+		AsynchronousFileChannel in = AsynchronousFileChannel.open(source.toPath(), StandardOpenOption.READ);
+		AsynchronousFileChannel out = null;
+		try {
+			out = AsynchronousFileChannel.open(dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			PipelinedCopy copy = new PipelinedCopy(in, out, in.size(), listener);
+			boolean finished = copy.run(queueDepth, bufferSize);
+			in.close();
+			out.close();
+			return finished;
+		} catch (IOException err) {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+			throw err;
+		}
+	}
+
+	private boolean run(int queueDepth, int bufferSize) throws IOException {
+		if (listener != null) {
+			listener.progressStarted(size);
+		}
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		List<Slot> slots = new ArrayList<Slot>();
+		try {
+			//don't borrow more buffers than the file needs
+			long blocks = (size + bufferSize - 1) / bufferSize;
+			for (int i = 0; (i < queueDepth) && (i < blocks); i++) {
+				Slot slot = new Slot(pool.acquireDirect(bufferSize), bufferSize);
+				slots.add(slot);
+				startRead(slot);
+			}
+			while (!reading.isEmpty()) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						drain(slots);
+						listener.progressCanceled();
+						return false;
+					}
+					listener.progressUpdated(written, size);
+				}
+				Slot slot = reading.poll();
+				finishRead(slot);
+				slot.buffer.flip();
+				SmartIOThrottle.charge(slot.buffer.limit());
+				slot.pending = out.write(slot.buffer, slot.position);
+				writing.add(slot);
+				//refill buffers whose writes have finished, but leave writes in flight while there are still reads to wait
+				//for; only wait for the oldest write once every buffer is being written
+				while ((nextRead < size) && !writing.isEmpty() && (reading.isEmpty() || writing.peek().pending.isDone())) {
+					Slot free = writing.poll();
+					finishWrite(free);
+					startRead(free);
+				}
+			}
+			while (!writing.isEmpty()) {
+				finishWrite(writing.poll());
+			}
+			if (listener != null) {
+				listener.progressUpdated(written, size);
+			}
+			return true;
+		} catch (IOException err) {
+			drain(slots);
+			throw err;
+		} finally {
+			for (Slot slot : slots) {
+				pool.release(slot.buffer);
+			}
+		}
+	}
+
+	private void startRead(Slot slot) {
+		slot.buffer.clear();
+		slot.buffer.limit((int)Math.min(slot.size, size - nextRead));
+		slot.position = nextRead;
+		nextRead = nextRead + slot.buffer.limit();
+		slot.pending = in.read(slot.buffer, slot.position);
+		reading.add(slot);
+	}
+
+	/**
+	 * Wait for a slot's read to complete, reissuing it until the buffer is full if the read comes up short.
+	 */
+	private void finishRead(Slot slot) throws IOException {
+		while (true) {
+			int count = await(slot.pending);
+			if (count < 0) {
+				throw new IOException("Source file was truncated during copy");
+			}
+			if (!slot.buffer.hasRemaining()) {
+				return;
+			}
+			slot.pending = in.read(slot.buffer, slot.position + slot.buffer.position());
+		}
+	}
+
+	/**
+	 * Wait for a slot's write to complete, reissuing it until the buffer is empty if the write comes up short.
+	 */
+	private void finishWrite(Slot slot) throws IOException {
+		while (true) {
+			await(slot.pending);
+			if (!slot.buffer.hasRemaining()) {
+				written = written + slot.buffer.limit();
+				return;
+			}
+			slot.pending = out.write(slot.buffer, slot.position + slot.buffer.position());
+		}
+	}
+
+	/**
+	 * Wait for everything in flight to finish, ignoring any errors, so that no buffer is still in use by the channels.
+	 * Every slot is waited for, including one whose operation was being waited for when the failure happened, and
+	 * interrupts don't cut this short, since the buffers go back to the shared pool afterwards; the interrupt is restored
+	 * once everything has finished.
+	 */
+	private void drain(List<Slot> slots) {
+		reading.clear();
+		writing.clear();
+		boolean interrupted = false;
+		for (Slot slot : slots) {
+			while (slot.pending != null) {
+				try {
+					slot.pending.get();
+					break;
+				} catch (InterruptedException err) {
+					interrupted = true;
+				} catch (ExecutionException err) {
+					//already failing
+					break;
+				} catch (CancellationException err) {
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static int await(Future<Integer> pending) throws IOException {
+		try {
+			return pending.get().intValue();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying");
+		} catch (ExecutionException err) {
+			if (err.getCause() instanceof IOException) {
+				throw (IOException)err.getCause();
+			}
+			throw new IOException("Error while copying: " + err.getCause());
+		}
+	}
+
+	/**
+	 * A buffer, the file position it holds data for, and the operation in progress on it.
+	 */
+	private static class Slot {
+
+		final ByteBuffer buffer;
+		final int size;
+		long position;
+		Future<Integer> pending;
+
+		Slot(ByteBuffer buffer, int size) {
+			this.buffer = buffer;
+			this.size = size;
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * Copies a file in fixed-size blocks, keeping a journal next to the destination of the blocks that are safely on disk,
+ * along with a hash of each. The journal is a hidden file named after the destination, "." + name + ".robusta-resume".
+ * If the copy is interrupted, by cancellation, an error or a crash, running it again carries on after the last block in
+ * the journal instead of starting over. This is used by SmartFile.copyFileResumable().
+ *
+ * Blocks are added to the journal in batches, and only after the destination has been forced to disk, so the journal
+ * never lists a block that could have been lost. When resuming, the last block listed is read back and checked against
+ * its hash (and the one before it, and so on, if it doesn't match). The journal also records the source's length and
+ * last-modified time; if either has changed, the copy starts over. The journal is deleted once the copy is complete.
+ *
+ * A file with the journal's name that isn't a journal is never overwritten or deleted; the copy is refused instead.
+ */
+class ResumableCopy {
+
+	//"RBRJ"
+	private static final int MAGIC = 0x5242524A;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 28;
+	//how much is copied between forcing the destination and updating the journal
+	private static final long SYNC_INTERVAL = 64L * 1024L * 1024L;
+
+	private ResumableCopy() {
+	}
+
+	/**
+	 * Return the journal file for a destination.
+	 */
+	static File journalFor(File dest) {
+		return new File(dest.getAbsoluteFile().getParentFile(), "." + dest.getName() + ".robusta-resume");
+	}
+
+	/**
+	 * Copy a file, resuming an earlier copy if there is a journal for it.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already and there is no journal to resume from
+	 * @param blockSize the size of each journaled block, in bytes
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, the destination and journal are
+	 * 			kept, so that the copy can be resumed.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be copied
+	 */
+	static boolean copy(File source, File dest, boolean overwrite, int blockSize, SmartProgressListener listener) throws IOException {
+		if (blockSize <= 0) {
+			throw new IOException("Incorrect block size");
+		}
+		File journal = journalFor(dest);
+		long sourceLength = source.length();
+		long sourceModified = source.lastModified();
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(source, dest);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(bufferSize);
+		FileInputStream fin = null;
+		RandomAccessFile raf = null;
+		DataOutputStream log = null;
+		FileOutputStream logStream = null;
+		try {
+			List<Long> hashes = null;
+			if (journal.exists()) {
+				//read even if there's nothing to resume, to make sure it really is a journal before replacing it
+				hashes = readJournal(journal, sourceLength, sourceModified, blockSize);
+				if (!dest.exists()) {
+					hashes = null;
+				}
+			}
+			if ((hashes == null) && dest.exists() && !overwrite) {
+				throw new IOException("File already exists");
+			}
+			raf = new RandomAccessFile(dest, "rw");
+			FileChannel out = raf.getChannel();
+			if (hashes != null) {
+				//make sure the last blocks listed really made it to disk
+				while (!hashes.isEmpty() && !blockMatches(out, hashes.size() - 1, blockSize, sourceLength, hashes.get(hashes.size() - 1), buffer)) {
+					hashes.remove(hashes.size() - 1);
+				}
+			} else {
+				hashes = new ArrayList<Long>();
+			}
+			long pos = Math.min(sourceLength, (long)hashes.size() * blockSize);
+			raf.setLength(pos);
+			writeJournal(journal, sourceLength, sourceModified, blockSize, hashes);
+			logStream = new FileOutputStream(journal, true);
+			log = new DataOutputStream(new BufferedOutputStream(logStream));
+			if (listener != null) {
+				listener.progressStarted(sourceLength);
+			}
+			fin = new FileInputStream(source);
+			FileChannel in = fin.getChannel();
+			List<Long> unsynced = new ArrayList<Long>();
+			long lastSync = pos;
+			boolean canceled = false;
+			while (pos < sourceLength) {
+				long blockEnd = Math.min(sourceLength, pos + blockSize);
+				Digester digester = ChecksumAlgorithm.XXHASH64.createDigester();
+				while (pos < blockEnd) {
+					if (listener != null) {
+						if (listener.isCanceled()) {
+							canceled = true;
+							break;
+						}
+						listener.progressUpdated(pos, sourceLength);
+					}
+					buffer.clear();
+					buffer.limit((int)Math.min(bufferSize, blockEnd - pos));
+					int len = in.read(buffer, pos);
+					if (len < 0) {
+						throw new IOException("Source file changed while being copied");
+					}
+					SmartIOThrottle.charge(len);
+					digester.update(buffer.array(), 0, len);
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer, pos + buffer.position());
+					}
+					pos = pos + len;
+				}
+				if (canceled) {
+					break;
+				}
+				unsynced.add(toLong(digester.digest()));
+				if ((pos - lastSync >= SYNC_INTERVAL) || (pos == sourceLength)) {
+					sync(out, log, logStream, unsynced);
+					lastSync = pos;
+				}
+			}
+			//whatever whole blocks were copied are kept for next time
+			sync(out, log, logStream, unsynced);
+			if ((source.length() != sourceLength) || (source.lastModified() != sourceModified)) {
+				throw new IOException("Source file changed while being copied");
+			}
+			if (canceled) {
+				listener.progressCanceled();
+				return false;
+			}
+			fin.close();
+			raf.close();
+			log.close();
+			journal.delete();
+			return true;
+		} finally {
+			pool.release(buffer);
+			if (fin != null) {
+				fin.close();
+			}
+			if (raf != null) {
+				raf.close();
+			}
+			if (log != null) {
+				log.close();
+			}
+		}
+	}
+
+	/**
+	 * Force the destination to disk, then add the blocks copied since the last sync to the journal.
+	 */
+	private static void sync(FileChannel out, DataOutputStream log, FileOutputStream logStream, List<Long> unsynced) throws IOException {
+		if (unsynced.isEmpty()) {
+			return;
+		}
+		out.force(false);
+		for (long hash : unsynced) {
+			log.writeLong(hash);
+		}
+		log.flush();
+		logStream.getChannel().force(false);
+		unsynced.clear();
+	}
+
+	private static boolean blockMatches(FileChannel out, int block, int blockSize, long sourceLength, long hash, ByteBuffer buffer) throws IOException {
+		long pos = (long)block * blockSize;
+		long end = Math.min(sourceLength, pos + blockSize);
+		if (out.size() < end) {
+			return false;
+		}
+		Digester digester = ChecksumAlgorithm.XXHASH64.createDigester();
+		while (pos < end) {
+			buffer.clear();
+			buffer.limit((int)Math.min(buffer.capacity(), end - pos));
+			int len = out.read(buffer, pos);
+			if (len < 0) {
+				return false;
+			}
+			digester.update(buffer.array(), 0, len);
+			pos = pos + len;
+		}
+		return toLong(digester.digest()) == hash;
+	}
+
+	/**
+	 * Read a journal, returning the block hashes in it, or null if it is for a different source or block size. Throws
+	 * an IOException if the file isn't a journal at all.
+	 */
+	private static List<Long> readJournal(File journal, long sourceLength, long sourceModified, int blockSize) throws IOException {
+		if (!journal.isFile() || (journal.length() < HEADER_SIZE)) {
+			throw new IOException(journal.getPath() + " exists and is not a copy journal");
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(journal.getPath() + " exists and is not a copy journal");
+			}
+			if ((in.readInt() != VERSION) || (in.readLong() != sourceLength) || (in.readLong() != sourceModified) || (in.readInt() != blockSize)) {
+				return null;
+			}
+			//a record cut short by a crash is left off
+			long count = (journal.length() - HEADER_SIZE) / 8;
+			List<Long> hashes = new ArrayList<Long>();
+			for (long i = 0; i < count; i++) {
+				hashes.add(in.readLong());
+			}
+			return hashes;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write a fresh journal, replacing any there was before.
+	 */
+	private static void writeJournal(File journal, long sourceLength, long sourceModified, int blockSize, List<Long> hashes) throws IOException {
+		File temp = File.createTempFile("robusta", ".journal", journal.getAbsoluteFile().getParentFile());
+		boolean done = false;
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(sourceLength);
+			out.writeLong(sourceModified);
+			out.writeInt(blockSize);
+			for (long hash : hashes) {
+				out.writeLong(hash);
+			}
+			out.flush();
+			fos.getChannel().force(false);
+			out.close();
+			SmartFile.moveOver(temp, journal);
+			done = true;
+		} finally {
+			if (!done) {
+				fos.close();
+				temp.delete();
+			}
+		}
+	}
+
+	private static long toLong(byte[] b) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (b[i] & 0xFF);
+		}
+		return value;
+	}
+
+}
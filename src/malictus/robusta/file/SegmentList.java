@@ -0,0 +1,291 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * An ordered list of segments (ranges of files or byte arrays) that together describe the content of an edited file.
+ * This is the bookkeeping shared by SmartFileEditSession and SmartVirtualFile; edits only split, remove and insert
+ * segments, and no data is read until the content is actually needed.
+ */
+class SegmentList {
+
+	//how much data to copy between progress updates
+	private static final long SLICE_SIZE = 8L * 1024L * 1024L;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long length;
+	//the offset of the start of each segment, rebuilt when needed after an edit
+	private long[] offsets = new long[0];
+	private boolean offsetsValid = true;
+
+	/**
+	 * Create a segment list that represents the whole of a file (which may not exist).
+	 *
+	 * @param file the file
+	 */
+	SegmentList(File file) {
+		reset(file);
+	}
+
+	/**
+	 * Throw away all segments, and represent the whole of the specified file once more.
+	 *
+	 * @param file the file
+	 */
+	void reset(File file) {
+		segments.clear();
+		length = file.length();
+		if (length > 0) {
+			segments.add(new Segment(file, 0, length));
+		}
+		offsetsValid = false;
+	}
+
+	long length() {
+		return length;
+	}
+
+	List<Segment> getSegments() {
+		return segments;
+	}
+
+	/**
+	 * Return the segments that represent a range of the content.
+	 */
+	List<Segment> slice(long start, long end) {
+		List<Segment> result = new ArrayList<Segment>();
+		if (start >= end) {
+			return result;
+		}
+		int i = indexOf(start);
+		long pos = offsets[i];
+		while ((i < segments.size()) && (pos < end)) {
+			Segment seg = segments.get(i);
+			long from = Math.max(start, pos) - pos;
+			long to = Math.min(end, pos + seg.length) - pos;
+			result.add(seg.slice(from, to));
+			pos = pos + seg.length;
+			i++;
+		}
+		return result;
+	}
+
+	/**
+	 * Remove a range of the content.
+	 */
+	void remove(long start, long end) {
+		if (start >= end) {
+			return;
+		}
+		int first = splitAt(start);
+		int last = splitAt(end);
+		segments.subList(first, last).clear();
+		length = length - (end - start);
+		offsetsValid = false;
+	}
+
+	/**
+	 * Insert segments at the specified position in the content.
+	 */
+	void insert(long position, List<Segment> newSegs) {
+		int index = splitAt(position);
+		segments.addAll(index, newSegs);
+		for (Segment seg : newSegs) {
+			length = length + seg.length;
+		}
+		offsetsValid = false;
+	}
+
+	/**
+	 * Return the index of the segment containing the specified position, or the number of segments if the position
+	 * is at (or past) the end of the content.
+	 */
+	int indexOf(long position) {
+		if (!offsetsValid) {
+			offsets = new long[segments.size() + 1];
+			long pos = 0;
+			for (int i = 0; i < segments.size(); i++) {
+				offsets[i] = pos;
+				pos = pos + segments.get(i).length;
+			}
+			offsets[segments.size()] = pos;
+			offsetsValid = true;
+		}
+		if (position >= length) {
+			return segments.size();
+		}
+		int i = Arrays.binarySearch(offsets, 0, segments.size(), position);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return i;
+	}
+
+	/**
+	 * Return the position in the content where the specified segment starts.
+	 */
+	long offsetOf(int index) {
+		indexOf(0);
+		return offsets[index];
+	}
+
+	/**
+	 * Make sure a segment boundary falls at the specified position, and return the index of the segment that starts there.
+	 */
+	private int splitAt(long position) {
+		int i = indexOf(position);
+		if (i == segments.size()) {
+			return i;
+		}
+		long pos = offsets[i];
+		if (pos == position) {
+			return i;
+		}
+		Segment seg = segments.get(i);
+		segments.set(i, seg.slice(0, position - pos));
+		segments.add(i + 1, seg.slice(position - pos, seg.length));
+		offsetsValid = false;
+		return i + 1;
+	}
+
+	/**
+	 * Read part of the content.
+	 *
+	 * @param position the position in the content to read from
+	 * @param b the array to read into
+	 * @param off the position in the array to start at
+	 * @param len the maximum number of bytes to read
+	 * @param channels open channels for each of the source files, which will be added to as needed
+	 * @return the number of bytes read, or -1 if the position is at the end of the content
+	 * @throws IOException if a source file can't be read
+	 */
+	int read(long position, byte[] b, int off, int len, Map<File, FileChannel> channels) throws IOException {
+		if (position >= length) {
+			return -1;
+		}
+		int i = indexOf(position);
+		long pos = offsets[i];
+		int total = 0;
+		while ((total < len) && (i < segments.size())) {
+			Segment seg = segments.get(i);
+			long from = position + total - pos;
+			int count = (int)Math.min(len - total, seg.length - from);
+			if (seg.data != null) {
+				System.arraycopy(seg.data, (int)(seg.start + from), b, off + total, count);
+			} else {
+				ByteBuffer buf = ByteBuffer.wrap(b, off + total, count);
+				FileChannel in = channelFor(seg.source, channels);
+				while (buf.hasRemaining()) {
+					if (in.read(buf, seg.start + from + (buf.position() - (off + total))) < 0) {
+						throw new IOException("Source file is shorter than expected");
+					}
+				}
+			}
+			total = total + count;
+			pos = pos + seg.length;
+			i++;
+		}
+		return total;
+	}
+
+	/**
+	 * Write the entire content to a channel, in order.
+	 *
+	 * @param out the channel to write to
+	 * @param channels open channels for each of the source files, which will be added to as needed
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return true if the content was written, or false if the task was canceled
+	 * @throws IOException if the read/write operations fail
+	 */
+	boolean writeTo(FileChannel out, Map<File, FileChannel> channels, SmartProgressListener listener) throws IOException {
+		if (listener != null) {
+			listener.progressStarted(length);
+		}
+		long written = 0;
+		for (Segment seg : segments) {
+			if (seg.data != null) {
+				ByteBuffer buf = ByteBuffer.wrap(seg.data, (int)seg.start, (int)seg.length);
+				while (buf.hasRemaining()) {
+					out.write(buf);
+				}
+				SmartIOThrottle.charge(seg.length);
+				written = written + seg.length;
+				continue;
+			}
+			FileChannel in = channelFor(seg.source, channels);
+			long pos = 0;
+			while (pos < seg.length) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return false;
+					}
+					listener.progressUpdated(written + pos, length);
+				}
+				long len = Math.min(SLICE_SIZE, seg.length - pos);
+				SmartFile.transferRange(in, seg.start + pos, len, out);
+				pos = pos + len;
+			}
+			written = written + seg.length;
+		}
+		return true;
+	}
+
+	private static FileChannel channelFor(File source, Map<File, FileChannel> channels) throws IOException {
+		FileChannel in = channels.get(source);
+		if (in == null) {
+			in = new FileInputStream(source).getChannel();
+			channels.put(source, in);
+		}
+		return in;
+	}
+
+	/**
+	 * Close all channels in a map that was passed to read or writeTo.
+	 */
+	static void closeAll(Map<File, FileChannel> channels) throws IOException {
+		for (FileChannel channel : channels.values()) {
+			channel.close();
+		}
+		channels.clear();
+	}
+
+	/**
+	 * A contiguous piece of the content; either a range of a file, or a range of a byte array.
+	 */
+	static class Segment {
+		final File source;
+		final byte[] data;
+		final long start;
+		final long length;
+
+		Segment(File source, long start, long length) {
+			this.source = source;
+			this.data = null;
+			this.start = start;
+			this.length = length;
+		}
+
+		Segment(byte[] data, long start, long length) {
+			this.source = null;
+			this.data = data;
+			this.start = start;
+			this.length = length;
+		}
+
+		/**
+		 * Return a segment representing part of this one.
+		 */
+		Segment slice(long from, long to) {
+			if (data != null) {
+				return new Segment(data, start + from, to - from);
+			}
+			return new Segment(source, start + from, to - from);
+		}
+	}
+
+}
@@ -0,0 +1,95 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+
+/**
+ * A SmartBlockGzipReader reads any part of a file compressed by SmartFile.copyFileCompressed(), without decompressing
+ * what comes before it. The index written alongside the compressed file is used to find the block that holds each
+ * position, and only that block is decompressed. The most recently decompressed block is kept, so that reading through
+ * a file in small pieces doesn't decompress each block more than once.
+ *
+ * Instances are thread-safe.
+ */
+public class SmartBlockGzipReader implements Closeable {
+
+	private final FileInputStream fin;
+	private final FileChannel in;
+	private final BlockGzip.Index index;
+	private int cachedBlock = -1;
+	private byte[] cached = null;
+
+	/**
+	 * Open a compressed file for reading.
+	 *
+	 * @param file a file written by SmartFile.copyFileCompressed()
+	 * @throws IOException if the file can't be opened, or its index is missing or doesn't match it
+	 */
+	public SmartBlockGzipReader(File file) throws IOException {
+		index = BlockGzip.readIndex(file);
+		if (index == null) {
+			throw new IOException("Compressed file has no usable index");
+		}
+		fin = new FileInputStream(file);
+		in = fin.getChannel();
+	}
+
+	/**
+	 * Return the length of the data once decompressed.
+	 *
+	 * @return the length, in bytes
+	 */
+	public long length() {
+		return index.length;
+	}
+
+	/**
+	 * Read decompressed data from any position.
+	 *
+	 * @param position the position in the decompressed data to read from
+	 * @param b the array to read into
+	 * @param off the position in the array to start at
+	 * @param len the maximum number of bytes to read
+	 * @return the number of bytes read, which is less than len only if the end of the data was reached, or -1 if position
+	 * 			is at or past the end
+	 * @throws IOException if the file can't be read, or is corrupt
+	 */
+	public synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+		if ((position < 0) || (off < 0) || (len < 0) || (off + len > b.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (position >= index.length) {
+			return -1;
+		}
+		int total = 0;
+		while ((total < len) && (position < index.length)) {
+			int block = (int)(position / index.blockSize);
+			byte[] data = blockData(block);
+			int from = (int)(position - ((long)block * index.blockSize));
+			int count = Math.min(len - total, data.length - from);
+			System.arraycopy(data, from, b, off + total, count);
+			total = total + count;
+			position = position + count;
+		}
+		return total;
+	}
+
+	/**
+	 * Close the compressed file.
+	 *
+	 * @throws IOException if the file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		cached = null;
+		fin.close();
+	}
+
+	private byte[] blockData(int block) throws IOException {
+		if (block != cachedBlock) {
+			cached = BlockGzip.inflateMember(BlockGzip.readMember(in, index, block), index.blockLength(block));
+			cachedBlock = block;
+		}
+		return cached;
+	}
+
+}
@@ -0,0 +1,294 @@
+package malictus.robusta.file;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A SmartBufferPool is a thread-safe pool of reusable ByteBuffers, so that file operations don't need to allocate
+ * fresh buffers every time they run. Buffers come in size classes that are powers of two, from MIN_BUFFER_SIZE up to
+ * MAX_POOLED_SIZE; a request is served from the smallest class that is big enough, so the buffer returned may have a
+ * greater capacity than was asked for. Larger requests are allocated directly and are not kept when released.
+ *
+ * Pools may hand out heap buffers or direct (off-heap) buffers by default; either kind can also be requested explicitly,
+ * which is necessary for code that needs access to the backing array. A buffer must be released exactly once, and must
+ * not be used after it has been released.
+ *
+ * All SmartFile operations borrow their buffers from the default pool.
+ */
+public class SmartBufferPool {
+
+	/**
+	 * The smallest size class, 4 KB.
+	 */
+	public static final int MIN_BUFFER_SIZE = 4096;
+	/**
+	 * The largest size class, 64 MB. Larger buffers are not pooled.
+	 */
+	public static final int MAX_POOLED_SIZE = 64 * 1024 * 1024;
+
+	private static final int MIN_SHIFT = 12;
+	private static final int CLASS_COUNT = 15;
+
+	private static volatile SmartBufferPool defaultPool = new SmartBufferPool(false, 16);
+
+	private final boolean direct;
+	private final int maxIdlePerClass;
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> heapBuffers = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+	private final List<ConcurrentLinkedQueue<ByteBuffer>> directBuffers = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+	//number of idle buffers in each class; heap classes first, then direct
+	private final AtomicIntegerArray idleCounts = new AtomicIntegerArray(CLASS_COUNT * 2);
+	private final AtomicLong idleBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong inUse = new AtomicLong();
+	//the buffers handed out and not yet released; ByteBuffer.equals() compares contents, so they are keyed by identity
+	private final Map<BufferKey, Boolean> borrowed = new ConcurrentHashMap<BufferKey, Boolean>();
+
+	/**
+	 * Create a new buffer pool.
+	 *
+	 * @param direct whether acquire() should return direct buffers rather than heap buffers
+	 * @param maxIdlePerClass the maximum number of idle buffers kept in each size class; buffers released beyond this are discarded
+	 */
+	public SmartBufferPool(boolean direct, int maxIdlePerClass) {
+		this.direct = direct;
+		this.maxIdlePerClass = maxIdlePerClass;
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			heapBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			directBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+	}
+
+	/**
+	 * Return the pool that SmartFile operations use.
+	 *
+	 * @return the default pool
+	 */
+	public static SmartBufferPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Replace the pool that SmartFile operations use. Buffers already borrowed from the old pool will be returned to it.
+	 *
+	 * @param pool the new default pool
+	 */
+	public static void setDefault(SmartBufferPool pool) {
+		if (pool == null) {
+			throw new NullPointerException("pool");
+		}
+		defaultPool = pool;
+	}
+
+	/**
+	 * Return whether acquire() returns direct buffers.
+	 *
+	 * @return true for direct buffers, false for heap buffers
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Borrow a buffer of this pool's default kind. The buffer is cleared, and its limit is set to the requested size.
+	 *
+	 * @param size the number of bytes needed
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		return acquire(size, direct);
+	}
+
+	/**
+	 * Borrow a heap buffer, which always has an accessible backing array starting at offset 0. The buffer is cleared,
+	 * and its limit is set to the requested size.
+	 *
+	 * @param size the number of bytes needed
+	 * @return the buffer
+	 */
+	public ByteBuffer acquireHeap(int size) {
+		return acquire(size, false);
+	}
+
+	/**
+	 * Borrow a direct buffer. The buffer is cleared, and its limit is set to the requested size.
+	 *
+	 * @param size the number of bytes needed
+	 * @return the buffer
+	 */
+	public ByteBuffer acquireDirect(int size) {
+		return acquire(size, true);
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers that didn't come from this pool, or that have been released already, are
+	 * ignored, and neither counted nor kept.
+	 *
+	 * @param buffer the buffer; may be null
+	 */
+	public void release(ByteBuffer buffer) {
+		if ((buffer == null) || (borrowed.remove(new BufferKey(buffer)) == null)) {
+			return;
+		}
+		inUse.decrementAndGet();
+		int sizeClass = classOf(buffer.capacity());
+		if ((sizeClass < 0) || (buffer.capacity() != (1 << (sizeClass + MIN_SHIFT)))) {
+			return;
+		}
+		int slot = buffer.isDirect() ? CLASS_COUNT + sizeClass : sizeClass;
+		//reserve room first, so that the class never holds more than the maximum
+		while (true) {
+			int count = idleCounts.get(slot);
+			if (count >= maxIdlePerClass) {
+				return;
+			}
+			if (idleCounts.compareAndSet(slot, count, count + 1)) {
+				break;
+			}
+		}
+		buffer.clear();
+		idleBytes.addAndGet(buffer.capacity());
+		queueFor(sizeClass, buffer.isDirect()).offer(buffer);
+	}
+
+	/**
+	 * Return the number of requests that were served with an idle buffer.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Return the number of requests that had to allocate a new buffer.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Return the number of buffers that have been borrowed and not yet released.
+	 *
+	 * @return the number of buffers in use
+	 */
+	public long getInUseCount() {
+		return inUse.get();
+	}
+
+	/**
+	 * Return the number of idle buffers held by the pool.
+	 *
+	 * @return the number of idle buffers
+	 */
+	public int getIdleCount() {
+		int total = 0;
+		for (int i = 0; i < idleCounts.length(); i++) {
+			total = total + idleCounts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Return the total capacity of the idle buffers held by the pool.
+	 *
+	 * @return the number of bytes held
+	 */
+	public long getIdleBytes() {
+		return idleBytes.get();
+	}
+
+	/**
+	 * Discard all idle buffers.
+	 */
+	public void clear() {
+		for (int i = 0; i < CLASS_COUNT; i++) {
+			drain(i, false);
+			drain(i, true);
+		}
+	}
+
+	private ByteBuffer acquire(int size, boolean wantDirect) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Negative buffer size");
+		}
+		inUse.incrementAndGet();
+		int sizeClass = classOf(size);
+		ByteBuffer buffer;
+		if (sizeClass < 0) {
+			misses.incrementAndGet();
+			buffer = allocate(size, wantDirect);
+			borrowed.put(new BufferKey(buffer), Boolean.TRUE);
+			return buffer;
+		}
+		buffer = queueFor(sizeClass, wantDirect).poll();
+		if (buffer != null) {
+			idleCounts.decrementAndGet(wantDirect ? CLASS_COUNT + sizeClass : sizeClass);
+			idleBytes.addAndGet(-buffer.capacity());
+			hits.incrementAndGet();
+		} else {
+			buffer = allocate(1 << (sizeClass + MIN_SHIFT), wantDirect);
+			misses.incrementAndGet();
+		}
+		buffer.limit(size);
+		borrowed.put(new BufferKey(buffer), Boolean.TRUE);
+		return buffer;
+	}
+
+	private void drain(int sizeClass, boolean isDirect) {
+		ConcurrentLinkedQueue<ByteBuffer> queue = queueFor(sizeClass, isDirect);
+		ByteBuffer buffer = queue.poll();
+		while (buffer != null) {
+			idleCounts.decrementAndGet(isDirect ? CLASS_COUNT + sizeClass : sizeClass);
+			idleBytes.addAndGet(-buffer.capacity());
+			buffer = queue.poll();
+		}
+	}
+
+	private ConcurrentLinkedQueue<ByteBuffer> queueFor(int sizeClass, boolean isDirect) {
+		return isDirect ? directBuffers.get(sizeClass) : heapBuffers.get(sizeClass);
+	}
+
+	private static ByteBuffer allocate(int size, boolean isDirect) {
+		return isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Return the smallest size class that holds the given size, or -1 if it is too big to be pooled.
+	 */
+	private static int classOf(int size) {
+		if (size > MAX_POOLED_SIZE) {
+			return -1;
+		}
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return (32 - Integer.numberOfLeadingZeros(size - 1)) - MIN_SHIFT;
+	}
+
+	/**
+	 * Wraps a buffer so that it is compared by identity rather than by its contents.
+	 */
+	private static class BufferKey {
+
+		private final ByteBuffer buffer;
+
+		BufferKey(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public int hashCode() {
+			return System.identityHashCode(buffer);
+		}
+
+		public boolean equals(Object obj) {
+			return (obj instanceof BufferKey) && (((BufferKey)obj).buffer == buffer);
+		}
+	}
+
+}
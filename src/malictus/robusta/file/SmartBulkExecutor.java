@@ -0,0 +1,190 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartBulkExecutor runs large numbers of SmartBulkJobs at once. Where the JVM supports virtual threads (Java 21 and
+ * later), each job gets its own virtual thread, so that thousands of jobs can wait on I/O at once without thousands of
+ * platform threads; on older JVMs, a fixed pool of platform threads is used instead.
+ *
+ * Rather than sizing a thread pool, concurrency is limited per storage device: a job only runs once it holds a permit
+ * from the SmartDeviceProfile of every device its files are on, so no device ever has more than its profile's
+ * maxConcurrency jobs running against it.
+ */
+public class SmartBulkExecutor {
+
+	//size of the platform thread pool used when virtual threads aren't available
+	private static final int FALLBACK_THREADS = 64;
+
+	private final ExecutorService executor;
+
+	/**
+	 * Create a bulk executor that uses virtual threads if the JVM supports them.
+	 */
+	public SmartBulkExecutor() {
+		ExecutorService virtual = createVirtualThreadExecutor();
+		if (virtual != null) {
+			executor = virtual;
+		} else {
+			executor = Executors.newFixedThreadPool(FALLBACK_THREADS, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "robusta-bulk");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Create a bulk executor that runs jobs on the specified executor service.
+	 *
+	 * @param executor the executor service; it is shut down by shutdown()
+	 */
+	public SmartBulkExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Return whether the JVM supports virtual threads.
+	 *
+	 * @return true if virtual threads are available
+	 */
+	public static boolean isVirtualThreadsAvailable() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (NoSuchMethodException err) {
+			return false;
+		}
+	}
+
+	/**
+	 * Run a list of jobs, and wait for all of them to finish. The outcome of each job is recorded in the job itself; a
+	 * job that fails doesn't stop the others.
+	 *
+	 * @param jobs the jobs to run
+	 * @param listener a SmartProgressListener to track progress, counted in jobs; may be null. If canceled, jobs that
+	 * 			haven't started yet are skipped, and jobs already running are allowed to finish.
+	 * @return true if all jobs were run, or false if the task was canceled
+	 * @throws IOException if interrupted while waiting for the jobs
+	 */
+	public boolean runAll(List<? extends SmartBulkJob> jobs, final SmartProgressListener listener) throws IOException {
+		final int total = jobs.size();
+		final AtomicLong finished = new AtomicLong();
+		final CountDownLatch latch = new CountDownLatch(total);
+		//jobs run at the priority of the thread that submitted them
+		final SmartIOThrottle.Priority priority = SmartIOThrottle.getThreadPriority();
+		if (listener != null) {
+			listener.progressStarted(total);
+		}
+		for (final SmartBulkJob job : jobs) {
+			Runnable task = new Runnable() {
+				public void run() {
+					SmartIOThrottle.Priority previous = SmartIOThrottle.getThreadPriority();
+					SmartIOThrottle.setThreadPriority(priority);
+					try {
+						if ((listener != null) && listener.isCanceled()) {
+							job.cancel();
+							return;
+						}
+						if (!runWithPermits(job, listener)) {
+							return;
+						}
+						if (listener != null) {
+							synchronized (listener) {
+								listener.progressUpdated(finished.incrementAndGet(), total);
+							}
+						}
+					} finally {
+						SmartIOThrottle.setThreadPriority(previous);
+						latch.countDown();
+					}
+				}
+			};
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException err) {
+				job.fail(new IOException("Bulk executor has been shut down"));
+				latch.countDown();
+			}
+		}
+		try {
+			latch.await();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for jobs");
+		}
+		boolean canceled = false;
+		for (SmartBulkJob job : jobs) {
+			if (job.isCanceled()) {
+				canceled = true;
+			}
+		}
+		if (canceled) {
+			listener.progressCanceled();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop accepting jobs. Jobs already submitted will still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Run a job once it holds a permit for each of its devices. Returns false if the task was canceled while the job
+	 * was waiting, in which case the job is canceled rather than run.
+	 */
+	private static boolean runWithPermits(SmartBulkJob job, SmartProgressListener listener) {
+		//one permit per device, taken in a fixed order so that jobs on several devices can't deadlock
+		TreeMap<Long, SmartDeviceProfile> devices = new TreeMap<Long, SmartDeviceProfile>();
+		for (File file : job.getFiles()) {
+			SmartDeviceProfile profile = SmartDeviceProfile.forFile(file);
+			devices.put(profile.getId(), profile);
+		}
+		List<Semaphore> held = new ArrayList<Semaphore>();
+		try {
+			for (SmartDeviceProfile profile : devices.values()) {
+				profile.getPermits().acquire();
+				held.add(profile.getPermits());
+			}
+			//with one thread per job, every job waits here, so cancellation has to be checked again once it's through
+			if ((listener != null) && listener.isCanceled()) {
+				job.cancel();
+				return false;
+			}
+			job.run();
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			job.fail(new IOException("Interrupted while waiting to run"));
+		} finally {
+			for (Semaphore permits : held) {
+				permits.release();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Create a virtual-thread-per-task executor if this JVM has one. It is looked up by reflection so that this class
+	 * still compiles and runs on older JVMs.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		} catch (Exception err) {
+			return null;
+		}
+	}
+
+}
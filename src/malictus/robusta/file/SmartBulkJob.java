@@ -0,0 +1,151 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartBulkJob is a single file operation to be run by a SmartBulkExecutor, along with its outcome once it has run.
+ * Jobs for the common SmartFile operations can be created with the static factory methods; other operations can be
+ * run by extending this class.
+ */
+public abstract class SmartBulkJob {
+
+	private final File[] files;
+	private volatile boolean done = false;
+	private volatile boolean canceled = false;
+	private volatile Object result = null;
+	private volatile IOException error = null;
+
+	/**
+	 * Create a job.
+	 *
+	 * @param files the files the job reads or writes; used to apply the concurrency limits of the devices they are on
+	 */
+	protected SmartBulkJob(File... files) {
+		this.files = files.clone();
+	}
+
+	/**
+	 * Perform the operation.
+	 *
+	 * @return the result of the operation, if any
+	 * @throws IOException if the operation fails
+	 */
+	protected abstract Object execute() throws IOException;
+
+	/**
+	 * Create a job that copies a file. See SmartFile.copyFile().
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already
+	 * @return the job
+	 */
+	public static SmartBulkJob copy(final File source, final File dest, final boolean overwrite) {
+		return new SmartBulkJob(source, dest) {
+			protected Object execute() throws IOException {
+				SmartFile.copyFile(source, dest, overwrite, (SmartProgressListener)null);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Create a job that appends one file to the end of another. See SmartFile.appendToFile().
+	 *
+	 * @param source the source file
+	 * @param dest the file to append to
+	 * @return the job
+	 */
+	public static SmartBulkJob append(final File source, final File dest) {
+		return new SmartBulkJob(source, dest) {
+			protected Object execute() throws IOException {
+				SmartFile.appendToFile(source, dest, 0, source.length(), (SmartProgressListener)null);
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Create a job that calculates checksums for a file. The result is a SmartChecksum. See SmartFile.getChecksums().
+	 *
+	 * @param file the file to checksum
+	 * @param algorithms the checksum algorithms to calculate
+	 * @return the job
+	 */
+	public static SmartBulkJob checksum(final File file, final ChecksumAlgorithm... algorithms) {
+		return new SmartBulkJob(file) {
+			protected Object execute() throws IOException {
+				return new SmartFile(file).getChecksums(algorithms);
+			}
+		};
+	}
+
+	/**
+	 * Return the files the job reads or writes.
+	 *
+	 * @return the files
+	 */
+	public File[] getFiles() {
+		return files.clone();
+	}
+
+	/**
+	 * Return whether the job has finished, successfully or not, or was skipped because the bulk operation was canceled.
+	 *
+	 * @return true if the job won't run any further
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Return whether the job was skipped because the bulk operation was canceled.
+	 *
+	 * @return true if the job was skipped
+	 */
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	/**
+	 * Return the result of the operation.
+	 *
+	 * @return the result, or null if the operation has no result, failed, or hasn't run
+	 */
+	public Object getResult() {
+		return result;
+	}
+
+	/**
+	 * Return the error that the operation failed with.
+	 *
+	 * @return the error, or null if the operation succeeded or hasn't run
+	 */
+	public IOException getError() {
+		return error;
+	}
+
+	void run() {
+		try {
+			result = execute();
+		} catch (IOException err) {
+			error = err;
+		} catch (RuntimeException err) {
+			error = new IOException("Error running job: " + err);
+		} finally {
+			done = true;
+		}
+	}
+
+	void cancel() {
+		canceled = true;
+		done = true;
+	}
+
+	void fail(IOException err) {
+		error = err;
+		done = true;
+	}
+
+}
@@ -0,0 +1,282 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.string.StringUtils;
+
+/**
+ * A SmartChecksum holds the results of calculating one or more checksums over the same data, as calculated by
+ * SmartFile.getChecksums(). The data is only read once, no matter how many algorithms are used; each block is handed
+ * to all of the algorithms at the same time, on separate threads, while the next block is being read.
+ */
+public class SmartChecksum {
+
+	//shared by all checksum calculations; threads are daemons so they never keep the VM alive
+	private static ExecutorService digestPool = null;
+
+	private final Map<ChecksumAlgorithm, byte[]> digests;
+
+	private SmartChecksum(Map<ChecksumAlgorithm, byte[]> digests) {
+		this.digests = digests;
+	}
+
+	/**
+	 * Return the algorithms that were calculated.
+	 *
+	 * @return the set of algorithms
+	 */
+	public Set<ChecksumAlgorithm> getAlgorithms() {
+		return Collections.unmodifiableSet(digests.keySet());
+	}
+
+	/**
+	 * Return the raw digest value for an algorithm.
+	 *
+	 * @param algorithm the algorithm
+	 * @return the digest, or null if this algorithm wasn't calculated
+	 */
+	public byte[] getBytes(ChecksumAlgorithm algorithm) {
+		byte[] digest = digests.get(algorithm);
+		if (digest == null) {
+			return null;
+		}
+		return digest.clone();
+	}
+
+	/**
+	 * Return the digest value for an algorithm as an uppercase hex string, such as that returned by SmartFile.getMD5Checksum().
+	 *
+	 * @param algorithm the algorithm
+	 * @return the hex string, or null if this algorithm wasn't calculated
+	 */
+	public String getHex(ChecksumAlgorithm algorithm) {
+		byte[] digest = digests.get(algorithm);
+		if (digest == null) {
+			return null;
+		}
+		return StringUtils.toHexString(digest);
+	}
+
+	/**
+	 * Create a SmartChecksum for a single digest that was calculated elsewhere.
+	 *
+	 * @param algorithm the algorithm
+	 * @param digest the digest value
+	 * @return the checksum
+	 */
+	static SmartChecksum of(ChecksumAlgorithm algorithm, byte[] digest) {
+		Map<ChecksumAlgorithm, byte[]> results = new EnumMap<ChecksumAlgorithm, byte[]>(ChecksumAlgorithm.class);
+		results.put(algorithm, digest);
+		return new SmartChecksum(results);
+	}
+
+	/**
+	 * Calculate checksums for a portion of a file, reading the data only once.
+	 *
+	 * @param file the file to read
+	 * @param start the start position of the portion to checksum
+	 * @param end the end position of the portion to checksum
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @param algorithms the algorithms to calculate
+	 * @return the checksums, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	static SmartChecksum calculate(File file, long start, long end, SmartProgressListener listener, ChecksumAlgorithm... algorithms) throws IOException {
+		if ((algorithms == null) || (algorithms.length == 0)) {
+			throw new IOException("No checksum algorithm specified");
+		}
+		if ((start < 0) || (end < start)) {
+			throw new IOException("Incorrect start and end values");
+		}
+		final Map<ChecksumAlgorithm, Digester> digesters = new EnumMap<ChecksumAlgorithm, Digester>(ChecksumAlgorithm.class);
+		for (ChecksumAlgorithm algorithm : algorithms) {
+			digesters.put(algorithm, algorithm.createDigester());
+		}
+		if (listener != null) {
+			listener.progressStarted(end - start);
+		}
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			FileChannel in = fin.getChannel();
+			int bufferSize = SmartDeviceProfile.bufferSizeFor(file);
+			boolean finished;
+			if (digesters.size() == 1) {
+				finished = digestSerial(in, start, end, bufferSize, digesters.values().iterator().next(), listener);
+			} else {
+				finished = digestParallel(in, start, end, bufferSize, digesters.values(), listener);
+			}
+			fin.close();
+			if (!finished) {
+				return null;
+			}
+		} catch (IOException err) {
+			fin.close();
+			throw err;
+		}
+		Map<ChecksumAlgorithm, byte[]> results = new EnumMap<ChecksumAlgorithm, byte[]>(ChecksumAlgorithm.class);
+		for (Map.Entry<ChecksumAlgorithm, Digester> entry : digesters.entrySet()) {
+			results.put(entry.getKey(), entry.getValue().digest());
+		}
+		return new SmartChecksum(results);
+	}
+
+	/**
+	 * Feed a range of a channel to a single digester, on the calling thread.
+	 */
+	private static boolean digestSerial(FileChannel in, long start, long end, int bufferSize, Digester digester, SmartProgressListener listener) throws IOException {
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(bufferSize);
+		try {
+			long pos = start;
+			while (pos < end) {
+				if (!updateProgress(listener, pos - start, end - start)) {
+					return false;
+				}
+				int len = readBlock(in, buffer, bufferSize, pos, end);
+				if (len == 0) {
+					break;
+				}
+				digester.update(buffer.array(), 0, len);
+				pos = pos + len;
+			}
+			return true;
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Feed a range of a channel to several digesters. Each block is digested by all digesters at once on the digest pool,
+	 * while the calling thread reads the next block into a second buffer.
+	 */
+	private static boolean digestParallel(FileChannel in, long start, long end, int bufferSize, Collection<Digester> digesters, SmartProgressListener listener) throws IOException {
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer current = pool.acquireHeap(bufferSize);
+		ByteBuffer next = pool.acquireHeap(bufferSize);
+		List<Future<?>> pending = new ArrayList<Future<?>>();
+		try {
+			long pos = start;
+			int len = (pos < end) ? readBlock(in, current, bufferSize, pos, end) : 0;
+			while (len > 0) {
+				if (!updateProgress(listener, pos - start, end - start)) {
+					return false;
+				}
+				final byte[] data = current.array();
+				final int count = len;
+				for (final Digester digester : digesters) {
+					pending.add(getDigestPool().submit(new Runnable() {
+						public void run() {
+							digester.update(data, 0, count);
+						}
+					}));
+				}
+				pos = pos + len;
+				len = (pos < end) ? readBlock(in, next, bufferSize, pos, end) : 0;
+				//the digesters must be finished with this block before its buffer is reused
+				waitFor(pending);
+				ByteBuffer swap = current;
+				current = next;
+				next = swap;
+			}
+			return true;
+		} finally {
+			//nothing may still be reading the buffers when they go back to the pool
+			waitQuietly(pending);
+			pool.release(current);
+			pool.release(next);
+		}
+	}
+
+	/**
+	 * Read a block from a channel, up to the end position. Returns the number of bytes read, which is only 0 if the end of the file was reached.
+	 */
+	private static int readBlock(FileChannel in, ByteBuffer buffer, int bufferSize, long pos, long end) throws IOException {
+		buffer.clear();
+		buffer.limit((int)Math.min(bufferSize, end - pos));
+		while (buffer.hasRemaining()) {
+			int count = in.read(buffer, pos + buffer.position());
+			if (count < 0) {
+				break;
+			}
+		}
+		SmartIOThrottle.charge(buffer.position());
+		return buffer.position();
+	}
+
+	/**
+	 * Wait for tasks to finish. If this fails, the tasks are left in the list, so that waitQuietly() can still wait for
+	 * them before their buffers are reused.
+	 */
+	private static void waitFor(List<Future<?>> futures) throws IOException {
+		try {
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while calculating checksum");
+		} catch (ExecutionException err) {
+			throw new IOException("Error calculating checksum: " + err.getCause());
+		}
+		futures.clear();
+	}
+
+	/**
+	 * Wait for tasks to finish, ignoring their errors. Interrupts don't cut this short, since the tasks may still be
+	 * reading buffers that are about to go back to the pool; the interrupt is restored afterwards.
+	 */
+	private static void waitQuietly(List<Future<?>> futures) {
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException err) {
+					interrupted = true;
+				} catch (ExecutionException err) {
+					//the task is already failing
+					break;
+				} catch (CancellationException err) {
+					break;
+				}
+			}
+		}
+		futures.clear();
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Update a progress listener, if there is one. Returns false if the task was canceled.
+	 */
+	private static boolean updateProgress(SmartProgressListener listener, long done, long total) {
+		if (listener != null) {
+			if (listener.isCanceled()) {
+				listener.progressCanceled();
+				return false;
+			}
+			listener.progressUpdated(done, total);
+		}
+		return true;
+	}
+
+	private static synchronized ExecutorService getDigestPool() {
+		if (digestPool == null) {
+			digestPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "robusta-digest");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return digestPool;
+	}
+
+}
@@ -0,0 +1,388 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import malictus.robusta.string.StringUtils;
+
+/**
+ * A SmartChecksumCache remembers checksums that have already been calculated, so that they don't need to be calculated
+ * again for files that haven't changed. Entries are keyed by canonical path and algorithm, and store the length and
+ * last-modified time of the file when the checksum was calculated; if either has changed since, the entry is stale and
+ * is ignored.
+ *
+ * The cache is kept in an index file on disk. The index is a sorted table that is memory-mapped when the cache is opened
+ * and searched in place, so opening even a very large cache is nearly instant. Changes are kept in memory until save()
+ * is called.
+ *
+ * Index file layout (all numbers big-endian): a header with a magic number, version and entry count, followed by one
+ * fixed-size record per entry sorted by path hash and algorithm, followed by the path and digest bytes for all entries.
+ */
+public class SmartChecksumCache {
+
+	private static final int MAGIC = 0x5242434B;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 12;
+	/*
+	 * Record layout: path hash (8), file length (8), last modified (8), algorithm (1), digest length (1),
+	 * unused (2), path offset (4), path length (4), digest offset (4)
+	 */
+	private static final int RECORD_SIZE = 40;
+
+	private final File indexFile;
+	//the index as of the last load or save; may be null if there is no index yet
+	private MappedByteBuffer index = null;
+	private int indexCount = 0;
+	//entries added or removed since then; a null value means the entry has been removed
+	private final Map<Key, Entry> changes = new HashMap<Key, Entry>();
+
+	/**
+	 * Open a checksum cache. If the index file doesn't exist, the cache starts out empty, and the index file will be
+	 * created on the first save.
+	 *
+	 * @param indexFile the file that holds the cache index
+	 * @throws IOException if the index exists but can't be read, or is not a checksum cache index
+	 */
+	public SmartChecksumCache(File indexFile) throws IOException {
+		this.indexFile = indexFile;
+		load();
+	}
+
+	/**
+	 * Return the stored checksum for a file, without reading the file.
+	 *
+	 * @param file the file
+	 * @param algorithm the checksum algorithm
+	 * @return the stored checksum, or null if there is none, or the file has changed since it was stored
+	 * @throws IOException if the canonical path of the file can't be determined
+	 */
+	public synchronized byte[] getCachedChecksum(File file, ChecksumAlgorithm algorithm) throws IOException {
+		Key key = new Key(file.getCanonicalPath(), algorithm);
+		Entry entry = find(key);
+		if ((entry == null) || (entry.length != file.length()) || (entry.lastModified != file.lastModified())) {
+			return null;
+		}
+		return entry.digest.clone();
+	}
+
+	/**
+	 * Store a checksum for a file, along with the file's current length and last-modified time.
+	 *
+	 * @param file the file
+	 * @param algorithm the checksum algorithm
+	 * @param digest the checksum value
+	 * @throws IOException if the canonical path of the file can't be determined
+	 */
+	public synchronized void putChecksum(File file, ChecksumAlgorithm algorithm, byte[] digest) throws IOException {
+		Key key = new Key(file.getCanonicalPath(), algorithm);
+		changes.put(key, new Entry(file.length(), file.lastModified(), digest.clone()));
+	}
+
+	/**
+	 * Return the checksum for a file as an uppercase hex string. The stored checksum is returned if the file hasn't
+	 * changed; otherwise the checksum is calculated and stored.
+	 *
+	 * @param file the file
+	 * @param algorithm the checksum algorithm
+	 * @return the checksum value
+	 * @throws IOException if file not found or can't be read
+	 */
+	public String getChecksum(File file, ChecksumAlgorithm algorithm) throws IOException {
+		byte[] digest = getCachedChecksum(file, algorithm);
+		if (digest != null) {
+			return StringUtils.toHexString(digest);
+		}
+		long length = file.length();
+		long lastModified = file.lastModified();
+		SmartChecksum checksum = new SmartFile(file).getChecksums(algorithm);
+		digest = checksum.getBytes(algorithm);
+		//don't store anything if the file changed while it was being read
+		if ((file.length() == length) && (file.lastModified() == lastModified)) {
+			putChecksum(file, algorithm, digest);
+		}
+		return StringUtils.toHexString(digest);
+	}
+
+	/**
+	 * Return the MD5 checksum for a file, in the same format as SmartFile.getMD5Checksum(). The stored checksum is
+	 * returned if the file hasn't changed; otherwise the checksum is calculated and stored.
+	 *
+	 * @param file the file
+	 * @return the checksum value
+	 * @throws IOException if file not found or can't be read
+	 */
+	public String getMD5Checksum(File file) throws IOException {
+		return getChecksum(file, ChecksumAlgorithm.MD5);
+	}
+
+	/**
+	 * Remove the stored checksum for a file.
+	 *
+	 * @param file the file
+	 * @param algorithm the checksum algorithm
+	 * @throws IOException if the canonical path of the file can't be determined
+	 */
+	public synchronized void removeChecksum(File file, ChecksumAlgorithm algorithm) throws IOException {
+		changes.put(new Key(file.getCanonicalPath(), algorithm), null);
+	}
+
+	/**
+	 * Remove all entries for files that no longer exist or have changed. This checks every file in the cache, so it can
+	 * take a while for a large cache.
+	 *
+	 * @return the number of entries removed
+	 */
+	public synchronized int prune() {
+		int removed = 0;
+		for (Map.Entry<Key, Entry> item : allEntries().entrySet()) {
+			File file = new File(item.getKey().path);
+			Entry entry = item.getValue();
+			if ((entry.length != file.length()) || (entry.lastModified != file.lastModified()) || !file.exists()) {
+				changes.put(item.getKey(), null);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Return the number of entries in the cache, including any stale ones.
+	 *
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		if (changes.isEmpty()) {
+			return indexCount;
+		}
+		return allEntries().size();
+	}
+
+	/**
+	 * Write the cache to its index file. The new index is written next to the old one and then moved over it.
+	 *
+	 * @throws IOException if the index can't be written
+	 */
+	public synchronized void save() throws IOException {
+		if (changes.isEmpty() && indexFile.exists()) {
+			return;
+		}
+		List<Map.Entry<Key, Entry>> entries = new ArrayList<Map.Entry<Key, Entry>>(allEntries().entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Key, Entry>>() {
+			public int compare(Map.Entry<Key, Entry> a, Map.Entry<Key, Entry> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		File temp = File.createTempFile("robusta", ".idx", indexFile.getAbsoluteFile().getParentFile());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			int heapOffset = 0;
+			List<byte[]> paths = new ArrayList<byte[]>(entries.size());
+			for (Map.Entry<Key, Entry> item : entries) {
+				Key key = item.getKey();
+				Entry entry = item.getValue();
+				byte[] path = key.path.getBytes(StandardCharsets.UTF_8);
+				paths.add(path);
+				out.writeLong(key.hash);
+				out.writeLong(entry.length);
+				out.writeLong(entry.lastModified);
+				out.writeByte(key.algorithm.ordinal());
+				out.writeByte(entry.digest.length);
+				out.writeShort(0);
+				out.writeInt(heapOffset);
+				out.writeInt(path.length);
+				out.writeInt(heapOffset + path.length);
+				heapOffset = heapOffset + path.length + entry.digest.length;
+			}
+			for (int i = 0; i < entries.size(); i++) {
+				out.write(paths.get(i));
+				out.write(entries.get(i).getValue().digest);
+			}
+			out.close();
+		} catch (IOException err) {
+			out.close();
+			temp.delete();
+			throw err;
+		}
+		//on some platforms (notably Windows) a mapped file can't be replaced, so the old index is unmapped first; it is
+		//mapped again if the move fails, which leaves the cache as it was
+		if (index != null) {
+			SmartFile.unmap(index);
+			index = null;
+			indexCount = 0;
+		}
+		try {
+			SmartFile.moveOver(temp, indexFile);
+		} catch (IOException err) {
+			temp.delete();
+			load();
+			throw err;
+		}
+		changes.clear();
+		load();
+	}
+
+	/**
+	 * Map the index file, if there is one.
+	 */
+	private void load() throws IOException {
+		index = null;
+		indexCount = 0;
+		if (!indexFile.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE) {
+				throw new IOException("Checksum cache index is damaged");
+			}
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if ((map.getInt(0) != MAGIC) || (map.getInt(4) != VERSION)) {
+				throw new IOException("Not a checksum cache index");
+			}
+			int count = map.getInt(8);
+			if ((count < 0) || (HEADER_SIZE + ((long)count * RECORD_SIZE) > channel.size())) {
+				throw new IOException("Checksum cache index is damaged");
+			}
+			index = map;
+			indexCount = count;
+		} finally {
+			//the mapping stays valid after the file is closed
+			raf.close();
+		}
+	}
+
+	/**
+	 * Look up an entry, first among the unsaved changes and then in the index.
+	 */
+	private Entry find(Key key) {
+		if (changes.containsKey(key)) {
+			return changes.get(key);
+		}
+		if (index == null) {
+			return null;
+		}
+		//binary search for the first record with this hash, then check each record with the same hash
+		int low = 0;
+		int high = indexCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (index.getLong(HEADER_SIZE + (mid * RECORD_SIZE)) < key.hash) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		for (int i = low; (i < indexCount) && (index.getLong(HEADER_SIZE + (i * RECORD_SIZE)) == key.hash); i++) {
+			int rec = HEADER_SIZE + (i * RECORD_SIZE);
+			if ((index.get(rec + 24) == key.algorithm.ordinal()) && key.path.equals(readPath(rec))) {
+				return readEntry(rec);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return every entry in the cache, with unsaved changes applied.
+	 */
+	private Map<Key, Entry> allEntries() {
+		Map<Key, Entry> result = new HashMap<Key, Entry>();
+		ChecksumAlgorithm[] algorithms = ChecksumAlgorithm.values();
+		for (int i = 0; i < indexCount; i++) {
+			int rec = HEADER_SIZE + (i * RECORD_SIZE);
+			result.put(new Key(readPath(rec), algorithms[index.get(rec + 24)]), readEntry(rec));
+		}
+		for (Map.Entry<Key, Entry> change : changes.entrySet()) {
+			if (change.getValue() == null) {
+				result.remove(change.getKey());
+			} else {
+				result.put(change.getKey(), change.getValue());
+			}
+		}
+		return result;
+	}
+
+	private int heapStart() {
+		return HEADER_SIZE + (indexCount * RECORD_SIZE);
+	}
+
+	private String readPath(int rec) {
+		byte[] path = new byte[index.getInt(rec + 32)];
+		ByteBuffer dup = index.duplicate();
+		dup.position(heapStart() + index.getInt(rec + 28));
+		dup.get(path);
+		return new String(path, StandardCharsets.UTF_8);
+	}
+
+	private Entry readEntry(int rec) {
+		byte[] digest = new byte[index.get(rec + 25) & 0xFF];
+		ByteBuffer dup = index.duplicate();
+		dup.position(heapStart() + index.getInt(rec + 36));
+		dup.get(digest);
+		return new Entry(index.getLong(rec + 8), index.getLong(rec + 16), digest);
+	}
+
+	/**
+	 * The key for a cache entry: the canonical path of a file and a checksum algorithm.
+	 */
+	private static class Key implements Comparable<Key> {
+		private final String path;
+		private final ChecksumAlgorithm algorithm;
+		private final long hash;
+
+		Key(String path, ChecksumAlgorithm algorithm) {
+			this.path = path;
+			this.algorithm = algorithm;
+			//64-bit FNV-1a of the path, which spreads paths much better than String.hashCode
+			long h = 0xcbf29ce484222325L;
+			for (int i = 0; i < path.length(); i++) {
+				h = (h ^ path.charAt(i)) * 0x100000001b3L;
+			}
+			this.hash = h;
+		}
+
+		public int compareTo(Key other) {
+			if (hash != other.hash) {
+				return (hash < other.hash) ? -1 : 1;
+			}
+			if (algorithm != other.algorithm) {
+				return algorithm.compareTo(other.algorithm);
+			}
+			return path.compareTo(other.path);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key)o;
+			return (hash == other.hash) && (algorithm == other.algorithm) && path.equals(other.path);
+		}
+
+		public int hashCode() {
+			return (int)(hash ^ (hash >>> 32)) + algorithm.ordinal();
+		}
+	}
+
+	/**
+	 * A stored checksum, along with the state of the file when it was calculated.
+	 */
+	private static class Entry {
+		private final long length;
+		private final long lastModified;
+		private final byte[] digest;
+
+		Entry(long length, long lastModified, byte[] digest) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+}
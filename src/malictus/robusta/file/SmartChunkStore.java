@@ -0,0 +1,605 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.string.StringUtils;
+
+/**
+ * A SmartChunkStore is a deduplicating, content-addressed store of files. Each file that is put into the store is split
+ * into chunks, and each chunk is stored under its SHA-256 hash, so that a chunk that several files (or several versions of
+ * a file) have in common is only stored once. A stored file is just a manifest: the list of the chunks that make it up.
+ *
+ * Chunk boundaries are chosen by the content itself, using a rolling "gear" hash (as in FastCDC), rather than at fixed
+ * offsets. This means that inserting or removing data in the middle of a file only changes the chunks around the edit;
+ * the chunks after it are found again, and are not stored a second time.
+ *
+ * Files are split into large segments which are chunked and hashed in parallel. Segment boundaries are always chunk
+ * boundaries too, which costs a chunk or two of deduplication per segment when data has moved.
+ *
+ * The store is a directory with a "chunks" and a "manifests" subdirectory. Files may be put into the store from several
+ * threads at once, but not while the store is being garbage collected.
+ */
+public class SmartChunkStore {
+
+	/**
+	 * The smallest chunk size, 16 KB (apart from the last chunk of each segment, which may be smaller).
+	 */
+	public static final int MIN_CHUNK_SIZE = 16 * 1024;
+	/**
+	 * The chunk size that the chunker aims for on average, 64 KB.
+	 */
+	public static final int AVERAGE_CHUNK_SIZE = 64 * 1024;
+	/**
+	 * The largest chunk size, 256 KB.
+	 */
+	public static final int MAX_CHUNK_SIZE = 256 * 1024;
+	/**
+	 * The size of the segments that files are split into for chunking in parallel, 32 MB.
+	 */
+	public static final int SEGMENT_SIZE = 32 * 1024 * 1024;
+
+	//"RBCM"
+	private static final int MANIFEST_MAGIC = 0x5242434D;
+	private static final int MANIFEST_VERSION = 1;
+	private static final int HASH_LENGTH = 32;
+	//more bits must be zero to cut before the average size, and fewer after it, which keeps chunk sizes close to the average
+	private static final long MASK_SMALL = -1L << (64 - 18);
+	private static final long MASK_LARGE = -1L << (64 - 14);
+	//the gear table; chunk boundaries depend on it, so it must never change, or stored files will no longer deduplicate
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x524F42555354414CL);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	//shared by all chunk stores
+	private static ExecutorService chunkPool = null;
+
+	private final File chunkDir;
+	private final File manifestDir;
+
+	/**
+	 * Open a chunk store, creating its directories if they don't exist yet.
+	 *
+	 * @param directory the directory that holds the store
+	 * @throws IOException if the directories can't be created
+	 */
+	public SmartChunkStore(File directory) throws IOException {
+		chunkDir = new File(directory, "chunks");
+		manifestDir = new File(directory, "manifests");
+		if ((!chunkDir.isDirectory() && !chunkDir.mkdirs()) || (!manifestDir.isDirectory() && !manifestDir.mkdirs())) {
+			throw new IOException("Unable to create chunk store directories");
+		}
+	}
+
+	/**
+	 * Put a file into the store, replacing any file stored under the same name.
+	 *
+	 * @param name the name to store the file under; may not contain path separators or start with a dot
+	 * @param file the file to store
+	 * @param listener a SmartProgressListener to track progress; may be null. It is called from several threads at once.
+	 * 			If canceled, the file isn't stored, though some of its chunks may be; they are removed by collectGarbage().
+	 * @return the manifest of the stored file, which also tells how much of it was new to the store, or null if the task
+	 * 			was canceled
+	 * @throws IOException if the name is incorrect, the file can't be read or the store can't be written
+	 */
+	public Manifest put(String name, File file, final SmartProgressListener listener) throws IOException {
+		File manifestFile = manifestFile(name);
+		FileInputStream fin = new FileInputStream(file);
+		List<Future<List<Chunk>>> segments = new ArrayList<Future<List<Chunk>>>();
+		try {
+			final FileChannel in = fin.getChannel();
+			final long length = in.size();
+			if (listener != null) {
+				listener.progressStarted(length);
+			}
+			final AtomicLong done = new AtomicLong();
+			final AtomicLong written = new AtomicLong();
+			final AtomicLong deduplicated = new AtomicLong();
+			final SmartIOThrottle.Priority priority = SmartIOThrottle.getThreadPriority();
+			for (long pos = 0; pos < length; pos = pos + SEGMENT_SIZE) {
+				final long start = pos;
+				final long end = Math.min(length, pos + SEGMENT_SIZE);
+				segments.add(getChunkPool().submit(new Callable<List<Chunk>>() {
+					public List<Chunk> call() throws IOException {
+						SmartIOThrottle.setThreadPriority(priority);
+						return chunkSegment(in, start, end, length, done, written, deduplicated, listener);
+					}
+				}));
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			boolean canceled = false;
+			IOException error = null;
+			//wait for every segment, even after a failure, so nothing is still reading when the file is closed
+			for (Future<List<Chunk>> segment : segments) {
+				try {
+					chunks.addAll(segment.get());
+				} catch (InterruptedException err) {
+					Thread.currentThread().interrupt();
+					error = new IOException("Interrupted while storing file");
+				} catch (ExecutionException err) {
+					if (err.getCause() instanceof CancellationException) {
+						canceled = true;
+					} else if (error == null) {
+						error = (err.getCause() instanceof IOException) ? (IOException)err.getCause()
+								: new IOException("Error storing file: " + err.getCause());
+					}
+				}
+			}
+			if (error != null) {
+				throw error;
+			}
+			if (canceled) {
+				listener.progressCanceled();
+				return null;
+			}
+			fin.close();
+			Manifest manifest = new Manifest(length, chunks);
+			manifest.bytesWritten = written.get();
+			manifest.bytesDeduplicated = deduplicated.get();
+			writeManifest(manifest, manifestFile);
+			return manifest;
+		} finally {
+			fin.close();
+		}
+	}
+
+	/**
+	 * Restore a stored file. Each chunk is checked against its hash as it is read.
+	 *
+	 * @param name the name the file is stored under
+	 * @param dest the file to write to
+	 * @param overwrite whether to overwrite if file exists already
+	 * @param listener a SmartProgressListener to track progress; may be null. If progress is canceled, this method will
+	 * 			close file refs but will NOT delete the incomplete file itself.
+	 * @return true if the file was restored, or false if the task was canceled
+	 * @throws IOException if the file isn't in the store, a chunk is missing or corrupt, or the file can't be written
+	 */
+	public boolean get(String name, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		Manifest manifest = getManifest(name);
+		if (manifest == null) {
+			throw new IOException("No file named " + name + " in the store");
+		}
+		if (dest.exists() && !overwrite) {
+			throw new IOException("File already exists");
+		}
+		if (listener != null) {
+			listener.progressStarted(manifest.getLength());
+		}
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(MAX_CHUNK_SIZE);
+		FileOutputStream fos = new FileOutputStream(dest);
+		try {
+			FileChannel out = fos.getChannel();
+			Digester digester = ChecksumAlgorithm.SHA256.createDigester();
+			long pos = 0;
+			for (int i = 0; i < manifest.getChunkCount(); i++) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return false;
+					}
+					listener.progressUpdated(pos, manifest.getLength());
+				}
+				String id = StringUtils.toHexString(manifest.chunkIds[i]);
+				int len = manifest.chunkLengths[i];
+				File chunk = chunkFile(id);
+				if (chunk.length() != len) {
+					throw new IOException("Chunk " + id + " is missing or corrupt");
+				}
+				FileInputStream fin = new FileInputStream(chunk);
+				try {
+					buffer.clear();
+					buffer.limit(len);
+					while (buffer.hasRemaining()) {
+						if (fin.getChannel().read(buffer) < 0) {
+							throw new IOException("Unexpected end of file");
+						}
+					}
+				} finally {
+					fin.close();
+				}
+				SmartIOThrottle.charge(len);
+				digester.update(buffer.array(), 0, len);
+				if (!Arrays.equals(digester.digest(), manifest.chunkIds[i])) {
+					throw new IOException("Chunk " + id + " is corrupt");
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				pos = pos + len;
+			}
+		} finally {
+			fos.close();
+			pool.release(buffer);
+		}
+		return true;
+	}
+
+	/**
+	 * Return the manifest of a stored file.
+	 *
+	 * @param name the name the file is stored under
+	 * @return the manifest, or null if there is no file by that name
+	 * @throws IOException if the name is incorrect or the manifest can't be read
+	 */
+	public Manifest getManifest(String name) throws IOException {
+		File file = manifestFile(name);
+		if (!file.exists()) {
+			return null;
+		}
+		return readManifest(file);
+	}
+
+	/**
+	 * Return the names of all stored files.
+	 *
+	 * @return the names, in alphabetical order
+	 */
+	public List<String> list() {
+		List<String> names = new ArrayList<String>();
+		String[] files = manifestDir.list();
+		if (files != null) {
+			for (String file : files) {
+				if (!file.startsWith(".")) {
+					names.add(file);
+				}
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Remove a file from the store. Its chunks are left in place until collectGarbage() is called.
+	 *
+	 * @param name the name the file is stored under
+	 * @return true if the file was removed, or false if there was no file by that name
+	 * @throws IOException if the name is incorrect
+	 */
+	public boolean remove(String name) throws IOException {
+		return manifestFile(name).delete();
+	}
+
+	/**
+	 * Delete every chunk that no stored file uses any more. This must not be called while files are being put into the store.
+	 *
+	 * @return the number of bytes freed
+	 * @throws IOException if a manifest can't be read
+	 */
+	public long collectGarbage() throws IOException {
+		Set<String> used = new HashSet<String>();
+		for (String name : list()) {
+			Manifest manifest = readManifest(new File(manifestDir, name));
+			for (byte[] id : manifest.chunkIds) {
+				used.add(StringUtils.toHexString(id));
+			}
+		}
+		long freed = 0;
+		File[] dirs = chunkDir.listFiles();
+		if (dirs == null) {
+			return 0;
+		}
+		for (File dir : dirs) {
+			File[] chunks = dir.listFiles();
+			if (chunks == null) {
+				continue;
+			}
+			for (File chunk : chunks) {
+				//leftover temp files from interrupted writes go too
+				if (!used.contains(chunk.getName())) {
+					long len = chunk.length();
+					if (chunk.delete()) {
+						freed = freed + len;
+					}
+				}
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Split one segment of a file into chunks, storing any chunks that aren't in the store yet. The bytes stored and the
+	 * bytes found in the store already are added to the counters of the put() that the segment belongs to.
+	 */
+	private List<Chunk> chunkSegment(FileChannel in, long start, long end, long length, AtomicLong done, AtomicLong written,
+			AtomicLong deduplicated, SmartProgressListener listener) throws IOException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		Digester digester = ChecksumAlgorithm.SHA256.createDigester();
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(4 * MAX_CHUNK_SIZE);
+		try {
+			byte[] data = buffer.array();
+			long readPos = start;
+			int filled = 0;
+			int chunkStart = 0;
+			while (true) {
+				if ((listener != null) && listener.isCanceled()) {
+					throw new CancellationException();
+				}
+				if ((filled - chunkStart < MAX_CHUNK_SIZE) && (readPos < end)) {
+					//move what's left to the front, and read more after it
+					System.arraycopy(data, chunkStart, data, 0, filled - chunkStart);
+					filled = filled - chunkStart;
+					chunkStart = 0;
+					buffer.clear();
+					buffer.position(filled);
+					buffer.limit((int)Math.min(buffer.capacity(), filled + (end - readPos)));
+					while (buffer.hasRemaining()) {
+						int count = in.read(buffer, readPos);
+						if (count < 0) {
+							throw new IOException("Unexpected end of file");
+						}
+						readPos = readPos + count;
+					}
+					SmartIOThrottle.charge(buffer.position() - filled);
+					filled = buffer.position();
+				}
+				int available = filled - chunkStart;
+				if (available == 0) {
+					break;
+				}
+				int len = findCut(data, chunkStart, available);
+				digester.update(data, chunkStart, len);
+				byte[] id = digester.digest();
+				if (storeChunk(id, data, chunkStart, len)) {
+					written.addAndGet(len);
+				} else {
+					deduplicated.addAndGet(len);
+				}
+				chunks.add(new Chunk(id, len));
+				chunkStart = chunkStart + len;
+				long total = done.addAndGet(len);
+				if (listener != null) {
+					listener.progressUpdated(total, length);
+				}
+			}
+		} finally {
+			pool.release(buffer);
+		}
+		return chunks;
+	}
+
+	/**
+	 * Find where the chunk starting at the offset should end, and return its length.
+	 */
+	static int findCut(byte[] data, int offset, int available) {
+		if (available <= MIN_CHUNK_SIZE) {
+			return available;
+		}
+		int normal = Math.min(AVERAGE_CHUNK_SIZE, available);
+		int end = Math.min(MAX_CHUNK_SIZE, available);
+		long hash = 0;
+		int i = MIN_CHUNK_SIZE;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((hash & MASK_SMALL) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((hash & MASK_LARGE) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+
+	/**
+	 * Store a chunk unless the store has it already, and return whether it was written.
+	 */
+	private boolean storeChunk(byte[] id, byte[] data, int offset, int len) throws IOException {
+		File chunk = chunkFile(StringUtils.toHexString(id));
+		if (chunk.exists()) {
+			return false;
+		}
+		File dir = chunk.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Unable to create chunk directory");
+		}
+		//written under a temporary name first, so a chunk file is never seen half written
+		File temp = File.createTempFile(".robusta", ".chunk", dir);
+		boolean done = false;
+		FileOutputStream fos = new FileOutputStream(temp);
+		try {
+			SmartIOThrottle.charge(len);
+			fos.write(data, offset, len);
+			fos.close();
+			SmartFile.moveOver(temp, chunk);
+			done = true;
+		} finally {
+			if (!done) {
+				fos.close();
+				temp.delete();
+			}
+		}
+		return true;
+	}
+
+	private File chunkFile(String id) {
+		return new File(new File(chunkDir, id.substring(0, 2)), id);
+	}
+
+	private File manifestFile(String name) throws IOException {
+		if ((name == null) || (name.length() == 0) || name.startsWith(".") || (name.indexOf('/') >= 0) || (name.indexOf('\\') >= 0)) {
+			throw new IOException("Incorrect name");
+		}
+		return new File(manifestDir, name);
+	}
+
+	private void writeManifest(Manifest manifest, File file) throws IOException {
+		File temp = File.createTempFile(".robusta", ".manifest", manifestDir);
+		boolean done = false;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeInt(MANIFEST_VERSION);
+			out.writeLong(manifest.getLength());
+			out.writeInt(manifest.getChunkCount());
+			for (int i = 0; i < manifest.getChunkCount(); i++) {
+				out.writeInt(manifest.chunkLengths[i]);
+				out.write(manifest.chunkIds[i]);
+			}
+			out.close();
+			SmartFile.moveOver(temp, file);
+			done = true;
+		} finally {
+			if (!done) {
+				out.close();
+				temp.delete();
+			}
+		}
+	}
+
+	private static Manifest readManifest(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if ((in.readInt() != MANIFEST_MAGIC) || (in.readInt() != MANIFEST_VERSION)) {
+				throw new IOException("Not a chunk store manifest");
+			}
+			long length = in.readLong();
+			int count = in.readInt();
+			//each chunk takes a length and a hash, so a count the file is too short for is corrupt, not just truncated
+			if ((length < 0) || (count < 0) || (count > file.length() / (4 + HASH_LENGTH))) {
+				throw new IOException("Manifest is corrupt");
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>(count);
+			long total = 0;
+			for (int i = 0; i < count; i++) {
+				int len = in.readInt();
+				if ((len < 1) || (len > MAX_CHUNK_SIZE)) {
+					throw new IOException("Manifest is corrupt");
+				}
+				byte[] id = new byte[HASH_LENGTH];
+				in.readFully(id);
+				chunks.add(new Chunk(id, len));
+				total = total + len;
+			}
+			if (total != length) {
+				throw new IOException("Manifest is corrupt");
+			}
+			return new Manifest(length, chunks);
+		} catch (EOFException err) {
+			throw new IOException("Manifest is truncated");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static synchronized ExecutorService getChunkPool() {
+		if (chunkPool == null) {
+			chunkPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "robusta-chunk");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return chunkPool;
+	}
+
+	private static class Chunk {
+
+		final byte[] id;
+		final int length;
+
+		Chunk(byte[] id, int length) {
+			this.id = id;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * The manifest of a stored file: the hashes and lengths of the chunks that make it up, in order.
+	 */
+	public static class Manifest implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long length;
+		final byte[][] chunkIds;
+		final int[] chunkLengths;
+		//set by put(), for that put alone
+		long bytesWritten = 0;
+		long bytesDeduplicated = 0;
+
+		Manifest(long length, List<Chunk> chunks) {
+			this.length = length;
+			this.chunkIds = new byte[chunks.size()][];
+			this.chunkLengths = new int[chunks.size()];
+			for (int i = 0; i < chunks.size(); i++) {
+				chunkIds[i] = chunks.get(i).id;
+				chunkLengths[i] = chunks.get(i).length;
+			}
+		}
+
+		/**
+		 * Return the length of the stored file.
+		 *
+		 * @return the length, in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Return the number of chunks that make up the stored file.
+		 *
+		 * @return the number of chunks
+		 */
+		public int getChunkCount() {
+			return chunkIds.length;
+		}
+
+		/**
+		 * Return the SHA-256 hash of a chunk, as an uppercase hex string. This is also its name in the store.
+		 *
+		 * @param index the index of the chunk
+		 * @return the hex string
+		 */
+		public String getChunkId(int index) {
+			return StringUtils.toHexString(chunkIds[index]);
+		}
+
+		/**
+		 * Return the length of a chunk.
+		 *
+		 * @param index the index of the chunk
+		 * @return the length, in bytes
+		 */
+		public int getChunkLength(int index) {
+			return chunkLengths[index];
+		}
+
+		/**
+		 * Return the number of bytes of new chunks that the put() which returned this manifest wrote to the store.
+		 *
+		 * @return the number of bytes; 0 for a manifest read back from the store
+		 */
+		public long getBytesWritten() {
+			return bytesWritten;
+		}
+
+		/**
+		 * Return the number of bytes that the put() which returned this manifest found in the store already, and didn't
+		 * need to write.
+		 *
+		 * @return the number of bytes; 0 for a manifest read back from the store
+		 */
+		public long getBytesDeduplicated() {
+			return bytesDeduplicated;
+		}
+	}
+
+}
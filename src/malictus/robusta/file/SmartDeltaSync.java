@@ -0,0 +1,775 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartDeltaSync brings an existing copy of a file up to date with the original, rewriting only the parts that have
+ * changed, in the manner of rsync. The existing copy (the destination) is split into fixed-size blocks, and a weak
+ * rolling checksum and a strong hash are calculated for each block; this is its Signature. The source is then scanned
+ * with a window that rolls one byte at a time, looking for data that matches a block of the destination.
+ *
+ * The destination is updated in place, as rsync --inplace does. Blocks that are already in the right position are left
+ * alone; blocks that have moved are copied within the destination, so that data shifted by an insert or a delete doesn't
+ * have to be read from the source again; and only new data is copied from the source. Blocks moving toward the start of
+ * the file are copied first, working from the start, and then blocks moving toward the end, working from the end, so that
+ * no block is overwritten before it has been copied. In the rare case that a block moving toward the end would be
+ * overwritten by one moving toward the start, it is copied from the source instead.
+ */
+public class SmartDeltaSync {
+
+	/**
+	 * The smallest block size used when the block size is chosen automatically.
+	 */
+	public static final int MIN_BLOCK_SIZE = 2048;
+	/**
+	 * The largest block size used when the block size is chosen automatically.
+	 */
+	public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	//shared by all signature calculations
+	private static ForkJoinPool signaturePool = null;
+
+	private final File source;
+	private final File dest;
+	private int blockSize = 0;
+	private long bytesWritten = 0;
+	private long bytesMatched = 0;
+	private long bytesMoved = 0;
+
+	/**
+	 * Set up a delta sync.
+	 *
+	 * @param source the up-to-date file
+	 * @param dest the existing copy, which will be updated to match the source
+	 */
+	public SmartDeltaSync(File source, File dest) {
+		this.source = source;
+		this.dest = dest;
+	}
+
+	/**
+	 * Set the block size. If 0 (the default), a block size is chosen based on the file size.
+	 *
+	 * @param blockSize the block size, in bytes
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Return the number of bytes copied from the source to the destination by the last sync.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Return the number of bytes of the source that were found to be in the destination already, whether at the same
+	 * position or somewhere else.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesMatched() {
+		return bytesMatched;
+	}
+
+	/**
+	 * Return the number of bytes that were found in the destination at a different position, and so were copied within
+	 * the destination by the last sync. These are also counted by getBytesMatched.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesMoved() {
+		return bytesMoved;
+	}
+
+	/**
+	 * Update the destination to match the source. If the destination doesn't exist, the source is simply copied.
+	 *
+	 * @param listener a SmartProgressListener to track progress; may be null. The task may only be canceled while the
+	 * 			files are being read; once writing starts, it is not checked, since the destination would be left
+	 * 			partly updated.
+	 * @return true if the sync finished, or false if it was canceled
+	 * @throws IOException if the files can't be read or written
+	 */
+	public boolean sync(final SmartProgressListener listener) throws IOException {
+		bytesWritten = 0;
+		bytesMatched = 0;
+		bytesMoved = 0;
+		if (dest.getAbsoluteFile().equals(source.getAbsoluteFile())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		final long sourceLength = source.length();
+		if (!dest.exists()) {
+			SmartFile.copyFile(source, dest, false, (SmartProgressListener)null);
+			bytesWritten = sourceLength;
+			return true;
+		}
+		final long destLength = dest.length();
+		final long total = destLength + sourceLength;
+		if (listener != null) {
+			listener.progressStarted(total);
+		}
+		int size = (blockSize > 0) ? blockSize : chooseBlockSize(Math.max(sourceLength, destLength));
+		//reading the destination is the first part of the task
+		SmartProgressListener signatureListener = null;
+		if (listener != null) {
+			signatureListener = new SmartProgressListener() {
+				public void progressStarted(long ignored) {
+				}
+
+				public void progressUpdated(long completed, long ignored) {
+					listener.progressUpdated(completed, total);
+				}
+
+				public boolean isCanceled() {
+					return listener.isCanceled();
+				}
+
+				public void progressCanceled() {
+					listener.progressCanceled();
+				}
+			};
+		}
+		Signature signature = Signature.calculate(dest, size, signatureListener);
+		if (signature == null) {
+			return false;
+		}
+		FileInputStream fin = new FileInputStream(source);
+		RandomAccessFile raf = new RandomAccessFile(dest, "rw");
+		try {
+			InPlaceWriter writer = new InPlaceWriter(fin.getChannel(), raf.getChannel(), size, listener, destLength, total);
+			try {
+				scan(signature, fin.getChannel(), sourceLength, writer, null);
+			} catch (CancellationException err) {
+				fin.close();
+				raf.close();
+				listener.progressCanceled();
+				return false;
+			}
+			writer.apply();
+			bytesWritten = writer.written;
+			bytesMatched = writer.matched;
+			bytesMoved = writer.moved;
+			raf.setLength(sourceLength);
+			fin.close();
+			raf.close();
+		} catch (IOException err) {
+			fin.close();
+			raf.close();
+			throw err;
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the results of a scan, and then applies them to the destination in place. Each move is kept as {new
+	 * position, old position, length} and each stretch of new data as {position, length}, with neighbouring ones combined.
+	 * Nothing is written until the scan is finished, since a block can't be moved until it is known where everything else
+	 * is going.
+	 */
+	private static class InPlaceWriter implements DeltaHandler {
+
+		private final FileChannel in;
+		private final FileChannel out;
+		private final int blockSize;
+		private final SmartProgressListener listener;
+		private final long progressBase;
+		private final long progressTotal;
+		private final List<long[]> moves = new ArrayList<long[]>();
+		private final List<long[]> literals = new ArrayList<long[]>();
+		long written = 0;
+		long matched = 0;
+		long moved = 0;
+
+		InPlaceWriter(FileChannel in, FileChannel out, int blockSize, SmartProgressListener listener, long progressBase, long progressTotal) {
+			this.in = in;
+			this.out = out;
+			this.blockSize = blockSize;
+			this.listener = listener;
+			this.progressBase = progressBase;
+			this.progressTotal = progressTotal;
+		}
+
+		public void match(int block, long offset, int length) throws IOException {
+			matched = matched + length;
+			long blockPos = (long)block * blockSize;
+			if (blockPos == offset) {
+				return;
+			}
+			if (!moves.isEmpty()) {
+				long[] last = moves.get(moves.size() - 1);
+				if ((last[0] + last[2] == offset) && (last[1] + last[2] == blockPos)) {
+					last[2] = last[2] + length;
+					return;
+				}
+			}
+			moves.add(new long[] {offset, blockPos, length});
+		}
+
+		public void literal(long offset, long length) throws IOException {
+			if (!literals.isEmpty()) {
+				long[] last = literals.get(literals.size() - 1);
+				if (last[0] + last[1] == offset) {
+					last[1] = last[1] + length;
+					return;
+				}
+			}
+			literals.add(new long[] {offset, length});
+		}
+
+		public void progress(long offset) {
+			if (listener != null) {
+				if (listener.isCanceled()) {
+					throw new CancellationException();
+				}
+				listener.progressUpdated(progressBase + offset, progressTotal);
+			}
+		}
+
+		void apply() throws IOException {
+			//the moves were found in order, so the ones toward the start of the file are already sorted by where they go
+			TreeMap<Long, Long> forward = new TreeMap<Long, Long>();
+			List<long[]> backward = new ArrayList<long[]>();
+			for (long[] move : moves) {
+				if (move[1] > move[0]) {
+					forward.put(move[0], move[0] + move[2]);
+				} else {
+					backward.add(move);
+				}
+			}
+			Iterator<long[]> it = backward.iterator();
+			while (it.hasNext()) {
+				long[] move = it.next();
+				Map.Entry<Long, Long> target = forward.lowerEntry(move[1] + move[2]);
+				if ((target != null) && (target.getValue() > move[1])) {
+					literals.add(new long[] {move[0], move[2]});
+					it.remove();
+				}
+			}
+			for (long[] move : moves) {
+				if (move[1] > move[0]) {
+					copyWithin(move[1], move[0], move[2]);
+				}
+			}
+			for (int i = backward.size() - 1; i >= 0; i--) {
+				long[] move = backward.get(i);
+				copyWithin(move[1], move[0], move[2]);
+			}
+			for (long[] literal : literals) {
+				out.position(literal[0]);
+				SmartFile.transferRange(in, literal[0], literal[1], out);
+				written = written + literal[1];
+			}
+		}
+
+		/**
+		 * Copy a range of the destination to another position in it. A range moving toward the start is copied from its
+		 * start, and one moving toward the end from its end, so that where the two overlap, nothing is overwritten before
+		 * it has been read.
+		 */
+		private void copyWithin(long from, long to, long length) throws IOException {
+			int bufferSize = (int)Math.min(length, SmartDeviceProfile.getDefault().getBufferSize());
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquire(bufferSize);
+			try {
+				long done = 0;
+				while (done < length) {
+					int len = (int)Math.min(bufferSize, length - done);
+					long offset = (from > to) ? done : (length - done - len);
+					buffer.clear();
+					buffer.limit(len);
+					while (buffer.hasRemaining()) {
+						if (out.read(buffer, from + offset + buffer.position()) < 0) {
+							throw new IOException("Unexpected end of file");
+						}
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer, to + offset + buffer.position());
+					}
+					SmartIOThrottle.charge(len);
+					done = done + len;
+				}
+			} finally {
+				pool.release(buffer);
+			}
+			moved = moved + length;
+		}
+	}
+
+	/**
+	 * Choose a block size of about the square root of the file size, which balances the size of the signature against
+	 * how finely changes can be found.
+	 */
+	static int chooseBlockSize(long length) {
+		int size = (int)Math.sqrt((double)length) & ~7;
+		return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Scan a file for data that matches blocks of a signature, reporting each match and each stretch of unmatched data to
+	 * a handler, in order. Where the same data is in several blocks, the block at the current position is preferred, and
+	 * then one further on. A block from elsewhere isn't taken if it would step over a block boundary where the data is
+	 * unchanged, since that would hide a match at the block's own position, which costs nothing to keep in place.
+	 *
+	 * @param signature the signature of the other file
+	 * @param in the file to scan
+	 * @param length the length of the file to scan
+	 * @param handler the handler to report to
+	 * @param hash a digester to pass the whole of the file through, in order, as it is read; may be null
+	 * @throws IOException if the file can't be read
+	 */
+	static void scan(Signature signature, FileChannel in, long length, DeltaHandler handler, Digester hash) throws IOException {
+		int size = signature.getBlockSize();
+		Map<Integer, List<Integer>> table = signature.getWeakTable();
+		Digester strong = ChecksumAlgorithm.MD5.createDigester();
+		SourceWindow window = new SourceWindow(in, length, Math.max(size * 4, 1024 * 1024), hash);
+		long pos = 0;
+		long literalStart = 0;
+		long nextProgress = 0;
+		long checkedBoundary = -1;
+		boolean boundaryMatches = false;
+		RollingChecksum weak = null;
+		while (pos < length) {
+			if (pos >= nextProgress) {
+				handler.progress(pos);
+				nextProgress = pos + (1024 * 1024);
+			}
+			int len = (int)Math.min(size, length - pos);
+			window.ensure(pos, len);
+			if (weak == null) {
+				weak = new RollingChecksum(window.buffer, window.offsetOf(pos), len);
+			}
+			int match = -1;
+			List<Integer> candidates = table.get(weak.value());
+			if (candidates != null) {
+				byte[] digest = null;
+				for (int block : candidates) {
+					if (signature.getBlockLength(block) != len) {
+						continue;
+					}
+					if (digest == null) {
+						strong.update(window.buffer, window.offsetOf(pos), len);
+						digest = strong.digest();
+					}
+					if (Arrays.equals(digest, signature.strongHashes[block])) {
+						if ((long)block * size == pos) {
+							match = block;
+							break;
+						}
+						if ((match < 0) || (((long)match * size < pos) && ((long)block * size > pos))) {
+							match = block;
+						}
+					}
+				}
+			}
+			if ((match >= 0) && ((long)match * size != pos) && (pos % size != 0)) {
+				long boundary = ((pos / size) + 1) * size;
+				if (boundary != checkedBoundary) {
+					checkedBoundary = boundary;
+					boundaryMatches = matchesInPlace(signature, window, pos, boundary, length, strong);
+				}
+				if (boundaryMatches) {
+					match = -1;
+				}
+			}
+			if (match >= 0) {
+				if (literalStart < pos) {
+					handler.literal(literalStart, pos - literalStart);
+				}
+				handler.match(match, pos, len);
+				pos = pos + len;
+				literalStart = pos;
+				weak = null;
+				continue;
+			}
+			if (len < size) {
+				//the tail can only match the destination's last block, if that is short; skip ahead to where it would be
+				int lastLength = (signature.getBlockCount() > 0) ? signature.getBlockLength(signature.getBlockCount() - 1) : size;
+				if ((lastLength < size) && (length - lastLength > pos)) {
+					pos = length - lastLength;
+					weak = null;
+					continue;
+				}
+				break;
+			}
+			//roll the window on by one byte
+			long next = pos + size;
+			if (next < length) {
+				window.ensure(pos, size + 1);
+				weak.roll(window.buffer[window.offsetOf(pos)], window.buffer[window.offsetOf(next)]);
+			} else {
+				weak = null;
+			}
+			pos = pos + 1;
+		}
+		if (literalStart < length) {
+			handler.literal(literalStart, length - literalStart);
+		}
+		window.readToEnd();
+		handler.progress(length);
+	}
+
+	/**
+	 * Check whether the data at a block boundary matches the block that was there, with the window kept from an earlier
+	 * position.
+	 */
+	private static boolean matchesInPlace(Signature signature, SourceWindow window, long from, long boundary, long length, Digester strong)
+			throws IOException {
+		int block = (int)(boundary / signature.getBlockSize());
+		if (block >= signature.getBlockCount()) {
+			return false;
+		}
+		int len = signature.getBlockLength(block);
+		if (length - boundary < len) {
+			return false;
+		}
+		window.ensure(from, (int)(boundary - from) + len);
+		if (RollingChecksum.of(window.buffer, window.offsetOf(boundary), len) != signature.weakChecksums[block]) {
+			return false;
+		}
+		strong.update(window.buffer, window.offsetOf(boundary), len);
+		return Arrays.equals(strong.digest(), signature.strongHashes[block]);
+	}
+
+	/**
+	 * Receives the results of a scan, in order.
+	 */
+	interface DeltaHandler {
+
+		/**
+		 * Data at the offset matches a block of the signature.
+		 */
+		void match(int block, long offset, int length) throws IOException;
+
+		/**
+		 * Data at the offset doesn't match anything in the signature.
+		 */
+		void literal(long offset, long length) throws IOException;
+
+		/**
+		 * The scan has reached the offset.
+		 */
+		void progress(long offset);
+	}
+
+	/**
+	 * The rsync weak checksum: two 16-bit sums over a window, which can be rolled along by one byte cheaply.
+	 */
+	static class RollingChecksum {
+
+		private final int length;
+		private int a = 0;
+		private int b = 0;
+
+		RollingChecksum(byte[] data, int offset, int length) {
+			this.length = length;
+			for (int i = 0; i < length; i++) {
+				int x = data[offset + i] & 0xFF;
+				a = a + x;
+				b = b + ((length - i) * x);
+			}
+		}
+
+		void roll(byte out, byte in) {
+			int x = out & 0xFF;
+			a = a - x + (in & 0xFF);
+			b = b - (length * x) + a;
+		}
+
+		int value() {
+			return ((b & 0xFFFF) << 16) | (a & 0xFFFF);
+		}
+
+		static int of(byte[] data, int offset, int length) {
+			return new RollingChecksum(data, offset, length).value();
+		}
+	}
+
+	/**
+	 * A buffered window onto a channel, which is refilled as needed so that a given range is always in memory. The window
+	 * only ever moves forward, and reads each byte once, so it can hash the data as it goes.
+	 */
+	static class SourceWindow {
+
+		final byte[] buffer;
+		private final FileChannel in;
+		private final long length;
+		private final Digester hash;
+		private long start = 0;
+		private int filled = 0;
+
+		SourceWindow(FileChannel in, long length, int capacity, Digester hash) {
+			this.in = in;
+			this.length = length;
+			this.buffer = new byte[capacity];
+			this.hash = hash;
+		}
+
+		/**
+		 * Read whatever the scan skipped over at the end of the file, so that all of it has been hashed.
+		 */
+		void readToEnd() throws IOException {
+			while (start + filled < length) {
+				ensure(start + filled, buffer.length);
+			}
+		}
+
+		int offsetOf(long pos) {
+			return (int)(pos - start);
+		}
+
+		/**
+		 * Make sure that len bytes from pos (or as many as there are before the end of the file) are in the buffer.
+		 */
+		void ensure(long pos, int len) throws IOException {
+			long end = Math.min(length, pos + len);
+			if ((pos >= start) && (end <= start + filled)) {
+				return;
+			}
+			//keep whatever is still needed, and read more after it
+			int keep = 0;
+			if ((pos >= start) && (pos < start + filled)) {
+				keep = (int)(start + filled - pos);
+				System.arraycopy(buffer, (int)(pos - start), buffer, 0, keep);
+			}
+			start = pos;
+			filled = keep;
+			ByteBuffer target = ByteBuffer.wrap(buffer);
+			while ((filled < buffer.length) && (start + filled < length)) {
+				target.limit((int)Math.min(buffer.length, length - start));
+				target.position(filled);
+				int count = in.read(target, start + filled);
+				if (count < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				if (hash != null) {
+					hash.update(buffer, filled, count);
+				}
+				filled = filled + count;
+				SmartIOThrottle.charge(count);
+			}
+		}
+	}
+
+	private static synchronized ForkJoinPool getSignaturePool() {
+		if (signaturePool == null) {
+			signaturePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return signaturePool;
+	}
+
+	/**
+	 * Hashes a range of blocks for a signature, by splitting the range in half and hashing each half in parallel. Each
+	 * task reads its own blocks with positional reads, so the tasks don't share a file position.
+	 */
+	private static class SignatureTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel in;
+		private final int blockSize;
+		private final long length;
+		private final int[] weak;
+		private final byte[][] strong;
+		private final int first;
+		private final int last;
+		private final int blocksPerTask;
+		private final AtomicLong done;
+		private final SmartProgressListener listener;
+		private final SmartIOThrottle.Priority priority;
+
+		SignatureTask(FileChannel in, int blockSize, long length, int[] weak, byte[][] strong, int first, int last, int blocksPerTask,
+				AtomicLong done, SmartProgressListener listener, SmartIOThrottle.Priority priority) {
+			this.in = in;
+			this.blockSize = blockSize;
+			this.length = length;
+			this.weak = weak;
+			this.strong = strong;
+			this.first = first;
+			this.last = last;
+			this.blocksPerTask = blocksPerTask;
+			this.done = done;
+			this.listener = listener;
+			this.priority = priority;
+		}
+
+		protected void compute() {
+			if (last - first > blocksPerTask) {
+				int mid = (first + last) >>> 1;
+				invokeAll(new SignatureTask(in, blockSize, length, weak, strong, first, mid, blocksPerTask, done, listener, priority),
+						new SignatureTask(in, blockSize, length, weak, strong, mid, last, blocksPerTask, done, listener, priority));
+				return;
+			}
+			try {
+				hashBlocks();
+			} catch (IOException err) {
+				throw new RuntimeException(err);
+			}
+		}
+
+		private void hashBlocks() throws IOException {
+			Digester digester = ChecksumAlgorithm.MD5.createDigester();
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquireHeap(blockSize);
+			try {
+				for (int i = first; i < last; i++) {
+					if ((listener != null) && listener.isCanceled()) {
+						throw new CancellationException();
+					}
+					long pos = (long)i * blockSize;
+					int len = (int)Math.min(blockSize, length - pos);
+					buffer.clear();
+					buffer.limit(len);
+					while (buffer.hasRemaining()) {
+						if (in.read(buffer, pos + buffer.position()) < 0) {
+							throw new IOException("Unexpected end of file");
+						}
+					}
+					SmartIOThrottle.charge(len, priority);
+					weak[i] = RollingChecksum.of(buffer.array(), 0, len);
+					digester.update(buffer.array(), 0, len);
+					strong[i] = digester.digest();
+					long total = done.addAndGet(len);
+					if (listener != null) {
+						listener.progressUpdated(total, length);
+					}
+				}
+			} finally {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * The signature of a file: a weak checksum and a strong hash for each of its blocks. Signatures are Serializable, so
+	 * that they can be calculated in one place and used in another.
+	 */
+	public static class Signature implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int blockSize;
+		private final long fileLength;
+		final int[] weakChecksums;
+		final byte[][] strongHashes;
+		private transient Map<Integer, List<Integer>> weakTable = null;
+
+		Signature(int blockSize, long fileLength, int[] weakChecksums, byte[][] strongHashes) {
+			this.blockSize = blockSize;
+			this.fileLength = fileLength;
+			this.weakChecksums = weakChecksums;
+			this.strongHashes = strongHashes;
+		}
+
+		/**
+		 * Calculate the signature of a file. Blocks are hashed in parallel.
+		 *
+		 * @param file the file
+		 * @param blockSize the block size, in bytes
+		 * @param listener a SmartProgressListener to track progress; may be null. It is called from several threads at once.
+		 * @return the signature, or null if the task was canceled
+		 * @throws IOException if the file can't be read
+		 */
+		public static Signature calculate(File file, int blockSize, SmartProgressListener listener) throws IOException {
+			if (blockSize <= 0) {
+				throw new IOException("Incorrect block size");
+			}
+			FileInputStream fin = new FileInputStream(file);
+			try {
+				FileChannel in = fin.getChannel();
+				long length = in.size();
+				if (listener != null) {
+					listener.progressStarted(length);
+				}
+				int blocks = (int)((length + blockSize - 1) / blockSize);
+				int[] weak = new int[blocks];
+				byte[][] strong = new byte[blocks][];
+				if (blocks > 0) {
+					//hash about a megabyte's worth of blocks at a time
+					int blocksPerTask = Math.max(1, (1024 * 1024) / blockSize);
+					SignatureTask root = new SignatureTask(in, blockSize, length, weak, strong, 0, blocks, blocksPerTask, new AtomicLong(), listener,
+							SmartIOThrottle.getThreadPriority());
+					try {
+						getSignaturePool().invoke(root);
+					} catch (CancellationException err) {
+						fin.close();
+						listener.progressCanceled();
+						return null;
+					} catch (RuntimeException err) {
+						//the IOException from a worker thread may be wrapped more than once
+						Throwable cause = err.getCause();
+						while ((cause != null) && !(cause instanceof IOException)) {
+							cause = cause.getCause();
+						}
+						if (cause != null) {
+							throw (IOException)cause;
+						}
+						throw err;
+					}
+				}
+				fin.close();
+				return new Signature(blockSize, length, weak, strong);
+			} catch (IOException err) {
+				fin.close();
+				throw err;
+			}
+		}
+
+		/**
+		 * Return the block size.
+		 *
+		 * @return the block size, in bytes
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * Return the length of the file the signature is for.
+		 *
+		 * @return the length, in bytes
+		 */
+		public long getFileLength() {
+			return fileLength;
+		}
+
+		/**
+		 * Return the number of blocks.
+		 *
+		 * @return the number of blocks
+		 */
+		public int getBlockCount() {
+			return weakChecksums.length;
+		}
+
+		int getBlockLength(int block) {
+			return (int)Math.min(blockSize, fileLength - ((long)block * blockSize));
+		}
+
+		synchronized Map<Integer, List<Integer>> getWeakTable() {
+			if (weakTable == null) {
+				weakTable = new HashMap<Integer, List<Integer>>();
+				for (int i = 0; i < weakChecksums.length; i++) {
+					List<Integer> blocks = weakTable.get(weakChecksums[i]);
+					if (blocks == null) {
+						blocks = new ArrayList<Integer>(1);
+						weakTable.put(weakChecksums[i], blocks);
+					}
+					blocks.add(i);
+				}
+			}
+			return weakTable;
+		}
+	}
+
+}
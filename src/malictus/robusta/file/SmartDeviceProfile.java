@@ -0,0 +1,183 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SmartDeviceProfile holds I/O tuning settings for a storage device, such as the buffer size that SmartFile operations
+ * should use on it, and the number of bulk operations that may use it at once. Profiles are registered against a path
+ * prefix, normally the mount point of the device (such as "/mnt/nvme" or "D:\"); a file uses the profile of the longest
+ * registered prefix that contains it, or the default profile if there is none.
+ */
+public class SmartDeviceProfile {
+
+	/**
+	 * The default buffer size, 64 KB.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	/**
+	 * The default number of bulk operations that may use a device at once.
+	 */
+	public static final int DEFAULT_MAX_CONCURRENCY = 64;
+
+	private static final AtomicLong nextId = new AtomicLong();
+	private static volatile SmartDeviceProfile defaultProfile = new SmartDeviceProfile(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_CONCURRENCY);
+	//sorted so that longer prefixes come first
+	private static final Map<String, SmartDeviceProfile> profiles = new TreeMap<String, SmartDeviceProfile>(new Comparator<String>() {
+		public int compare(String a, String b) {
+			if (a.length() != b.length()) {
+				return b.length() - a.length();
+			}
+			return a.compareTo(b);
+		}
+	});
+
+	private final int bufferSize;
+	private final int maxConcurrency;
+	//limits bulk operations on the device; shared by every file that uses this profile
+	private final Semaphore permits;
+	//gives profiles a fixed order, so that permits for several devices are always taken in the same order
+	private final long id = nextId.getAndIncrement();
+
+	/**
+	 * Create a device profile, with the default concurrency limit.
+	 *
+	 * @param bufferSize the buffer size to use for reading and writing files on the device, in bytes
+	 */
+	public SmartDeviceProfile(int bufferSize) {
+		this(bufferSize, DEFAULT_MAX_CONCURRENCY);
+	}
+
+	/**
+	 * Create a device profile.
+	 *
+	 * @param bufferSize the buffer size to use for reading and writing files on the device, in bytes
+	 * @param maxConcurrency the number of bulk operations that may use the device at once
+	 */
+	public SmartDeviceProfile(int bufferSize, int maxConcurrency) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Incorrect buffer size");
+		}
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException("Incorrect concurrency limit");
+		}
+		this.bufferSize = bufferSize;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency, true);
+	}
+
+	/**
+	 * Return the buffer size to use for reading and writing files on the device.
+	 *
+	 * @return the buffer size, in bytes
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Return the number of bulk operations that may use the device at once. See SmartBulkExecutor.
+	 *
+	 * @return the concurrency limit
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	Semaphore getPermits() {
+		return permits;
+	}
+
+	long getId() {
+		return id;
+	}
+
+	/**
+	 * Register a profile for all files under a path, such as a mount point.
+	 *
+	 * @param path the path
+	 * @param profile the profile for the device
+	 */
+	public static void register(File path, SmartDeviceProfile profile) {
+		synchronized (profiles) {
+			profiles.put(path.getAbsolutePath(), profile);
+		}
+	}
+
+	/**
+	 * Remove a profile that was registered for a path.
+	 *
+	 * @param path the path
+	 */
+	public static void unregister(File path) {
+		synchronized (profiles) {
+			profiles.remove(path.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Return the profile used for files that aren't under any registered path.
+	 *
+	 * @return the default profile
+	 */
+	public static SmartDeviceProfile getDefault() {
+		return defaultProfile;
+	}
+
+	/**
+	 * Set the profile used for files that aren't under any registered path.
+	 *
+	 * @param profile the new default profile
+	 */
+	public static void setDefault(SmartDeviceProfile profile) {
+		if (profile == null) {
+			throw new NullPointerException("profile");
+		}
+		defaultProfile = profile;
+	}
+
+	/**
+	 * Return the profile for the device that a file is on.
+	 *
+	 * @param file the file
+	 * @return the profile registered for the longest path containing the file, or the default profile
+	 */
+	public static SmartDeviceProfile forFile(File file) {
+		String path = file.getAbsolutePath();
+		synchronized (profiles) {
+			for (Map.Entry<String, SmartDeviceProfile> entry : profiles.entrySet()) {
+				if (isUnder(path, entry.getKey())) {
+					return entry.getValue();
+				}
+			}
+		}
+		return defaultProfile;
+	}
+
+	/**
+	 * Return the buffer size to use for an operation that reads and writes the given files; this is the largest of
+	 * their devices' buffer sizes.
+	 *
+	 * @param files the files involved
+	 * @return the buffer size, in bytes
+	 */
+	public static int bufferSizeFor(File... files) {
+		int size = 0;
+		for (File file : files) {
+			size = Math.max(size, forFile(file).getBufferSize());
+		}
+		return (size > 0) ? size : defaultProfile.getBufferSize();
+	}
+
+	private static boolean isUnder(String path, String prefix) {
+		if (!path.startsWith(prefix)) {
+			return false;
+		}
+		//a prefix of "/mnt/a" shouldn't match "/mnt/ab"
+		return (path.length() == prefix.length()) || prefix.endsWith(File.separator)
+				|| (path.charAt(prefix.length()) == File.separatorChar);
+	}
+
+}
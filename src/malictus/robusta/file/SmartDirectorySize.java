@@ -0,0 +1,336 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartDirectorySize calculates the total size of directory trees, and remembers the totals for every directory it
+ * has been through, so that asking again about an unchanged tree (or any part of it) returns at once. Directories are
+ * listed in parallel on a work-stealing pool.
+ *
+ * Each directory whose total is remembered is watched with a WatchService. When anything in it changes, its total, and
+ * the totals of all the directories above it, are forgotten, and are calculated again the next time they are asked for.
+ * If a directory can't be watched (for instance, because the operating system's limit on watches has been reached),
+ * neither its total nor the total of any directory above it is remembered, so a stale total is never returned.
+ *
+ * Symbolic links are counted as files, and are not followed.
+ */
+public class SmartDirectorySize implements Closeable {
+
+	//shared by all directory size calculators
+	private static ForkJoinPool sizePool = null;
+
+	private final WatchService watcher;
+	private final Thread watchThread;
+	private final Map<Path, Totals> cache = new ConcurrentHashMap<Path, Totals>();
+	private final Map<Path, WatchKey> watched = new ConcurrentHashMap<Path, WatchKey>();
+	//bumped whenever anything is forgotten, so that a total calculated across a change isn't remembered
+	private final AtomicLong generation = new AtomicLong();
+	//held while forgetting totals, and while checking the generation and remembering a total, so the two can't interleave
+	private final Object cacheLock = new Object();
+
+	/**
+	 * Create a directory size calculator with an empty cache.
+	 *
+	 * @throws IOException if the file system can't be watched
+	 */
+	public SmartDirectorySize() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+		watchThread = new Thread("robusta-dirsize") {
+			public void run() {
+				watch();
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/**
+	 * Return the totals for a directory tree, from the cache if they are there.
+	 *
+	 * @param dir the directory
+	 * @param listener a SmartProgressListener to track progress, counted in directories listed; may be null. The total
+	 * 			is not known in advance, so it is always 0. It is called from several threads at once.
+	 * @return the totals, or null if the task was canceled
+	 * @throws IOException if the directory can't be read
+	 */
+	public Totals getSize(File dir, SmartProgressListener listener) throws IOException {
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			throw new IOException("Not a directory");
+		}
+		Totals cached = cache.get(path);
+		if (cached != null) {
+			return cached;
+		}
+		if (listener != null) {
+			listener.progressStarted(0);
+		}
+		try {
+			return getSizePool().invoke(new SizeTask(path, listener, new AtomicLong()));
+		} catch (CancellationException err) {
+			listener.progressCanceled();
+			return null;
+		}
+	}
+
+	/**
+	 * Forget the totals for a file or directory, and for every directory above it. This is done automatically when
+	 * changes are seen, but may be needed on file systems where changes aren't reported, such as network shares.
+	 *
+	 * @param file the file or directory that has changed
+	 */
+	public void invalidate(File file) {
+		invalidate(file.toPath().toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Forget all totals.
+	 */
+	public void clearCache() {
+		synchronized (cacheLock) {
+			generation.incrementAndGet();
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Stop watching directories, and forget all totals.
+	 *
+	 * @throws IOException if the watch service can't be closed
+	 */
+	public void close() throws IOException {
+		watcher.close();
+		clearCache();
+		watched.clear();
+	}
+
+	private void invalidate(Path path) {
+		synchronized (cacheLock) {
+			generation.incrementAndGet();
+			if (cache.remove(path) != null) {
+				//a directory; forget everything below it too
+				Iterator<Path> it = cache.keySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().startsWith(path)) {
+						it.remove();
+					}
+				}
+			}
+			Path parent = path.getParent();
+			while (parent != null) {
+				cache.remove(parent);
+				parent = parent.getParent();
+			}
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				Path dir = (Path)key.watchable();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						//changes were missed
+						clearCache();
+					} else {
+						invalidate(dir.resolve((Path)event.context()));
+					}
+				}
+				if (!key.reset()) {
+					//the directory is gone, or can't be watched any more
+					watched.remove(dir);
+					invalidate(dir);
+				}
+			}
+		} catch (ClosedWatchServiceException err) {
+			//closed
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Start watching a directory, if it isn't being watched already. Returns false if it can't be watched.
+	 */
+	private boolean startWatching(Path dir) {
+		if (watched.containsKey(dir)) {
+			return true;
+		}
+		try {
+			watched.put(dir, dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY));
+			return true;
+		} catch (IOException err) {
+			return false;
+		} catch (ClosedWatchServiceException err) {
+			return false;
+		}
+	}
+
+	private static synchronized ForkJoinPool getSizePool() {
+		if (sizePool == null) {
+			//listing directories mostly waits on the disk, so more threads than processors help
+			sizePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+		}
+		return sizePool;
+	}
+
+	/**
+	 * Totals a directory: its own files are added up directly, and its subdirectories are totalled in parallel.
+	 */
+	private class SizeTask extends RecursiveTask<Totals> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+		private final SmartProgressListener listener;
+		private final AtomicLong listed;
+
+		SizeTask(Path dir, SmartProgressListener listener, AtomicLong listed) {
+			this.dir = dir;
+			this.listener = listener;
+			this.listed = listed;
+		}
+
+		protected Totals compute() {
+			Totals cached = cache.get(dir);
+			if (cached != null) {
+				return cached;
+			}
+			if ((listener != null) && listener.isCanceled()) {
+				throw new CancellationException();
+			}
+			long startGeneration = generation.get();
+			//watch before listing, so that no change after the listing can be missed
+			boolean watching = startWatching(dir);
+			long bytes = 0;
+			long files = 0;
+			long directories = 0;
+			boolean complete = true;
+			List<SizeTask> subdirs = new ArrayList<SizeTask>();
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+				try {
+					for (Path child : stream) {
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException err) {
+							//deleted since it was listed, or can't be read
+							complete = false;
+							continue;
+						}
+						if (attrs.isDirectory()) {
+							subdirs.add(new SizeTask(child, listener, listed));
+						} else {
+							bytes = bytes + attrs.size();
+							files++;
+						}
+					}
+				} finally {
+					stream.close();
+				}
+			} catch (IOException err) {
+				complete = false;
+			} catch (DirectoryIteratorException err) {
+				complete = false;
+			}
+			long count = listed.incrementAndGet();
+			if (listener != null) {
+				listener.progressUpdated(count, 0);
+			}
+			for (SizeTask task : invokeAll(subdirs)) {
+				Totals sub = task.join();
+				bytes = bytes + sub.bytes;
+				files = files + sub.files;
+				directories = directories + sub.directories + 1;
+				complete = complete && sub.complete;
+				//a change anywhere below an unwatched directory would go unseen
+				watching = watching && sub.watched;
+			}
+			Totals totals = new Totals(bytes, files, directories, complete, watching);
+			if (complete && watching) {
+				synchronized (cacheLock) {
+					if (generation.get() == startGeneration) {
+						cache.put(dir, totals);
+					}
+				}
+			}
+			return totals;
+		}
+	}
+
+	/**
+	 * The totals for a directory tree.
+	 */
+	public static class Totals {
+
+		private final long bytes;
+		private final long files;
+		private final long directories;
+		private final boolean complete;
+		//whether every directory in the tree is being watched for changes
+		private final boolean watched;
+
+		Totals(long bytes, long files, long directories, boolean complete, boolean watched) {
+			this.bytes = bytes;
+			this.files = files;
+			this.directories = directories;
+			this.complete = complete;
+			this.watched = watched;
+		}
+
+		/**
+		 * Return the total size of all files in the tree.
+		 *
+		 * @return the size, in bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Return the total size of all files in the tree, as a string. See SmartFile.getByteSizeString().
+		 *
+		 * @return a string representing the size
+		 */
+		public String getSizeString() {
+			return SmartFile.getByteSizeString(bytes);
+		}
+
+		/**
+		 * Return the number of files in the tree, not counting directories.
+		 *
+		 * @return the number of files
+		 */
+		public long getFileCount() {
+			return files;
+		}
+
+		/**
+		 * Return the number of directories in the tree, not counting the directory at the top.
+		 *
+		 * @return the number of directories
+		 */
+		public long getDirectoryCount() {
+			return directories;
+		}
+
+		/**
+		 * Return whether every file and directory in the tree could be read. If not, the totals leave out what couldn't be read.
+		 *
+		 * @return true if the totals are complete
+		 */
+		public boolean isComplete() {
+			return complete;
+		}
+	}
+
+}
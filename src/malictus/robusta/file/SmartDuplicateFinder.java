@@ -0,0 +1,456 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.string.StringUtils;
+
+/**
+ * A SmartDuplicateFinder finds files with identical contents under one or more directories. To avoid reading every file in
+ * full, it works in stages, and each stage only looks at the files that the one before couldn't rule out:
+ *
+ * 1. Files are grouped by size; a file with a size of its own can't have a duplicate.
+ * 2. Files of the same size are grouped by a hash of their first and last few KB.
+ * 3. Files that still match are hashed in full with MD5, and grouped by that.
+ *
+ * The later stages run in parallel, and each group of duplicates is reported to a DuplicateHandler as soon as it is
+ * confirmed, rather than at the end. Symbolic links are not followed. Files that can't be read are skipped, and can be
+ * listed afterwards with getErrors().
+ */
+public class SmartDuplicateFinder {
+
+	/**
+	 * The default number of bytes hashed from each end of a file in the second stage, 4 KB.
+	 */
+	public static final int DEFAULT_SAMPLE_SIZE = 4096;
+
+	private final File[] roots;
+	private long minSize = 1;
+	private int sampleSize = DEFAULT_SAMPLE_SIZE;
+	private int parallelism = Runtime.getRuntime().availableProcessors() * 2;
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong filesScanned = new AtomicLong();
+	private final Map<File, IOException> errors = new ConcurrentHashMap<File, IOException>();
+
+	//state for a search in progress
+	private DuplicateHandler handler;
+	private ExecutorService pool;
+	private final Object lock = new Object();
+	private int outstanding = 0;
+	private final AtomicLong filesDone = new AtomicLong();
+	private volatile boolean canceled = false;
+
+	/**
+	 * Receives groups of duplicate files as they are found. It is called from worker threads, but only by one at a time.
+	 */
+	public interface DuplicateHandler {
+
+		/**
+		 * A group of files with identical contents has been found.
+		 *
+		 * @param size the size of each file, in bytes
+		 * @param md5 the MD5 checksum of each file, as an uppercase hex string
+		 * @param files the files, in alphabetical order of path
+		 */
+		void duplicatesFound(long size, String md5, List<File> files);
+	}
+
+	/**
+	 * Set up a search for duplicate files.
+	 *
+	 * @param roots the directories to search; duplicates are found across all of them
+	 */
+	public SmartDuplicateFinder(File... roots) {
+		this.roots = roots.clone();
+	}
+
+	/**
+	 * Set the smallest file size to consider. The default is 1, which leaves out empty files.
+	 *
+	 * @param bytes the size, in bytes
+	 */
+	public void setMinSize(long bytes) {
+		this.minSize = bytes;
+	}
+
+	/**
+	 * Set how many bytes are hashed from each end of a file in the second stage.
+	 *
+	 * @param bytes the number of bytes
+	 */
+	public void setSampleSize(int bytes) {
+		if (bytes <= 0) {
+			throw new IllegalArgumentException("Incorrect sample size");
+		}
+		this.sampleSize = bytes;
+	}
+
+	/**
+	 * Set the number of files that may be read at once.
+	 *
+	 * @param parallelism the number of threads
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Return the number of bytes read from files so far, across all stages.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Return the number of files found so far.
+	 *
+	 * @return the number of files
+	 */
+	public long getFilesScanned() {
+		return filesScanned.get();
+	}
+
+	/**
+	 * Return the files and directories that couldn't be read, and why.
+	 *
+	 * @return a map of each file to its error
+	 */
+	public Map<File, IOException> getErrors() {
+		return new HashMap<File, IOException>(errors);
+	}
+
+	/**
+	 * Search for duplicate files.
+	 *
+	 * @param handler the handler to report each group of duplicates to
+	 * @param listener a SmartProgressListener to track progress; may be null. Progress is counted in files that might
+	 * 			have a duplicate, so the total is only known once the directories have all been listed.
+	 * @return true if the search finished, or false if it was canceled
+	 * @throws IOException if interrupted while waiting for the search
+	 */
+	public boolean find(DuplicateHandler handler, SmartProgressListener listener) throws IOException {
+		this.handler = handler;
+		bytesRead.set(0);
+		filesScanned.set(0);
+		filesDone.set(0);
+		errors.clear();
+		canceled = false;
+		if (listener != null) {
+			listener.progressStarted(0);
+		}
+		Map<Long, List<File>> sizes = groupBySize(listener);
+		if (sizes == null) {
+			listener.progressCanceled();
+			return false;
+		}
+		long candidates = 0;
+		for (List<File> files : sizes.values()) {
+			if (files.size() > 1) {
+				candidates = candidates + files.size();
+			}
+		}
+		//the pool's threads read at the priority of the thread that started the search
+		final SmartIOThrottle.Priority priority = SmartIOThrottle.getThreadPriority();
+		pool = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						SmartIOThrottle.setThreadPriority(priority);
+						r.run();
+					}
+				}, "robusta-duplicates");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			for (Map.Entry<Long, List<File>> entry : sizes.entrySet()) {
+				if (entry.getValue().size() > 1) {
+					new SampleGroup(entry.getKey(), entry.getValue()).start();
+				}
+			}
+			synchronized (lock) {
+				while (outstanding > 0) {
+					if (listener != null) {
+						if (listener.isCanceled()) {
+							//files that are being read are allowed to finish; nothing new is started
+							canceled = true;
+						}
+						listener.progressUpdated(filesDone.get(), candidates);
+					}
+					try {
+						lock.wait(100);
+					} catch (InterruptedException err) {
+						Thread.currentThread().interrupt();
+						canceled = true;
+						throw new IOException("Interrupted while finding duplicates");
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		if (canceled) {
+			listener.progressCanceled();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The first stage: list every file under the roots, grouped by size. Returns null if canceled.
+	 */
+	private Map<Long, List<File>> groupBySize(final SmartProgressListener listener) {
+		final Map<Long, List<File>> sizes = new HashMap<Long, List<File>>();
+		final Set<String> seen = new HashSet<String>();
+		for (File root : roots) {
+			try {
+				Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+					public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+						if ((listener != null) && listener.isCanceled()) {
+							return FileVisitResult.TERMINATE;
+						}
+						if (!attrs.isRegularFile() || (attrs.size() < minSize)) {
+							return FileVisitResult.CONTINUE;
+						}
+						File file = path.toFile();
+						//the same file may be reached through more than one root
+						if (!seen.add(file.getAbsolutePath())) {
+							return FileVisitResult.CONTINUE;
+						}
+						filesScanned.incrementAndGet();
+						List<File> files = sizes.get(attrs.size());
+						if (files == null) {
+							files = new ArrayList<File>(2);
+							sizes.put(attrs.size(), files);
+						}
+						files.add(file);
+						return FileVisitResult.CONTINUE;
+					}
+
+					public FileVisitResult visitFileFailed(Path path, IOException err) {
+						errors.put(path.toFile(), err);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException err) {
+				errors.put(root, err);
+			}
+			if ((listener != null) && listener.isCanceled()) {
+				return null;
+			}
+		}
+		return sizes;
+	}
+
+	private void submit(final Runnable task) {
+		synchronized (lock) {
+			outstanding++;
+		}
+		try {
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						if (!canceled) {
+							task.run();
+						}
+					} finally {
+						taskDone();
+					}
+				}
+			});
+		} catch (RejectedExecutionException err) {
+			taskDone();
+		}
+	}
+
+	private void taskDone() {
+		synchronized (lock) {
+			outstanding--;
+			if (outstanding == 0) {
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private synchronized void report(long size, String md5, List<File> files) {
+		Collections.sort(files);
+		handler.duplicatesFound(size, md5, files);
+	}
+
+	/**
+	 * Group files by their hashes, leaving out files with no hash (which couldn't be read) and files whose hash is unique.
+	 */
+	private Collection<List<File>> matching(List<File> files, byte[][] hashes) {
+		Map<String, List<File>> groups = new HashMap<String, List<File>>();
+		for (int i = 0; i < files.size(); i++) {
+			if (hashes[i] == null) {
+				continue;
+			}
+			String key = StringUtils.toHexString(hashes[i]);
+			List<File> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<File>(2);
+				groups.put(key, group);
+			}
+			group.add(files.get(i));
+		}
+		List<List<File>> result = new ArrayList<List<File>>();
+		for (List<File> group : groups.values()) {
+			if (group.size() > 1) {
+				result.add(group);
+			} else {
+				filesDone.incrementAndGet();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Hash the start and end of a file; for a file no bigger than two samples, this is a hash of the whole file.
+	 */
+	private byte[] sampleHash(File file, long size) throws IOException {
+		Digester digester = ChecksumAlgorithm.MD5.createDigester();
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(sampleSize);
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			FileChannel in = fin.getChannel();
+			long tail = Math.max(sampleSize, size - sampleSize);
+			readInto(in, buffer, 0, Math.min(sampleSize, size), digester);
+			if (tail < size) {
+				readInto(in, buffer, tail, size - tail, digester);
+			}
+			if (in.size() != size) {
+				throw new IOException("File changed while being read");
+			}
+		} finally {
+			fin.close();
+			pool.release(buffer);
+		}
+		return digester.digest();
+	}
+
+	private void readInto(FileChannel in, ByteBuffer buffer, long pos, long len, Digester digester) throws IOException {
+		buffer.clear();
+		buffer.limit((int)len);
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, pos + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		SmartIOThrottle.charge(len);
+		digester.update(buffer.array(), 0, (int)len);
+		bytesRead.addAndGet(len);
+	}
+
+	/**
+	 * The second stage for a group of files of the same size. Once every file's sample hash is in, files whose samples
+	 * still match go on to the third stage.
+	 */
+	private class SampleGroup {
+
+		private final long size;
+		private final List<File> files;
+		private final byte[][] hashes;
+		private final AtomicInteger remaining;
+
+		SampleGroup(long size, List<File> files) {
+			this.size = size;
+			this.files = files;
+			this.hashes = new byte[files.size()][];
+			this.remaining = new AtomicInteger(files.size());
+		}
+
+		void start() {
+			for (int i = 0; i < files.size(); i++) {
+				final int index = i;
+				submit(new Runnable() {
+					public void run() {
+						try {
+							hashes[index] = sampleHash(files.get(index), size);
+						} catch (IOException err) {
+							errors.put(files.get(index), err);
+							filesDone.incrementAndGet();
+						}
+						if (remaining.decrementAndGet() == 0) {
+							sampled();
+						}
+					}
+				});
+			}
+		}
+
+		private void sampled() {
+			for (List<File> group : matching(files, hashes)) {
+				if (size <= 2L * sampleSize) {
+					//the samples covered the whole of each file, so they are duplicates already
+					report(size, StringUtils.toHexString(hashes[files.indexOf(group.get(0))]), group);
+					filesDone.addAndGet(group.size());
+				} else {
+					new FullGroup(size, group).start();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The third stage: hash each file in full, and report those that match.
+	 */
+	private class FullGroup {
+
+		private final long size;
+		private final List<File> files;
+		private final byte[][] hashes;
+		private final AtomicInteger remaining;
+
+		FullGroup(long size, List<File> files) {
+			this.size = size;
+			this.files = files;
+			this.hashes = new byte[files.size()][];
+			this.remaining = new AtomicInteger(files.size());
+		}
+
+		void start() {
+			for (int i = 0; i < files.size(); i++) {
+				final int index = i;
+				submit(new Runnable() {
+					public void run() {
+						File file = files.get(index);
+						try {
+							SmartChecksum checksum = SmartChecksum.calculate(file, 0, size, null, ChecksumAlgorithm.MD5);
+							bytesRead.addAndGet(size);
+							if (file.length() != size) {
+								throw new IOException("File changed while being read");
+							}
+							hashes[index] = checksum.getBytes(ChecksumAlgorithm.MD5);
+						} catch (IOException err) {
+							errors.put(file, err);
+							filesDone.incrementAndGet();
+						}
+						if (remaining.decrementAndGet() == 0) {
+							hashed();
+						}
+					}
+				});
+			}
+		}
+
+		private void hashed() {
+			for (List<File> group : matching(files, hashes)) {
+				report(size, StringUtils.toHexString(hashes[files.indexOf(group.get(0))]), group);
+				filesDone.addAndGet(group.size());
+			}
+		}
+	}
+
+}
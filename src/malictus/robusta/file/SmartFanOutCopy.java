@@ -0,0 +1,355 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartFanOutCopy copies one file to several destinations at once, reading the source only once. Each block that is
+ * read is handed to every destination; each destination has its own writer thread and its own bounded queue of blocks,
+ * so that a destination that is briefly slower than the others doesn't hold them up until its queue is full. (A
+ * destination that is always slower will, in the end, set the pace for the others, since the source is only read once.)
+ *
+ * A destination that fails is dropped, and the copy carries on to the others. Failures and progress are tracked for each
+ * destination separately.
+ */
+public class SmartFanOutCopy {
+
+	/**
+	 * The default number of blocks that may be waiting to be written to each destination.
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 16;
+
+	private final File source;
+	private final File[] dests;
+	private boolean overwrite = false;
+	private int queueDepth = DEFAULT_QUEUE_DEPTH;
+	private final SmartProgressListener[] destListeners;
+	private final AtomicLongArray written;
+	private final IOException[] errors;
+
+	/**
+	 * Set up a fan-out copy.
+	 *
+	 * @param source the file to copy
+	 * @param dests the files to copy to
+	 */
+	public SmartFanOutCopy(File source, File... dests) {
+		this.source = source;
+		this.dests = dests.clone();
+		this.destListeners = new SmartProgressListener[dests.length];
+		this.written = new AtomicLongArray(dests.length);
+		this.errors = new IOException[dests.length];
+	}
+
+	/**
+	 * Set whether existing destination files are overwritten. If not (the default), a destination that exists already fails.
+	 *
+	 * @param overwrite whether to overwrite existing files
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+
+	/**
+	 * Set the number of blocks that may be waiting to be written to each destination.
+	 *
+	 * @param queueDepth the number of blocks
+	 */
+	public void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Set a listener for the progress of a single destination, in bytes written. It is called from that destination's
+	 * writer thread. Its isCanceled() method is not used.
+	 *
+	 * @param index the index of the destination, in the order they were given
+	 * @param listener a SmartProgressListener; may be null
+	 */
+	public void setDestinationListener(int index, SmartProgressListener listener) {
+		destListeners[index] = listener;
+	}
+
+	/**
+	 * Return the number of bytes written to a destination so far.
+	 *
+	 * @param index the index of the destination, in the order they were given
+	 * @return the number of bytes
+	 */
+	public long getBytesWritten(int index) {
+		return written.get(index);
+	}
+
+	/**
+	 * Return the error that a destination failed with.
+	 *
+	 * @param index the index of the destination, in the order they were given
+	 * @return the error, or null if the destination hasn't failed
+	 */
+	public synchronized IOException getError(int index) {
+		return errors[index];
+	}
+
+	/**
+	 * Return the destinations that failed.
+	 *
+	 * @return the failed destinations, in the order they were given; empty if none failed
+	 */
+	public synchronized List<File> getFailedDestinations() {
+		List<File> failed = new ArrayList<File>();
+		for (int i = 0; i < dests.length; i++) {
+			if (errors[i] != null) {
+				failed.add(dests[i]);
+			}
+		}
+		return failed;
+	}
+
+	/**
+	 * Copy the source to every destination. Check getFailedDestinations() afterwards to find out whether any of the
+	 * destinations failed.
+	 *
+	 * @param listener a SmartProgressListener to track overall progress, in bytes read from the source; may be null.
+	 * 			If progress is canceled, this method will close file refs but will NOT delete the incomplete files themselves.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the source can't be read, or every destination failed
+	 */
+	public boolean copy(SmartProgressListener listener) throws IOException {
+		if (dests.length == 0) {
+			throw new IOException("No destinations specified");
+		}
+		for (File dest : dests) {
+			if (dest.getPath().equals(source.getPath())) {
+				throw new IOException("Destination is the same as the original.");
+			}
+		}
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(source);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		FileInputStream fin = new FileInputStream(source);
+		FileChannel in = fin.getChannel();
+		long size = in.size();
+		if (listener != null) {
+			listener.progressStarted(size);
+		}
+		Writer[] writers = new Writer[dests.length];
+		for (int i = 0; i < dests.length; i++) {
+			written.set(i, 0);
+			errors[i] = null;
+			writers[i] = new Writer(i, size);
+			writers[i].start();
+		}
+		boolean finished = false;
+		try {
+			long pos = 0;
+			while (true) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						break;
+					}
+					listener.progressUpdated(pos, size);
+				}
+				if (allFailed()) {
+					break;
+				}
+				Block block = new Block(pool.acquire(bufferSize), pool);
+				int len = in.read(block.data);
+				if (len < 0) {
+					block.release();
+					finished = true;
+					break;
+				}
+				block.data.flip();
+				for (Writer writer : writers) {
+					writer.offer(block);
+				}
+				//drop the reader's own reference, now that every writer has one
+				block.release();
+				SmartIOThrottle.charge(len);
+				pos = pos + len;
+			}
+		} finally {
+			fin.close();
+			for (Writer writer : writers) {
+				writer.finish(finished);
+			}
+			for (Writer writer : writers) {
+				try {
+					writer.join();
+				} catch (InterruptedException err) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (allFailed()) {
+			throw new IOException("All destinations failed: " + errors[0].getMessage());
+		}
+		return finished;
+	}
+
+	private synchronized boolean allFailed() {
+		for (IOException error : errors) {
+			if (error == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized void fail(int index, IOException err) {
+		if (errors[index] == null) {
+			errors[index] = err;
+		}
+	}
+
+	/**
+	 * A block of data read from the source, shared by all writers. It goes back to the pool once every writer is done with it.
+	 */
+	private static class Block {
+
+		final ByteBuffer data;
+		private final SmartBufferPool pool;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		Block(ByteBuffer data, SmartBufferPool pool) {
+			this.data = data;
+			this.pool = pool;
+		}
+
+		void retain() {
+			references.incrementAndGet();
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				pool.release(data);
+			}
+		}
+	}
+
+	/**
+	 * Writes blocks to a single destination, on its own thread.
+	 */
+	private class Writer extends Thread {
+
+		//marks the end of the queue
+		private final Block end = new Block(null, null);
+		private final int index;
+		private final long size;
+		//the writes to each destination are charged to the throttle at the priority of the thread that started the copy
+		private final SmartIOThrottle.Priority priority = SmartIOThrottle.getThreadPriority();
+		private final BlockingQueue<Block> queue = new ArrayBlockingQueue<Block>(queueDepth);
+		//set once the writer has stopped taking blocks, whether it finished or failed
+		private volatile boolean stopped = false;
+		private volatile boolean complete = false;
+
+		Writer(int index, long size) {
+			super("robusta-fanout-" + index);
+			this.index = index;
+			this.size = size;
+			setDaemon(true);
+		}
+
+		/**
+		 * Queue a block, waiting if the queue is full. Blocks are not queued for a writer that has stopped.
+		 */
+		void offer(Block block) throws IOException {
+			block.retain();
+			try {
+				while (!stopped) {
+					if (queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+						if (stopped && queue.remove(block)) {
+							//the writer failed just now, and won't take it
+							block.release();
+						}
+						return;
+					}
+				}
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				block.release();
+				throw new IOException("Interrupted while copying");
+			}
+			block.release();
+		}
+
+		void finish(boolean complete) {
+			this.complete = complete;
+			try {
+				while (!stopped && !queue.offer(end, 100, TimeUnit.MILLISECONDS)) {
+					//wait for room, unless the writer has stopped taking blocks
+				}
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public void run() {
+			SmartIOThrottle.setThreadPriority(priority);
+			SmartProgressListener listener = destListeners[index];
+			File dest = dests[index];
+			FileOutputStream fos = null;
+			try {
+				if (dest.exists() && !overwrite) {
+					throw new IOException("File already exists");
+				}
+				fos = new FileOutputStream(dest);
+				FileChannel out = fos.getChannel();
+				if (listener != null) {
+					listener.progressStarted(size);
+				}
+				while (true) {
+					Block block = queue.take();
+					if (block == end) {
+						break;
+					}
+					try {
+						ByteBuffer data = block.data.duplicate();
+						while (data.hasRemaining()) {
+							out.write(data);
+						}
+						SmartIOThrottle.charge(block.data.remaining());
+						long total = written.addAndGet(index, block.data.remaining());
+						if (listener != null) {
+							listener.progressUpdated(total, size);
+						}
+					} finally {
+						block.release();
+					}
+				}
+				fos.close();
+				fos = null;
+				if (!complete && (listener != null)) {
+					listener.progressCanceled();
+				}
+			} catch (IOException err) {
+				fail(index, err);
+			} catch (InterruptedException err) {
+				fail(index, new IOException("Interrupted while copying"));
+			} finally {
+				stopped = true;
+				//let go of anything still queued, so the buffers go back to the pool
+				Block block = queue.poll();
+				while (block != null) {
+					if (block != end) {
+						block.release();
+					}
+					block = queue.poll();
+				}
+				if (fos != null) {
+					try {
+						fos.close();
+					} catch (IOException err) {
+						//already failing
+					}
+				}
+			}
+		}
+	}
+
+}
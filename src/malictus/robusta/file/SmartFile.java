@@ -2,8 +2,17 @@ package malictus.robusta.file;
 
 import java.io.*;
 import java.net.URI;
-import java.security.MessageDigest;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import malictus.robusta.progress.SmartProgressListener;
 import malictus.robusta.swing.*;
 
 /**
@@ -12,7 +21,29 @@ import malictus.robusta.swing.*;
  */
 public class SmartFile extends File {
 
-	private static final int BUFFER_SIZE = 65536;
+	//how much data to hand to the operating system at once when copying channel-to-channel
+	private static final long TRANSFER_SIZE = 8L * 1024L * 1024L;
+	//how much of each file to map into memory at once for memory-mapped writes
+	private static final long MAP_WINDOW_SIZE = 64L * 1024L * 1024L;
+
+	private static volatile long mappedThreshold = 16L * 1024L * 1024L;
+
+	/**
+	 * The default number of buffers in flight at once for copyFilePipelined().
+	 */
+	public static final int DEFAULT_QUEUE_DEPTH = 4;
+	/**
+	 * The default size of each buffer for copyFilePipelined(), 1 MB.
+	 */
+	public static final int DEFAULT_PIPELINE_BUFFER_SIZE = 1024 * 1024;
+	/**
+	 * The default size of each journaled block for copyFileResumable(), 8 MB.
+	 */
+	public static final int DEFAULT_RESUME_BLOCK_SIZE = 8 * 1024 * 1024;
+	/**
+	 * The default size of each independently compressed block for copyFileCompressed(), 1 MB.
+	 */
+	public static final int DEFAULT_COMPRESS_BLOCK_SIZE = 1024 * 1024;
 
 	public SmartFile(String pathname) {
 		super(pathname);
@@ -133,11 +164,12 @@ public class SmartFile extends File {
 	 * @throws IOException if the file cannot be written for some reason
 	 */
 	public static void copyFile(File source, File dest, boolean overwrite) throws IOException {
-		SmartFile.copyFile(source, dest, overwrite, null);
+		SmartFile.copyFile(source, dest, overwrite, (SmartProgressListener)null);
 	}
 
 	/**
-	 * Copy a file to a new location.
+	 * Copy a file to a new location. Where the platform supports it, the data is copied by the operating system
+	 * directly (FileChannel.transferTo) rather than passing through the JVM.
 	 *
 	 * @param source the source file
 	 * @param dest the destination file
@@ -147,13 +179,27 @@ public class SmartFile extends File {
 	 * @throws IOException if the file cannot be written for some reason;
 	 */
 	public static void copyFile(File source, File dest, boolean overwrite, SmartProgressWindow spd) throws IOException {
+		SmartFile.copyFile(source, dest, overwrite, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Copy a file to a new location. Where the platform supports it, the data is copied by the operating system
+	 * directly (FileChannel.transferTo) rather than passing through the JVM.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null.
+	 * 			If progress is canceled, this method will close file refs but will NOT delete the incomplete file itself.
+	 * @throws IOException if the file cannot be written for some reason;
+	 */
+	public static void copyFile(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
 		//make sure dest isn't same as orig
 		if (dest.getPath().equals(source.getPath())) {
 			throw new IOException("Destination is the same as the original.");
 		}
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
+		if (listener != null) {
+			listener.progressStarted(source.length());
 		}
 		if (dest.exists()) {
 			if (overwrite) {
@@ -166,37 +212,509 @@ public class SmartFile extends File {
 		FileInputStream fin = new FileInputStream(source);
 		FileOutputStream fos = new FileOutputStream(dest);
 		try {
-			//copy contents
-			byte[] buffer = new byte[BUFFER_SIZE];
-	        int len;
-	        int counter = 0;
-	        long last = (long)(source.length() / (float)BUFFER_SIZE);
-	        if (last == 0) {
-				last = 1;
+			FileChannel in = fin.getChannel();
+			FileChannel out = fos.getChannel();
+			long size = in.size();
+			//let the kernel move the data whenever it can; fall back to copying through a buffer otherwise
+			long pos = transferChannel(in, out, size, listener);
+			if ((pos >= 0) && (pos < size)) {
+				copyStream(in, out, pos, size, SmartDeviceProfile.bufferSizeFor(source, dest), listener);
 			}
-	        while ((len = fin.read(buffer)) > 0) {
-	        	if (spd != null) {
-		    		if (spd.wasCanceled()) {
-		    			fin.close();
-		    	        fos.close();
-		    			spd.taskFinished();
-		    			return;
-		    		}
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
-		    	}
-	            fos.write(buffer, 0, len);
-	        }
-	        fin.close();
-	        fos.close();
+			fin.close();
+			fos.close();
 		} catch (IOException err) {
 			fin.close();
 			fos.close();
 			throw err;
 		}
 	}
+
+	/**
+	 * Copy a file to a new location, calculating a checksum of the data as it is copied, and then verify the copy by
+	 * reading the destination back once. This reads the source only once, rather than once for the copy and once more for
+	 * its checksum.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param algorithm the checksum algorithm to use
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null
+	 * @return the checksum of the data, or null if the task was canceled
+	 * @throws IOException if the file cannot be written for some reason, or the destination doesn't match
+	 */
+	public static SmartChecksum copyFileVerified(File source, File dest, boolean overwrite, ChecksumAlgorithm algorithm, SmartProgressListener listener) throws IOException {
+		return SmartFile.copyFileVerified(source, dest, overwrite, algorithm, true, listener);
+	}
+
+	/**
+	 * Copy a file to a new location, calculating a checksum of the data as it is copied. The checksum is of the bytes
+	 * that were actually written, so it can be stored and used later in place of a separate checksum pass over either file.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param algorithm the checksum algorithm to use
+	 * @param reread whether to read the destination back after copying and check that its checksum matches. If false, the
+	 * 			write is trusted, and the data is only read once in total.
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null.
+	 * 			If progress is canceled, this method will close file refs but will NOT delete the incomplete file itself.
+	 * @return the checksum of the data, or null if the task was canceled
+	 * @throws IOException if the file cannot be written for some reason, or the destination doesn't match
+	 */
+	public static SmartChecksum copyFileVerified(File source, File dest, boolean overwrite, ChecksumAlgorithm algorithm, boolean reread,
+			final SmartProgressListener listener) throws IOException {
+		//make sure dest isn't same as orig
+		if (dest.getPath().equals(source.getPath())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		if (dest.exists() && !overwrite) {
+			throw new IOException("File already exists");
+		}
+		Digester digester = algorithm.createDigester();
+		final long size = source.length();
+		final long total = reread ? (size * 2) : size;
+		if (listener != null) {
+			listener.progressStarted(total);
+		}
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(source, dest);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(bufferSize);
+		FileInputStream fin = new FileInputStream(source);
+		FileOutputStream fos = null;
+		try {
+			fos = new FileOutputStream(dest);
+			FileChannel in = fin.getChannel();
+			FileChannel out = fos.getChannel();
+			long pos = 0;
+			while (true) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return null;
+					}
+					listener.progressUpdated(pos, total);
+				}
+				buffer.clear().limit(bufferSize);
+				int len = in.read(buffer);
+				if (len < 0) {
+					break;
+				}
+				digester.update(buffer.array(), 0, len);
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				SmartIOThrottle.charge(len);
+				pos = pos + len;
+			}
+		} finally {
+			fin.close();
+			if (fos != null) {
+				fos.close();
+			}
+			pool.release(buffer);
+		}
+		byte[] digest = digester.digest();
+		if (reread) {
+			//report the re-read as the second half of the task
+			SmartProgressListener second = null;
+			if (listener != null) {
+				second = new SmartProgressListener() {
+					public void progressStarted(long ignored) {
+					}
+
+					public void progressUpdated(long completed, long ignored) {
+						listener.progressUpdated(size + completed, total);
+					}
+
+					public boolean isCanceled() {
+						return listener.isCanceled();
+					}
+
+					public void progressCanceled() {
+						listener.progressCanceled();
+					}
+				};
+			}
+			SmartChecksum check = SmartChecksum.calculate(dest, 0, dest.length(), second, algorithm);
+			if (check == null) {
+				return null;
+			}
+			if (!Arrays.equals(check.getBytes(algorithm), digest)) {
+				throw new IOException("Verification failed; destination does not match source");
+			}
+		}
+		return SmartChecksum.of(algorithm, digest);
+	}
+
+	/**
+	 * Copy a file to a new location, keeping several reads and writes in flight at once. See
+	 * copyFilePipelined(File, File, boolean, int, int, SmartProgressListener).
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null.
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static void copyFilePipelined(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		SmartFile.copyFilePipelined(source, dest, overwrite, DEFAULT_QUEUE_DEPTH, DEFAULT_PIPELINE_BUFFER_SIZE, listener);
+	}
+
+	/**
+	 * Copy a file to a new location, keeping several reads and writes in flight at once. The file is copied through a
+	 * number of direct buffers using AsynchronousFileChannel; as soon as one buffer has been read it is written out, and
+	 * the next reads carry on while the write is in progress. This keeps both the source and destination busy, and is
+	 * useful where copyFile() can't copy directly in the kernel, such as between different devices. Devices such as NVMe
+	 * drives that handle many requests at once may benefit from a greater queue depth.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param queueDepth the number of buffers in flight at once; at least 2
+	 * @param bufferSize the size of each buffer, in bytes
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null.
+	 * 			If progress is canceled, this method will close file refs but will NOT delete the incomplete file itself.
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static void copyFilePipelined(File source, File dest, boolean overwrite, int queueDepth, int bufferSize, SmartProgressListener listener) throws IOException {
+		//make sure dest isn't same as orig
+		if (dest.getPath().equals(source.getPath())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		if (dest.exists() && !overwrite) {
+			throw new IOException("File already exists");
+		}
+		PipelinedCopy.copy(source, dest, queueDepth, bufferSize, listener);
+	}
+
+	/**
+	 * Copy a file to a new location in a way that can be resumed if it is interrupted. See
+	 * copyFileResumable(File, File, boolean, int, SmartProgressListener).
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already and isn't an interrupted copy. If set to false, and file exists, and IOException will be thrown.
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null. If progress is canceled,
+	 * 			the incomplete file and its journal are kept, so that the copy can be resumed.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static boolean copyFileResumable(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		return copyFileResumable(source, dest, overwrite, DEFAULT_RESUME_BLOCK_SIZE, listener);
+	}
+
+	/**
+	 * Copy a file to a new location in a way that can be resumed if it is interrupted. While the copy is in progress, a
+	 * small hidden journal is kept next to the destination (named "." + its name + ".robusta-resume"), listing a hash of each block
+	 * that is safely on disk. If the copy is canceled, fails or is cut short by a crash, calling this method again with
+	 * the same arguments carries on after the last good block rather than starting over. If the source has changed in
+	 * the meantime, the copy starts over. The journal is deleted once the copy is complete.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already and isn't an interrupted copy. If set to false, and file exists, and IOException will be thrown.
+	 * @param blockSize the size of each journaled block, in bytes; a resumed copy must use the same block size
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null. If progress is canceled,
+	 * 			the incomplete file and its journal are kept, so that the copy can be resumed.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static boolean copyFileResumable(File source, File dest, boolean overwrite, int blockSize, SmartProgressListener listener) throws IOException {
+		//make sure dest isn't same as orig
+		if (dest.getPath().equals(source.getPath())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		return ResumableCopy.copy(source, dest, overwrite, blockSize, listener);
+	}
+
+	/**
+	 * Copy a file to a new location, compressing it in the gzip format as it goes. See
+	 * copyFileCompressed(File, File, boolean, int, int, SmartProgressListener).
+	 *
+	 * @param source the source file
+	 * @param dest the compressed file to create
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file or its index file exists, and IOException will be thrown.
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null. If progress is canceled, nothing is written.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static boolean copyFileCompressed(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		return copyFileCompressed(source, dest, overwrite, DEFAULT_COMPRESS_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, listener);
+	}
+
+	/**
+	 * Copy a file to a new location, compressing it in the gzip format as it goes, so that it doesn't have to be read
+	 * again to be compressed afterwards. The file is split into blocks that are compressed in parallel on all cores,
+	 * each as a separate gzip member, so the result can be decompressed by any gzip tool. An index is written next to
+	 * it (with ".index" added to its name) that lets copyFileDecompressed() decompress the blocks in parallel, and lets
+	 * SmartBlockGzipReader read any part of the file without decompressing the rest. Any existing file with the index's
+	 * name is replaced if overwrite is true; if it is false, an existing index file is an error, just as an existing
+	 * destination is.
+	 *
+	 * Because the blocks are compressed independently, smaller blocks compress slightly less well, but make random
+	 * access cheaper.
+	 *
+	 * @param source the source file
+	 * @param dest the compressed file to create
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file or its index file exists, and IOException will be thrown.
+	 * @param blockSize the size of each block before it is compressed, in bytes
+	 * @param level the compression level, from 1 (fastest) to 9 (smallest), or -1 for the default
+	 * @param listener a SmartProgressListener to track progress on the task; this may be null. If progress is canceled, nothing is written.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be written for some reason
+	 */
+	public static boolean copyFileCompressed(File source, File dest, boolean overwrite, int blockSize, int level, SmartProgressListener listener) throws IOException {
+		//make sure dest isn't same as orig
+		if (dest.getPath().equals(source.getPath())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		return BlockGzip.compress(source, dest, overwrite, blockSize, level, listener);
+	}
+
+	/**
+	 * Copy a gzip file to a new location, decompressing it as it goes. If the file was written by copyFileCompressed()
+	 * and its index is still next to it, its blocks are decompressed in parallel on all cores. Any other gzip file is
+	 * decompressed in one pass from start to end.
+	 *
+	 * @param source the gzip file
+	 * @param dest the decompressed file to create
+	 * @param overwrite whether to overwrite if file exists already. If set to false, and file exists, and IOException will be thrown.
+	 * @param listener a SmartProgressListener to track progress on the task, counted in bytes of the gzip file; this may be
+	 * 			null. If progress is canceled, nothing is written.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the file cannot be read or written for some reason, or is corrupt
+	 */
+	public static boolean copyFileDecompressed(File source, File dest, boolean overwrite, SmartProgressListener listener) throws IOException {
+		//make sure dest isn't same as orig
+		if (dest.getPath().equals(source.getPath())) {
+			throw new IOException("Destination is the same as the original.");
+		}
+		return BlockGzip.decompress(source, dest, overwrite, listener);
+	}
+
+	/**
+	 * Copy the contents of one channel to another using FileChannel.transferTo, in slices so that progress can be reported
+	 * and cancellation honored between slices. On most platforms, this allows the operating system to copy the data
+	 * directly, without it ever being brought into the JVM.
+	 *
+	 * @param in the source channel, positioned at 0
+	 * @param out the destination channel, positioned at 0
+	 * @param size the number of bytes to copy
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return the number of bytes copied; if less than size, the remainder should be copied by other means. If the task
+	 * 			was canceled, -1 is returned.
+	 * @throws IOException if the read/write operations fail
+	 */
+	private static long transferChannel(FileChannel in, FileChannel out, long size, SmartProgressListener listener) throws IOException {
+		long pos = 0;
+		while (pos < size) {
+			if (listener != null) {
+				if (listener.isCanceled()) {
+					listener.progressCanceled();
+					return -1;
+				}
+				listener.progressUpdated(pos, size);
+			}
+			long count;
+			try {
+				count = in.transferTo(pos, Math.min(TRANSFER_SIZE, size - pos), out);
+			} catch (IOException err) {
+				//some file systems (and some JVMs, for very large files) refuse to transfer directly
+				if (pos == 0) {
+					return 0;
+				}
+				throw err;
+			}
+			if (count <= 0) {
+				//zero-copy isn't available here, or source was truncated underneath us
+				return pos;
+			}
+			SmartIOThrottle.charge(count);
+			pos = pos + count;
+		}
+		return pos;
+	}
+
+	/**
+	 * Copy the contents of one channel to another through a buffer. This is the fallback for file systems where
+	 * FileChannel.transferTo isn't supported.
+	 *
+	 * @param in the source channel
+	 * @param out the destination channel
+	 * @param pos the position in both channels to start copying at
+	 * @param size the position in the source channel to stop copying at
+	 * @param bufferSize the size of buffer to copy through
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @throws IOException if the read/write operations fail
+	 */
+	private static void copyStream(FileChannel in, FileChannel out, long pos, long size, int bufferSize, SmartProgressListener listener) throws IOException {
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquire(bufferSize);
+		try {
+			in.position(pos);
+			out.position(pos);
+			while (pos < size) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return;
+					}
+					listener.progressUpdated(pos, size);
+				}
+				buffer.clear().limit(bufferSize);
+				int len = in.read(buffer);
+				if (len <= 0) {
+					return;
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				SmartIOThrottle.charge(len);
+				pos = pos + len;
+			}
+		} finally {
+			pool.release(buffer);
+		}
+	}
 	
+	/**
+	 * Copy a range of one channel to the current position of another, letting the operating system move the data
+	 * directly where possible. No progress is reported, but the throttle is charged a slice at a time, as in
+	 * transferChannel(), so that a large range doesn't go through in one burst and then leave everything else waiting.
+	 *
+	 * @param in the source channel
+	 * @param position the position in the source channel to start copying from
+	 * @param count the number of bytes to copy
+	 * @param out the destination channel
+	 * @throws IOException if the read/write operations fail, or the source channel ends early
+	 */
+	static void transferRange(FileChannel in, long position, long count, FileChannel out) throws IOException {
+		long end = position + count;
+		try {
+			while (position < end) {
+				long len = in.transferTo(position, Math.min(TRANSFER_SIZE, end - position), out);
+				if (len <= 0) {
+					break;
+				}
+				SmartIOThrottle.charge(len);
+				position = position + len;
+			}
+		} catch (InterruptedIOException err) {
+			throw err;
+		} catch (IOException err) {
+			//zero-copy isn't available; copy whatever is left the slow way
+		}
+		if (position < end) {
+			int bufferSize = SmartDeviceProfile.getDefault().getBufferSize();
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquire(bufferSize);
+			try {
+				while (position < end) {
+					buffer.clear();
+					buffer.limit((int)Math.min(bufferSize, end - position));
+					int len = in.read(buffer, position);
+					if (len <= 0) {
+						throw new IOException("Unexpected end of file while copying data");
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					position = position + len;
+					SmartIOThrottle.charge(len);
+				}
+			} finally {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Replace the target file with the temp file, atomically if the file system allows it.
+	 */
+	static void moveOver(File temp, File target) throws IOException {
+		try {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException err) {
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Return whether two paths name the same file, following symbolic links, hard links and relative parts such as "..".
+	 * If either file doesn't exist, their canonical paths are compared instead.
+	 */
+	static boolean isSameFile(File a, File b) throws IOException {
+		if (a.exists() && b.exists()) {
+			return Files.isSameFile(a.toPath(), b.toPath());
+		}
+		return a.getCanonicalFile().equals(b.getCanonicalFile());
+	}
+
+	/**
+	 * Return the file that replacing this path should really replace. If the path is a symbolic link, the file it points to
+	 * is returned, so that moving a temp file over it replaces the target and leaves the link in place. A path that doesn't
+	 * exist yet is returned as it is.
+	 */
+	static File replaceTarget(File file) throws IOException {
+		if (!file.exists()) {
+			return file;
+		}
+		return file.toPath().toRealPath().toFile();
+	}
+
+	/**
+	 * Give a temp file the permissions, owner and group (or ACL) of the file it is about to be moved over, so that replacing
+	 * a file doesn't reset them. This is best effort: anything the file system doesn't support, or that this process isn't
+	 * allowed to change, is left as the temp file was created. Hard links to the old file can't be kept; they go on pointing
+	 * at the old data.
+	 */
+	static void copyAttributes(File from, File to) {
+		Path src = from.toPath();
+		Path dst = to.toPath();
+		PosixFileAttributeView posix = Files.getFileAttributeView(dst, PosixFileAttributeView.class);
+		if (posix != null) {
+			PosixFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(src, PosixFileAttributes.class);
+			} catch (IOException err) {
+				attrs = null;
+			}
+			if (attrs != null) {
+				//owner and group first, since changing them may clear the setuid and setgid bits
+				try {
+					posix.setGroup(attrs.group());
+				} catch (IOException err) {
+					//not allowed; keep the default group
+				}
+				try {
+					posix.setOwner(attrs.owner());
+				} catch (IOException err) {
+					//not allowed; keep the default owner
+				}
+				try {
+					posix.setPermissions(attrs.permissions());
+				} catch (IOException err) {
+					//not allowed; keep the default permissions
+				}
+			}
+		}
+		AclFileAttributeView acl = Files.getFileAttributeView(dst, AclFileAttributeView.class);
+		if (acl != null) {
+			try {
+				AclFileAttributeView old = Files.getFileAttributeView(src, AclFileAttributeView.class);
+				if (old != null) {
+					acl.setOwner(old.getOwner());
+					acl.setAcl(old.getAcl());
+				}
+			} catch (IOException err) {
+				//not allowed; keep the default ACL
+			}
+		}
+	}
+
 	/**
 	 * Writes data from a source file to the destination file. Any existing data in the source file will be overwritten.
 	 *
@@ -208,7 +726,7 @@ public class SmartFile extends File {
 	 * @throws IOException if the read/write operations fail
 	 */
 	public static void writeToFile(File source, File dest, long sourceStart, long sourceEnd, long destStart) throws IOException {
-		SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, null);
+		SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, (SmartProgressListener)null);
 	}
 	
 	/**
@@ -223,6 +741,31 @@ public class SmartFile extends File {
 	 * @throws IOException if the read/write operations fail
 	 */
 	public static void writeToFile(File source, File dest, long sourceStart, long sourceEnd, long destStart, SmartProgressWindow spd) throws IOException {
+		SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Writes data from a source file to the destination file. Any existing data in the source file will be overwritten.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file. If this file doesn't exist, it will be created first.
+	 * @param sourceStart start position in the source file for the data to be copied
+	 * @param sourceEnd end position in the source file for the data to be copied
+	 * @param destStart start position in the destination file to begin writing data
+	 * @param listener a SmartProgressListener to track progress of the procedure; may be null.
+	 * @throws IOException if the read/write operations fail
+	 */
+	public static void writeToFile(File source, File dest, long sourceStart, long sourceEnd, long destStart, SmartProgressListener listener) throws IOException {
+		SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, listener, true);
+	}
+
+	/**
+	 * Writes data from a source file to the destination file, optionally allowing memory-mapped I/O for large ranges.
+	 * Edits that go on to change the length of the destination pass false, since on some platforms a file can't be
+	 * truncated or extended while a mapping of it is open.
+	 */
+	private static void writeToFile(File source, File dest, long sourceStart, long sourceEnd, long destStart, SmartProgressListener listener,
+			boolean allowMapped) throws IOException {
 		//make sure dest isn't same as orig
 		if (dest.getPath().equals(source.getPath())) {
 			throw new IOException("Destination is the same as the original.");
@@ -242,39 +785,38 @@ public class SmartFile extends File {
 		if (!dest.exists()) {
 			dest.createNewFile();
     	}
+		if (allowMapped && ((sourceEnd - sourceStart) >= mappedThreshold)) {
+			SmartFile.writeToFileMapped(source, dest, sourceStart, sourceEnd, destStart, listener);
+			return;
+		}
 		SmartRandomAccessFile fin = new SmartRandomAccessFile(source, "r");
 		SmartRandomAccessFile fos = new SmartRandomAccessFile(dest, "rw");
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
+		if (listener != null) {
+			listener.progressStarted(sourceEnd - sourceStart);
 		}
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(source, dest);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer pooled = pool.acquireHeap(bufferSize);
 		try {
-			byte[] buffer = new byte[BUFFER_SIZE];
-	        int counter = 0;
-	        long last = (long)((sourceEnd - sourceStart) / (float)BUFFER_SIZE);
-	        if (last == 0) {
-				last = 1;
-			}
+			byte[] buffer = pooled.array();
 	        fin.seek(sourceStart);
 	        fos.seek(destStart);
 	        while (fin.getFilePointer() < sourceEnd) {
-	        	if (spd != null) {
-		    		if (spd.wasCanceled()) {
+	        	if (listener != null) {
+		    		if (listener.isCanceled()) {
 		    			fin.close();
 		    		    fos.close();
-		    			spd.taskFinished();
+		    			listener.progressCanceled();
 		    			return;
 		    		}
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
+		    		listener.progressUpdated(fin.getFilePointer() - sourceStart, sourceEnd - sourceStart);
 		    	}
-	        	int len = fin.read(buffer);
-	        	if ((fin.getFilePointer()) <= sourceEnd) {
-	        		fos.write(buffer, 0, len);
-	        	} else {
-	        		fos.write(buffer, 0, ((int)((sourceEnd - sourceStart) % BUFFER_SIZE)));
+	        	int len = fin.read(buffer, 0, (int)Math.min(bufferSize, sourceEnd - fin.getFilePointer()));
+	        	if (len < 0) {
+	        		throw new IOException("Unexpected end of file while copying data");
 	        	}
+	        	fos.write(buffer, 0, len);
+	        	SmartIOThrottle.charge(len);
 	        }
 	        fin.close();
 	        fos.close();
@@ -286,7 +828,105 @@ public class SmartFile extends File {
 			fin.close();
 			fos.close();
 			throw new IOException("Exception thrown while copying file:\n" + generalerr.getMessage());
+		} finally {
+			pool.release(pooled);
+		}
+	}
+
+	/**
+	 * Writes data from a source file to the destination file by mapping both files into memory, a window at a time, and
+	 * copying directly between the mapped regions. Parameters are expected to have been validated already.
+	 *
+	 * @param source the source file
+	 * @param dest the destination file; must already exist
+	 * @param sourceStart start position in the source file for the data to be copied
+	 * @param sourceEnd end position in the source file for the data to be copied
+	 * @param destStart start position in the destination file to begin writing data
+	 * @param listener a SmartProgressListener to track progress of the procedure; may be null.
+	 * @throws IOException if the read/write operations fail
+	 */
+	private static void writeToFileMapped(File source, File dest, long sourceStart, long sourceEnd, long destStart, SmartProgressListener listener) throws IOException {
+		SmartRandomAccessFile fin = new SmartRandomAccessFile(source, "r");
+		SmartRandomAccessFile fos = new SmartRandomAccessFile(dest, "rw");
+		if (listener != null) {
+			listener.progressStarted(sourceEnd - sourceStart);
 		}
+		try {
+			FileChannel in = fin.getChannel();
+			FileChannel out = fos.getChannel();
+			long total = sourceEnd - sourceStart;
+			long done = 0;
+			//a single mapping can't exceed 2 GB, so slide a window along both files
+			while (done < total) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						fin.close();
+						fos.close();
+						listener.progressCanceled();
+						return;
+					}
+					listener.progressUpdated(done, total);
+				}
+				long len = Math.min(MAP_WINDOW_SIZE, total - done);
+				MappedByteBuffer src = in.map(FileChannel.MapMode.READ_ONLY, sourceStart + done, len);
+				MappedByteBuffer dst = out.map(FileChannel.MapMode.READ_WRITE, destStart + done, len);
+				try {
+					dst.put(src);
+				} finally {
+					//don't leave the mappings for the garbage collector, which would keep the files locked on some platforms
+					unmap(src);
+					unmap(dst);
+				}
+				SmartIOThrottle.charge(len);
+				done = done + len;
+			}
+			fin.close();
+			fos.close();
+		} catch (IOException err) {
+			fin.close();
+			fos.close();
+			throw err;
+		}
+	}
+
+	/**
+	 * Release a mapping straight away, where the JVM allows it. This uses sun.misc.Unsafe.invokeCleaner(), which exists
+	 * on Java 9 and later; on older JVMs the mapping is released when it is garbage collected. The buffer, and anything
+	 * duplicated or sliced from it, must not be used afterwards.
+	 */
+	static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+		} catch (Exception err) {
+			//not available; left to the garbage collector
+		}
+	}
+
+	/**
+	 * Returns the number of bytes above which writeToFile and appendToFile will copy data using memory-mapped
+	 * I/O instead of reading and writing a buffer at a time.
+	 *
+	 * @return the current threshold, in bytes
+	 */
+	public static long getMappedThreshold() {
+		return mappedThreshold;
+	}
+
+	/**
+	 * Set the number of bytes above which writeToFile and appendToFile will copy data using memory-mapped I/O
+	 * instead of reading and writing a buffer at a time. As with the buffered path, the data isn't forced to disk; each
+	 * mapping is released (its changes are kept) before the method returns where the JVM allows it (Java 9 and later). On older JVMs, mappings are only released when garbage collected,
+	 * and on some platforms (notably Windows) a file can't be truncated or deleted while a mapping is still open.
+	 * replace() never uses memory-mapped I/O, since it may go on to change the length of the file.
+	 *
+	 * @param bytes the new threshold, in bytes. Use Long.MAX_VALUE to never use memory-mapped I/O.
+	 */
+	public static void setMappedThreshold(long bytes) {
+		mappedThreshold = bytes;
 	}
 
 	/**
@@ -299,7 +939,7 @@ public class SmartFile extends File {
 	 * @throws IOException if the append fails
 	 */
 	public static void appendToFile(File source, File dest, long start, long end) throws IOException {
-		SmartFile.appendToFile(source, dest, start, end, null);
+		SmartFile.appendToFile(source, dest, start, end, (SmartProgressListener)null);
 	}
 
 	/**
@@ -313,7 +953,21 @@ public class SmartFile extends File {
 	 * @throws IOException if the append fails
 	 */
 	public static void appendToFile(File source, File dest, long start, long end, SmartProgressWindow spd) throws IOException {
-		SmartFile.writeToFile(source, dest, start, end, dest.length(), spd);
+		SmartFile.appendToFile(source, dest, start, end, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Appends data from a source file to the end of the destination file.
+	 *
+	 * @param source the source file
+	 * @param dest destination file. If this file doesn't exist, it will be created first.
+	 * @param start start position for the data to be copied
+	 * @param end end position for the data to be copied
+	 * @param listener a SmartProgressListener to track progress of the copy procedure; may be null. If process is canceled, appended file will not be deleted.
+	 * @throws IOException if the append fails
+	 */
+	public static void appendToFile(File source, File dest, long start, long end, SmartProgressListener listener) throws IOException {
+		SmartFile.writeToFile(source, dest, start, end, dest.length(), listener);
 	}
 
 	/**
@@ -324,7 +978,7 @@ public class SmartFile extends File {
 	 * @throws IOException if the delete fails
 	 */
 	public void deleteFromFile(long start, long end) throws IOException {
-		deleteFromFile(start, end, null);
+		deleteFromFile(start, end, (SmartProgressListener)null);
 	}
 
 	/**
@@ -337,11 +991,23 @@ public class SmartFile extends File {
 	 * @throws IOException if the delete fails
 	 */
 	public void deleteFromFile(long start, long end, SmartProgressWindow spd) throws IOException {
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
-		}
+		deleteFromFile(start, end, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Delete the specified portion of this file. Any bytes after the deleted portion will be moved appropriately.
+	 *
+	 * @param start start position for the data to be deleted
+	 * @param end end position for the data to be deleted
+	 * @param listener a SmartProgressListener to track progress of the delete procedure; may be null.
+	 * 		Process should not be canceled since file corruption would result.
+	 * @throws IOException if the delete fails
+	 */
+	public void deleteFromFile(long start, long end, SmartProgressListener listener) throws IOException {
 		SmartRandomAccessFile raf = new SmartRandomAccessFile(this, "rw");
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(this);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer pooled = pool.acquireHeap(bufferSize);
 		try {
 			//first check to see if portion being deleted is at very end of file
 			if (end >= this.length()) {
@@ -352,36 +1018,35 @@ public class SmartFile extends File {
 			}
 			raf.seek(end);
 			long curpos = raf.getFilePointer();
-			byte[] buf = new byte[BUFFER_SIZE];
-			int counter = 0;
-			int last = (int)((raf.length() - curpos) / (float)BUFFER_SIZE);
-			if (last == 0) {
-				last = 1;
+			byte[] buf = pooled.array();
+			long total = raf.length() - end;
+			if (listener != null) {
+				listener.progressStarted(total);
 			}
-			while ((curpos + BUFFER_SIZE) < raf.length()) {
-				if (spd != null) {
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
+			while ((curpos + bufferSize) < raf.length()) {
+				if (listener != null) {
+		    		listener.progressUpdated(curpos - end, total);
 		    	}
-				int x = raf.read(buf);
-				if (x != buf.length) {
+				int x = raf.read(buf, 0, bufferSize);
+				if (x != bufferSize) {
 					throw new IOException("Read error while moving data");
 				}
 				raf.seek(curpos - (end - start));
-				raf.write(buf);
-				raf.seek(curpos + BUFFER_SIZE);
+				raf.write(buf, 0, bufferSize);
+				SmartIOThrottle.charge(bufferSize);
+				raf.seek(curpos + bufferSize);
 				curpos = raf.getFilePointer();
 			}
 			//finish up any remaining bytes
 			if (raf.length() != curpos) {
-				buf = new byte[(int)(raf.length() - curpos)];
-				int x = raf.read(buf);
-				if (x != buf.length) {
+				int remaining = (int)(raf.length() - curpos);
+				int x = raf.read(buf, 0, remaining);
+				if (x != remaining) {
 					throw new Exception("Read error 2 while moving data");
 				}
 				raf.seek(curpos - (end - start));
-				raf.write(buf);
+				raf.write(buf, 0, remaining);
+				SmartIOThrottle.charge(remaining);
 			}
 			//remove anything after this
 			long newEnd = raf.getFilePointer();
@@ -394,6 +1059,8 @@ public class SmartFile extends File {
 			raf.close();
 			err.printStackTrace();
 			throw new IOException("General error");
+		} finally {
+			pool.release(pooled);
 		}
 	}
 
@@ -409,7 +1076,7 @@ public class SmartFile extends File {
 	 * @throws IOException if the insert fails
 	 */
 	public static void insertIntoFile(File source, long sourceStart, long sourceEnd, File dest, long destStart) throws IOException {
-		SmartFile.insertIntoFile(source, sourceStart, sourceEnd, dest, destStart, null);
+		SmartFile.insertIntoFile(source, sourceStart, sourceEnd, dest, destStart, (SmartProgressListener)null);
 	}
 
 	/**
@@ -425,10 +1092,22 @@ public class SmartFile extends File {
 	 * @throws IOException if the insert fails
 	 */
 	public static void insertIntoFile(File source, long sourceStart, long sourceEnd, File dest, long destStart, SmartProgressWindow spd) throws IOException {
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
-		}
+		SmartFile.insertIntoFile(source, sourceStart, sourceEnd, dest, destStart, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Insert data from one file into another file. This data can be inserted into any place in the destination file;
+	 * all bytes after the insert will be moved appropriately.
+	 *
+	 * @param source the source file to copy from
+	 * @param sourceStart the start position in the source file to copy from
+	 * @param sourceEnd the end position in the source file to copy from
+	 * @param dest the destination file
+	 * @param destStart the position in the destination file to begin writing inserted data
+	 * @param listener a SmartProgressListener to track progress of the insert procedure; may be null. Process should not be canceled since file corruption would result.
+	 * @throws IOException if the insert fails
+	 */
+	public static void insertIntoFile(File source, long sourceStart, long sourceEnd, File dest, long destStart, SmartProgressListener listener) throws IOException {
 		if ((sourceEnd < sourceStart) || (sourceStart < 0)) {
 			throw new IOException("Incorrect source start and end points");
 		}
@@ -437,7 +1116,10 @@ public class SmartFile extends File {
 		}
 		SmartRandomAccessFile rafDest = new SmartRandomAccessFile(dest, "rw");
 		SmartRandomAccessFile rafSource = new SmartRandomAccessFile(source, "r");
-		byte[] buf = new byte[BUFFER_SIZE];
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(source, dest);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer pooled = pool.acquireHeap(bufferSize);
+		byte[] buf = pooled.array();
 		try {
 			//first, move all existing data in dest file over by the appropriate amount
 			long oldend = rafDest.length();
@@ -446,70 +1128,61 @@ public class SmartFile extends File {
 			//start at the end so we don't overwrite data before it's read!
 			rafDest.seek(oldend);
 			long curpos;
-			int counter = 0;
-			int last = (int)((rafDest.getFilePointer() - destStart) / BUFFER_SIZE);
-			if (last == 0) {
-				last = 1;
+			//progress covers moving the existing data and then writing the inserted data
+			long total = (oldend - destStart) + moveAmt;
+			if (listener != null) {
+				listener.progressStarted(total);
 			}
-			while ((rafDest.getFilePointer() - BUFFER_SIZE) >= destStart) {
-				if (spd != null) {
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
+			while ((rafDest.getFilePointer() - bufferSize) >= destStart) {
+				if (listener != null) {
+		    		listener.progressUpdated(oldend - rafDest.getFilePointer(), total);
 		    	}
 				curpos = rafDest.getFilePointer();
-				rafDest.seek(curpos - BUFFER_SIZE);
-				int x = rafDest.read(buf);
-				if (x != buf.length) {
+				rafDest.seek(curpos - bufferSize);
+				int x = rafDest.read(buf, 0, bufferSize);
+				if (x != bufferSize) {
 					throw new IOException("Read error while inserting file");
 				}
-				rafDest.seek(curpos - BUFFER_SIZE + moveAmt);
-				rafDest.write(buf);
-				rafDest.seek(curpos - BUFFER_SIZE);
+				rafDest.seek(curpos - bufferSize + moveAmt);
+				rafDest.write(buf, 0, bufferSize);
+				SmartIOThrottle.charge(bufferSize);
+				rafDest.seek(curpos - bufferSize);
 			}
 			//get any leftover bytes
 			if (rafDest.getFilePointer() != destStart) {
-				buf = new byte[(int)(rafDest.getFilePointer() - destStart)];
+				int remaining = (int)(rafDest.getFilePointer() - destStart);
 				rafDest.seek(destStart);
-				int x = rafDest.read(buf);
-				if (x != (rafDest.getFilePointer() - destStart)) {
+				int x = rafDest.read(buf, 0, remaining);
+				if (x != remaining) {
 					throw new IOException("Read error while inserting file");
 				}
 				rafDest.seek(destStart + moveAmt);
-				rafDest.write(buf);
+				rafDest.write(buf, 0, remaining);
+				SmartIOThrottle.charge(remaining);
 			}
 			//now write the new inserted bytes
-			if (spd != null) {
-				spd.setProgressCounter(0);
-			}
-			counter = 0;
-			last = (int)((sourceEnd - sourceStart) / BUFFER_SIZE);
-			if (last == 0) {
-				last = 1;
-			}
-			buf = new byte[BUFFER_SIZE];
 			rafSource.seek(sourceStart);
 			rafDest.seek(destStart);
-			while ((rafSource.getFilePointer() + BUFFER_SIZE) <= sourceEnd) {
-				if (spd != null) {
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
+			while ((rafSource.getFilePointer() + bufferSize) <= sourceEnd) {
+				if (listener != null) {
+		    		listener.progressUpdated((oldend - destStart) + (rafSource.getFilePointer() - sourceStart), total);
 		    	}
-				int x = rafSource.read(buf);
-				if (x != buf.length) {
+				int x = rafSource.read(buf, 0, bufferSize);
+				if (x != bufferSize) {
 					throw new IOException("Read error while reading source file");
 				}
-				rafDest.write(buf);
+				rafDest.write(buf, 0, bufferSize);
+				SmartIOThrottle.charge(bufferSize);
 			}
 			//get the last few bytes
 			if (rafSource.getFilePointer() < sourceEnd) {
-				buf = new byte[(int)(sourceEnd - rafSource.getFilePointer())];
-				int x = rafSource.read(buf);
-				if (x != buf.length) {
+				int remaining = (int)(sourceEnd - rafSource.getFilePointer());
+				int x = rafSource.read(buf, 0, remaining);
+				if (x != remaining) {
 					throw new IOException("Read error while reading source file");
 				}
-				rafDest.write(buf);
+				rafDest.write(buf, 0, remaining);
+				SmartIOThrottle.charge(remaining);
 			}
 			//DONE!
 			rafDest.close();
@@ -523,6 +1196,8 @@ public class SmartFile extends File {
 			rafDest.close();
 			rafSource.close();
 			throw new IOException("General error");
+		} finally {
+			pool.release(pooled);
 		}
 	}
 
@@ -535,7 +1210,7 @@ public class SmartFile extends File {
 	 * @throws IOException if read/write error occurs
 	 */
 	public void insertIntoFile(byte[] bytearray, long start) throws IOException {
-		insertIntoFile(bytearray, start, null);
+		insertIntoFile(bytearray, start, (SmartProgressListener)null);
 	}
 	
 	/**
@@ -549,7 +1224,7 @@ public class SmartFile extends File {
 	 * @throws IOException if read/write error occurs
 	 */
 	public void insertIntoFile(byte[] bytearray, int offset, int len, int start)  throws IOException {
-		insertIntoFile(bytearray, offset, start, len, null);
+		insertIntoFile(bytearray, offset, len, start, (SmartProgressListener)null);
 	}
 	
 	/**
@@ -562,7 +1237,23 @@ public class SmartFile extends File {
 	 * @throws IOException if read/write error occurs
 	 */
 	public void insertIntoFile(byte[] bytearray, long start, SmartProgressWindow spd) throws IOException {
-		insertIntoFile(bytearray, 0, bytearray.length, start, spd);
+		insertIntoFile(bytearray, start, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Insert data from a byte array into this file. This data can be inserted into any place in the destination file; all bytes after the insert will be
+	 * moved appropriately.
+	 *
+	 * @param bytearray the array to write data from
+	 * @param start the place in the file to begin writing the data
+	 * @param listener a SmartProgressListener to track progress of the insert procedure; may be null. Process should not be canceled since file corruption would result.
+	 * @throws IOException if read/write error occurs
+	 */
+	public void insertIntoFile(byte[] bytearray, long start, SmartProgressListener listener) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		insertIntoFile(bytearray, 0, bytearray.length, start, listener);
 	}
 
 	/**
@@ -577,21 +1268,35 @@ public class SmartFile extends File {
 	 * @throws IOException if read/write error occurs
 	 */
 	public void insertIntoFile(byte[] bytearray, int offset, int len, long start, SmartProgressWindow spd) throws IOException {
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
-		}
+		insertIntoFile(bytearray, offset, len, start, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Insert data from a byte array into this file. This data can be inserted into any place in the destination file; all bytes after the insert will be
+	 * moved appropriately.
+	 *
+	 * @param bytearray the array to write data from
+	 * @param offset start position to begin reading in the byte array
+	 * @param len number of bytes to read in byte array
+	 * @param start the place in the file to begin writing the data
+	 * @param listener a SmartProgressListener to track progress of the insert procedure; may be null. Process should not be canceled since file corruption would result.
+	 * @throws IOException if read/write error occurs
+	 */
+	public void insertIntoFile(byte[] bytearray, int offset, int len, long start, SmartProgressListener listener) throws IOException {
 		if (bytearray == null) {
 			throw new IOException("Byte array is null");
 		}
-		if (bytearray.length == 0) {
+		if (len == 0) {
 			return;
 		}
 		if ((start < 0) || (start > this.length())) {
 			throw new IOException("Incorrect start value");
 		}
 		SmartRandomAccessFile raf = new SmartRandomAccessFile(this, "rw");
-		byte[] buf = new byte[BUFFER_SIZE];
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(this);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer pooled = pool.acquireHeap(bufferSize);
+		byte[] buf = pooled.array();
 		try {
 			//first, move all existing data over by the appropriate amount
 			long oldend = raf.length();
@@ -599,41 +1304,41 @@ public class SmartFile extends File {
 			//start at the end so we don't overwrite data before it's read!
 			raf.seek(oldend);
 			long curpos;
-			int counter = 0;
-			int last = (int)((raf.getFilePointer() - start) / BUFFER_SIZE);
-			if (last == 0) {
-				last = 1;
+			long total = oldend - start;
+			if (listener != null) {
+				listener.progressStarted(total);
 			}
-			while ((raf.getFilePointer() - BUFFER_SIZE) >= start) {
-				if (spd != null) {
-		    		counter = counter + 1;
-		    		float x = ((float)(counter) / (float)last) * 100f;
-		    		spd.setProgressCounter((int)x);
+			while ((raf.getFilePointer() - bufferSize) >= start) {
+				if (listener != null) {
+		    		listener.progressUpdated(oldend - raf.getFilePointer(), total);
 		    	}
 				curpos = raf.getFilePointer();
-				raf.seek(curpos - BUFFER_SIZE);
-				int x = raf.read(buf);
-				if (x != buf.length) {
+				raf.seek(curpos - bufferSize);
+				int x = raf.read(buf, 0, bufferSize);
+				if (x != bufferSize) {
 					throw new IOException("Read error while inserting file");
 				}
-				raf.seek(curpos - BUFFER_SIZE + len);
-				raf.write(buf);
-				raf.seek(curpos - BUFFER_SIZE);
+				raf.seek(curpos - bufferSize + len);
+				raf.write(buf, 0, bufferSize);
+				SmartIOThrottle.charge(bufferSize);
+				raf.seek(curpos - bufferSize);
 			}
 			//get any leftover bytes
 			if (raf.getFilePointer() != start) {
-				buf = new byte[(int)(raf.getFilePointer() - start)];
+				int remaining = (int)(raf.getFilePointer() - start);
 				raf.seek(start);
-				int x = raf.read(buf);
-				if (x != (raf.getFilePointer() - start)) {
+				int x = raf.read(buf, 0, remaining);
+				if (x != remaining) {
 					throw new IOException("Read error while inserting file");
 				}
 				raf.seek(start + len);
-				raf.write(buf);
+				raf.write(buf, 0, remaining);
+				SmartIOThrottle.charge(remaining);
 			}
 			//now write new inserted bytes
 			raf.seek(start);
 			raf.write(bytearray, offset, len);
+			SmartIOThrottle.charge(len);
 			//DONE!
 			raf.close();
 		} catch (IOException err) {
@@ -643,6 +1348,8 @@ public class SmartFile extends File {
 			err.printStackTrace();
 			raf.close();
 			throw new IOException("General error");
+		} finally {
+			pool.release(pooled);
 		}
 	}
 	
@@ -659,7 +1366,7 @@ public class SmartFile extends File {
 	 * @throws IOException if an error occur in reading or writing the files
 	 */
 	public static void replace(File source, long sourceStart, long sourceEnd, File dest, long destStart, long destEnd) throws IOException {
-		SmartFile.replace(source, sourceStart, sourceEnd, dest, destStart, destEnd, null);
+		SmartFile.replace(source, sourceStart, sourceEnd, dest, destStart, destEnd, (SmartProgressListener)null);
 	}
 	
 	/**
@@ -676,10 +1383,23 @@ public class SmartFile extends File {
 	 * @throws IOException if an error occur in reading or writing the files
 	 */
 	public static void replace(File source, long sourceStart, long sourceEnd, File dest, long destStart, long destEnd, SmartProgressWindow spd) throws IOException {
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
-		}
+		SmartFile.replace(source, sourceStart, sourceEnd, dest, destStart, destEnd, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Replace part of one file with part of another. The new data does not have to be the same size as the portion that
+	 * is being replaced.
+	 * 
+	 * @param source the source file that data will be copied from
+	 * @param sourceStart the start byte position for data to be copied
+	 * @param sourceEnd the end byte position for data to be copied
+	 * @param dest the destination file that will be written to
+	 * @param destStart the start byte position that will be replaced
+	 * @param destEnd the end byte position that will be replaced
+	 * @param listener a SmartProgressListener that can track progress of this task; may be null
+	 * @throws IOException if an error occur in reading or writing the files
+	 */
+	public static void replace(File source, long sourceStart, long sourceEnd, File dest, long destStart, long destEnd, SmartProgressListener listener) throws IOException {
 		SmartFile smartDest = new SmartFile(dest);
 		if ((sourceStart < 0) || (sourceStart > source.length())) {
 			throw new IOException("Incorrect source start value");
@@ -698,17 +1418,17 @@ public class SmartFile extends File {
 		long addAmt = sourceEnd - sourceStart;
 		if (removeAmt == addAmt) {
 			//the easiest case; just directly write over the old data and that's it!
-			SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, spd);
+			SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, listener, false);
 		} else if (removeAmt > addAmt) {
 			//file will shrink somewhat
-			smartDest.deleteFromFile(destStart, destStart + (removeAmt - addAmt), spd);
-			SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, spd);
+			smartDest.deleteFromFile(destStart, destStart + (removeAmt - addAmt), listener);
+			SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, listener, false);
 		} else {
 			//file size will increase somewhat
 			//first overwrite
-			SmartFile.writeToFile(source, dest, sourceStart, sourceStart + (int)removeAmt, destStart, spd);
+			SmartFile.writeToFile(source, dest, sourceStart, sourceStart + (int)removeAmt, destStart, listener, false);
 			//then insert
-			SmartFile.insertIntoFile(source, sourceStart + removeAmt, sourceEnd, dest, destStart + removeAmt, spd);
+			SmartFile.insertIntoFile(source, sourceStart + removeAmt, sourceEnd, dest, destStart + removeAmt, listener);
 		}
 	}
 	
@@ -722,7 +1442,7 @@ public class SmartFile extends File {
 	 * @throws IOException if an error occurs in writing the file
 	 */
 	public void replace(byte[] bytearray, long start, long end) throws IOException {
-		replace(bytearray, start, end, null);
+		replace(bytearray, start, end, (SmartProgressListener)null);
 	}
 	
 	/**
@@ -736,10 +1456,20 @@ public class SmartFile extends File {
 	 * @throws IOException if an error occurs in writing the file
 	 */
 	public void replace(byte[] bytearray, long start, long end, SmartProgressWindow spd) throws IOException {
-		if (spd != null) {
-			spd.setProgressCounterMax(100);
-			spd.setProgressCounter(0);
-		}
+		replace(bytearray, start, end, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Replace part of the current file with the specified byte array. New array does not have to be the same size as the portion that
+	 * is being replaced.
+	 * 
+	 * @param bytearray array of bytes to insert into file
+	 * @param start beginning byte position of data that will be replaced
+	 * @param end end byte position of data that will be replaced
+	 * @param listener a SmartProgressListener that can track progress of this task; may be null
+	 * @throws IOException if an error occurs in writing the file
+	 */
+	public void replace(byte[] bytearray, long start, long end, SmartProgressListener listener) throws IOException {
 		if (bytearray == null) {
 			throw new IOException("Byte array is null");
 		}
@@ -760,7 +1490,7 @@ public class SmartFile extends File {
 				raf.write(bytearray);
 			} else if (removeAmt > addAmt) {
 				//file will shrink somewhat
-				this.deleteFromFile(start, start + (removeAmt - addAmt), spd);
+				this.deleteFromFile(start, start + (removeAmt - addAmt), listener);
 				raf.seek(start);
 				raf.write(bytearray);
 			} else {
@@ -769,7 +1499,7 @@ public class SmartFile extends File {
 				raf.seek(start);
 				raf.write(bytearray, 0, (int)removeAmt);
 				//then insert
-				this.insertIntoFile(bytearray, (int)removeAmt, (int)(bytearray.length - removeAmt), raf.getFilePointer(), spd);
+				this.insertIntoFile(bytearray, (int)removeAmt, (int)(bytearray.length - removeAmt), raf.getFilePointer(), listener);
 			}
 			raf.close();
 		} catch (IOException err) {
@@ -779,37 +1509,83 @@ public class SmartFile extends File {
 	}
 		
     /**
-     * Will write a string out to this file. This does not append, but rather creates a new file (or erases a previous one),
-     * and writes the string to the new file.
+     * Will write a string out to this file, in the platform's default character set. This does not append, but rather
+     * replaces any previous file. See writeStringToFile(CharSequence, Charset, boolean).
      *
      * @param theString  The string to write out
      * @param overwrite whether to write the string if the file already exists. If set to false, and file exists, an exception will be thrown.
      * @throws IOException if file can't be written
      */
     public void writeStringToFile(String theString, boolean overwrite) throws IOException {
-    	if (this.exists()) {
-    		if (overwrite) {
-    			this.delete();
-    		} else {
-    			throw new IOException("File already exists");
-    		}
+    	writeStringToFile(theString, Charset.defaultCharset(), overwrite);
+    }
+
+    /**
+     * Will write text out to this file, in the specified character set. This does not append, but rather replaces any
+     * previous file. The text is written to a temporary file in the same directory, which is then moved over this one,
+     * so that anyone reading the file sees either the old contents or the new, never a partly written file. The new file
+     * is given the permissions and owner of the old one, and if this file is a symbolic link, the file it points to is
+     * replaced and the link kept. Other hard links to the old file are not updated. The text is
+     * encoded in chunks through a reusable buffer rather than being copied into a byte array first. Characters that
+     * can't be encoded are replaced, as with a FileWriter.
+     *
+     * @param text  The text to write out
+     * @param charset the character set to encode the text with
+     * @param overwrite whether to write the text if the file already exists. If set to false, and file exists, an exception will be thrown.
+     * @throws IOException if file can't be written
+     */
+    public void writeStringToFile(CharSequence text, Charset charset, boolean overwrite) throws IOException {
+    	if (this.exists() && !overwrite) {
+    		throw new IOException("File already exists");
     	}
-    	this.createNewFile();
-    	FileWriter fw = new FileWriter(this);
+    	File target = replaceTarget(this);
+    	CharsetEncoder encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    	File temp = File.createTempFile("robusta", ".tmp", target.getAbsoluteFile().getParentFile());
+    	SmartBufferPool pool = SmartBufferPool.getDefault();
+    	ByteBuffer buffer = pool.acquireDirect(SmartDeviceProfile.bufferSizeFor(this));
+    	FileOutputStream fos = new FileOutputStream(temp);
+    	boolean done = false;
     	try {
-    		fw.write(theString);
-    		fw.flush();
-    		fw.close();
-    	} catch (IOException e) {
-    		fw.flush();
-    		fw.close();
-    		throw e;
+    		FileChannel out = fos.getChannel();
+    		CharBuffer chars = CharBuffer.wrap(text);
+    		while (encoder.encode(chars, buffer, true).isOverflow()) {
+    			drainBuffer(buffer, out);
+    		}
+    		while (encoder.flush(buffer).isOverflow()) {
+    			drainBuffer(buffer, out);
+    		}
+    		drainBuffer(buffer, out);
+    		fos.close();
+    		if (target.exists()) {
+    			copyAttributes(target, temp);
+    		}
+    		moveOver(temp, target);
+    		done = true;
+    	} finally {
+    		pool.release(buffer);
+    		if (!done) {
+    			fos.close();
+    			temp.delete();
+    		}
+    	}
+    }
+
+    /**
+     * Write out whatever is in a buffer, and clear it for reuse.
+     */
+    private static void drainBuffer(ByteBuffer buffer, FileChannel out) throws IOException {
+    	buffer.flip();
+    	while (buffer.hasRemaining()) {
+    		out.write(buffer);
     	}
+    	SmartIOThrottle.charge(buffer.limit());
+    	buffer.clear();
     }
 
     /**
      * Will append a string to the end of this file. If this file does not already exist,
-     * it will be created automatically.
+     * it will be created automatically. The file is opened and closed on every call; to append
+     * many strings, such as log lines, use a SmartFileAppender instead.
      *
      * @param theString  The string to append
      * @throws IOException if file can't be written
@@ -837,7 +1613,7 @@ public class SmartFile extends File {
 	 * @throws IOException if file not found or can't be read
 	 */
 	public String getMD5Checksum() throws IOException {
-		return getMD5Checksum(0, this.length(), null);
+		return getMD5Checksum(0, this.length(), (SmartProgressListener)null);
 	}
 
 	/**
@@ -851,6 +1627,17 @@ public class SmartFile extends File {
 		return getMD5Checksum(0, this.length(), spw);
 	}
 
+	/**
+	 * Returns an MD5 checksum value for the file.
+	 *
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a string representing the checksum value
+	 * @throws IOException if file not found or can't be read
+	 */
+	public String getMD5Checksum(SmartProgressListener listener) throws IOException {
+		return getMD5Checksum(0, this.length(), listener);
+	}
+
 	/**
 	 * Returns an MD5 checksum value for a portion of the file.
 	 *
@@ -860,7 +1647,7 @@ public class SmartFile extends File {
 	 * @throws IOException if file not found or can't be read
 	 */
 	public String getMD5Checksum(long start, long end) throws IOException {
-		return getMD5Checksum(start, end, null);
+		return getMD5Checksum(start, end, (SmartProgressListener)null);
 	}
 
 	/**
@@ -873,60 +1660,139 @@ public class SmartFile extends File {
 	 * @throws IOException if file not found or can't be read
 	 */
 	public String getMD5Checksum(long start, long end, SmartProgressWindow spw) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile(this, "r");
-		long m = end - start;
-		byte[] buffer = new byte[BUFFER_SIZE];
-		if (spw != null) {
-			spw.setProgressCounterMax(100);
-			spw.setProgressCounter(0);
-		}
-	    MessageDigest complete = null;
-	    try {
-	    	complete = MessageDigest.getInstance("MD5");
-	    } catch (Exception err) {
-	    	err.printStackTrace();
-	    	throw new IOException("Error generating MD5");
-	    }
-	    try {
-	    	raf.seek(start);
-	    	int numRead;
-		    do {
-		    	if (raf.getFilePointer() >= (end - BUFFER_SIZE)) {
-		    		buffer = new byte[(int)(end - raf.getFilePointer())];
-		    	}
-		    	numRead = raf.read(buffer);
-		    	if (numRead > 0) {
-		    		complete.update(buffer, 0, numRead);
-		        }
-		    	if (spw != null) {
-		    		if (spw.wasCanceled()) {
-		    			spw.taskFinished();
-		    			return "";
-		    		}
-		    		long l = raf.getFilePointer() - start;
-		    		float x = ((float)l / (float)m) * 100f;
-		    		spw.setProgressCounter((int)x);
-		    	}
-		    } while (numRead > 0);
-		    raf.close();
-		    byte[] inn = complete.digest();
-		    byte ch = 0x00;
-		    int i = 0;
-		    String pseudo[] = {"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "A", "B", "C", "D", "E", "F"};
-		    StringBuffer out = new StringBuffer(inn.length * 2);
-		    while (i < inn.length) {
-		        ch = (byte) (inn[i] & 0xF0);
-		        ch = (byte) (ch >>> 4);
-		        ch = (byte) (ch & 0x0F);
-		        out.append(pseudo[ (int) ch]);
-		        ch = (byte) (inn[i] & 0x0F);
-		        out.append(pseudo[ (int) ch]);
-		        i++;
-		    }
-		    return new String(out);
-	    } catch (IOException err) {
-	    	raf.close();
-	    	throw err;
-	    }
+		return getMD5Checksum(start, end, (SmartProgressListener)spw);
+	}
+
+	/**
+	 * Returns an MD5 checksum value for a portion of the file.
+	 *
+	 * @param start the start position of the portion to checksum
+	 * @param end the end position of the portion to checksum
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a string representing the checksum value, or an empty string if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public String getMD5Checksum(long start, long end, SmartProgressListener listener) throws IOException {
+		SmartChecksum checksum = getChecksums(start, end, listener, ChecksumAlgorithm.MD5);
+		if (checksum == null) {
+			return "";
+		}
+		return checksum.getHex(ChecksumAlgorithm.MD5);
+	}
+
+	/**
+	 * Returns an MD5 checksum value for a file that only grows, such as a log, hashing only the data appended since an
+	 * earlier checkpoint. If the file has been changed other than by appending, it is hashed from the start.
+	 *
+	 * @param previous the checkpoint returned by an earlier call for this file, or null to hash the whole file
+	 * @return a new checkpoint, holding the checksum of the whole file
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartMD5Checkpoint updateMD5Checksum(SmartMD5Checkpoint previous) throws IOException {
+		return updateMD5Checksum(previous, (SmartProgressListener)null);
+	}
+
+	/**
+	 * Returns an MD5 checksum value for a file that only grows, such as a log, hashing only the data appended since an
+	 * earlier checkpoint. If the file has been changed other than by appending, it is hashed from the start.
+	 *
+	 * @param previous the checkpoint returned by an earlier call for this file, or null to hash the whole file
+	 * @param spw a SmartProgressWindow for displaying progress information
+	 * @return a new checkpoint, holding the checksum of the whole file, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartMD5Checkpoint updateMD5Checksum(SmartMD5Checkpoint previous, SmartProgressWindow spw) throws IOException {
+		return updateMD5Checksum(previous, (SmartProgressListener)spw);
+	}
+
+	/**
+	 * Returns an MD5 checksum value for a file that only grows, such as a log, hashing only the data appended since an
+	 * earlier checkpoint. If the file has been changed other than by appending, it is hashed from the start.
+	 *
+	 * @param previous the checkpoint returned by an earlier call for this file, or null to hash the whole file
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a new checkpoint, holding the checksum of the whole file, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartMD5Checkpoint updateMD5Checksum(SmartMD5Checkpoint previous, SmartProgressListener listener) throws IOException {
+		return SmartMD5Checkpoint.calculate(this, previous, listener);
+	}
+
+	/**
+	 * Calculate one or more checksums for the file, reading it only once.
+	 *
+	 * @param algorithms the checksum algorithms to calculate
+	 * @return the checksum values
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartChecksum getChecksums(ChecksumAlgorithm... algorithms) throws IOException {
+		return getChecksums(0, this.length(), (SmartProgressListener)null, algorithms);
+	}
+
+	/**
+	 * Calculate one or more checksums for a portion of the file, reading it only once. Each block that is read is
+	 * handed to all of the algorithms at once, each on its own thread.
+	 *
+	 * @param start the start position of the portion to checksum
+	 * @param end the end position of the portion to checksum
+	 * @param spw a SmartProgressWindow for displaying progress information; may be null
+	 * @param algorithms the checksum algorithms to calculate
+	 * @return the checksum values, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartChecksum getChecksums(long start, long end, SmartProgressWindow spw, ChecksumAlgorithm... algorithms) throws IOException {
+		return getChecksums(start, end, (SmartProgressListener)spw, algorithms);
+	}
+
+	/**
+	 * Calculate one or more checksums for a portion of the file, reading it only once.
+	 *
+	 * @param start the start position of the portion to checksum
+	 * @param end the end position of the portion to checksum
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @param algorithms the checksum algorithms to calculate
+	 * @return the checksum values, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartChecksum getChecksums(long start, long end, SmartProgressListener listener, ChecksumAlgorithm... algorithms) throws IOException {
+		return SmartChecksum.calculate(this, start, end, listener, algorithms);
+	}
+
+	/**
+	 * Calculate a tree hash for the file, using MD5 and the default chunk size. The chunks are hashed in parallel.
+	 *
+	 * @return the tree hash
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartTreeHash getTreeHash() throws IOException {
+		return getTreeHash(ChecksumAlgorithm.MD5, SmartTreeHash.DEFAULT_CHUNK_SIZE, (SmartProgressListener)null);
+	}
+
+	/**
+	 * Calculate a tree hash for the file. The file is split into fixed-size chunks that are hashed in parallel using
+	 * positional reads, and the chunk hashes are then combined into a single root hash. The chunk hashes are kept, so
+	 * that SmartTreeHash.verify() can later report exactly which chunks of a file are corrupt.
+	 *
+	 * @param algorithm the hash algorithm to use
+	 * @param chunkSize the size of each chunk, in bytes
+	 * @param spw a SmartProgressWindow for displaying progress information; may be null
+	 * @return the tree hash, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartTreeHash getTreeHash(ChecksumAlgorithm algorithm, int chunkSize, SmartProgressWindow spw) throws IOException {
+		return getTreeHash(algorithm, chunkSize, (SmartProgressListener)spw);
+	}
+
+	/**
+	 * Calculate a tree hash for the file.
+	 *
+	 * @param algorithm the hash algorithm to use
+	 * @param chunkSize the size of each chunk, in bytes
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return the tree hash, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	public SmartTreeHash getTreeHash(ChecksumAlgorithm algorithm, int chunkSize, SmartProgressListener listener) throws IOException {
+		return SmartTreeHash.calculate(this, algorithm, chunkSize, listener);
 	}
 }
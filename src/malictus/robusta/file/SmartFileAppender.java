@@ -0,0 +1,344 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * A SmartFileAppender appends strings to the end of a file, for cases such as logging where SmartFile.appendStringToFile()
+ * would be too slow because it opens and closes the file every time. The file is kept open, and strings are encoded into a
+ * reusable buffer.
+ *
+ * Appends may be made from many threads at once. While one thread is writing, the strings that other threads append are
+ * queued, and the next of those threads writes all of them in a single batch (group commit). Each append() returns once its
+ * string has been written to the file, and, depending on the durability setting, forced to the storage device:
+ *
+ * NONE - the data is written, but never forced; the operating system decides when it reaches the device
+ * PERIODIC - the data is written, and forced by a background thread every so often (see setForceInterval)
+ * GROUP_COMMIT - the data is forced before append() returns; each batch is forced once, however many strings are in it
+ *
+ * If a write fails, the appender is left unusable, since it can't tell how much of the batch reached the file.
+ */
+public class SmartFileAppender implements Closeable {
+
+	/**
+	 * How far appended data is forced to the storage device.
+	 */
+	public enum Durability {
+		NONE,
+		PERIODIC,
+		GROUP_COMMIT
+	}
+
+	/**
+	 * The default time between forces for PERIODIC durability, 1 second.
+	 */
+	public static final long DEFAULT_FORCE_INTERVAL = 1000;
+
+	private final File file;
+	private final Durability durability;
+	//written through the stream rather than its channel, since a FileChannel is closed if a thread using it is interrupted
+	private final FileOutputStream fos;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer buffer;
+	private final Object lock = new Object();
+	//the rest are guarded by lock
+	private List<String> pending = new ArrayList<String>();
+	//sequence number of the last string queued, and of the last string written
+	private long queued = 0;
+	private long written = 0;
+	private boolean writing = false;
+	private boolean closed = false;
+	private IOException failure = null;
+	private boolean dirty = false;
+	private long forceInterval = DEFAULT_FORCE_INTERVAL;
+	private Thread forcer = null;
+
+	/**
+	 * Open an appender for a file, with the platform's default character set and no durability guarantees. The file is
+	 * created if it doesn't exist yet.
+	 *
+	 * @param file the file to append to
+	 * @throws IOException if the file can't be opened
+	 */
+	public SmartFileAppender(File file) throws IOException {
+		this(file, Charset.defaultCharset(), Durability.NONE);
+	}
+
+	/**
+	 * Open an appender for a file. The file is created if it doesn't exist yet.
+	 *
+	 * @param file the file to append to
+	 * @param charset the character set to encode strings with
+	 * @param durability how far appended data is forced to the storage device
+	 * @throws IOException if the file can't be opened
+	 */
+	public SmartFileAppender(File file, Charset charset, Durability durability) throws IOException {
+		this.file = file;
+		this.durability = durability;
+		this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.fos = new FileOutputStream(file, true);
+		this.buffer = SmartBufferPool.getDefault().acquireHeap(Math.max(SmartDeviceProfile.bufferSizeFor(file), 1024));
+		if (durability == Durability.PERIODIC) {
+			forcer = new Thread("robusta-appender") {
+				public void run() {
+					forceRegularly();
+				}
+			};
+			forcer.setDaemon(true);
+			forcer.start();
+		}
+	}
+
+	/**
+	 * Return the file that this appender writes to.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the durability setting.
+	 *
+	 * @return the durability
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Set the time between forces, for PERIODIC durability.
+	 *
+	 * @param millis the time, in milliseconds
+	 */
+	public void setForceInterval(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("Incorrect interval");
+		}
+		synchronized (lock) {
+			forceInterval = millis;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Append a string to the end of the file. This may be called from several threads at once.
+	 *
+	 * @param theString the string to append
+	 * @throws IOException if the appender is closed, or the string can't be written
+	 */
+	public void append(String theString) throws IOException {
+		long seq;
+		synchronized (lock) {
+			checkUsable();
+			pending.add(theString);
+			queued = queued + 1;
+			seq = queued;
+		}
+		boolean interrupted = false;
+		try {
+			while (true) {
+				List<String> batch;
+				long batchEnd;
+				synchronized (lock) {
+					//wait for the thread that is writing, which may take this string along with its own
+					while (writing && (written < seq) && (failure == null)) {
+						try {
+							lock.wait();
+						} catch (InterruptedException err) {
+							//the string is already queued, and the writer may have taken it, so it has to be seen through
+							interrupted = true;
+						}
+					}
+					if (failure != null) {
+						throw new IOException("Unable to append to file: " + failure.getMessage());
+					}
+					if (written >= seq) {
+						return;
+					}
+					writing = true;
+					batch = pending;
+					pending = new ArrayList<String>();
+					batchEnd = queued;
+				}
+				IOException err = null;
+				try {
+					writeBatch(batch);
+				} catch (IOException e) {
+					err = e;
+				}
+				synchronized (lock) {
+					writing = false;
+					if (err != null) {
+						failure = err;
+					} else {
+						written = batchEnd;
+						dirty = true;
+					}
+					lock.notifyAll();
+				}
+				if (err != null) {
+					throw err;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Force everything written so far to the storage device, whatever the durability setting.
+	 *
+	 * @throws IOException if the data can't be forced
+	 */
+	public void force() throws IOException {
+		synchronized (lock) {
+			checkUsable();
+			dirty = false;
+		}
+		fos.getFD().sync();
+	}
+
+	/**
+	 * Close the appender, once any appends in progress have been written. Unless durability is NONE, the file is forced first.
+	 *
+	 * @throws IOException if the file can't be forced or closed
+	 */
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			//the file can't be closed under a writer, so wait for it even if interrupted
+			boolean interrupted = false;
+			while (writing && (failure == null)) {
+				try {
+					lock.wait();
+				} catch (InterruptedException err) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			//anything still queued is written here, rather than waiting for a thread that may never come back for it
+			if ((written < queued) && (failure == null)) {
+				IOException err = null;
+				try {
+					writeBatch(pending);
+				} catch (IOException e) {
+					err = e;
+				}
+				pending = new ArrayList<String>();
+				if (err != null) {
+					failure = err;
+				} else {
+					written = queued;
+				}
+			}
+			lock.notifyAll();
+		}
+		if (forcer != null) {
+			try {
+				forcer.join();
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if ((durability != Durability.NONE) && (failure == null)) {
+				fos.getFD().sync();
+			}
+		} finally {
+			fos.close();
+			SmartBufferPool.getDefault().release(buffer);
+		}
+	}
+
+	private void checkUsable() throws IOException {
+		if (closed) {
+			throw new IOException("Appender is closed");
+		}
+		if (failure != null) {
+			throw new IOException("Unable to append to file: " + failure.getMessage());
+		}
+	}
+
+	/**
+	 * Encode and write a batch of strings, and force them if need be. Only one thread at a time calls this.
+	 */
+	private void writeBatch(List<String> batch) throws IOException {
+		buffer.clear();
+		for (String s : batch) {
+			//each string is encoded on its own, just as if it had been written with a separate FileWriter
+			CharBuffer chars = CharBuffer.wrap(s);
+			encoder.reset();
+			while (encoder.encode(chars, buffer, true).isOverflow()) {
+				drain();
+			}
+			while (encoder.flush(buffer).isOverflow()) {
+				drain();
+			}
+		}
+		drain();
+		if (durability == Durability.GROUP_COMMIT) {
+			fos.getFD().sync();
+		}
+	}
+
+	private void drain() throws IOException {
+		int len = buffer.position();
+		fos.write(buffer.array(), buffer.arrayOffset(), len);
+		buffer.clear();
+		try {
+			SmartIOThrottle.charge(len);
+		} catch (InterruptedIOException err) {
+			//the data is already written, so the batch carries on; the interrupt stays set for the caller to see
+		}
+	}
+
+	private void forceRegularly() {
+		while (true) {
+			synchronized (lock) {
+				//the lock is notified after every batch, so keep waiting until the interval is really up
+				long due = System.currentTimeMillis() + forceInterval;
+				while (!closed && (failure == null)) {
+					long wait = due - System.currentTimeMillis();
+					if (wait <= 0) {
+						break;
+					}
+					try {
+						lock.wait(wait);
+					} catch (InterruptedException err) {
+						return;
+					}
+				}
+				if (closed || (failure != null)) {
+					return;
+				}
+				if (!dirty) {
+					continue;
+				}
+				dirty = false;
+			}
+			//forced outside the lock, so appends aren't held up meanwhile
+			try {
+				fos.getFD().sync();
+			} catch (IOException err) {
+				synchronized (lock) {
+					failure = err;
+					lock.notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,332 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.util.concurrent.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * SmartFileAsync runs the long-running SmartFile operations in the background, and returns a CompletableFuture for
+ * each one. The operations run on an Executor that may be specified when the SmartFileAsync is created; otherwise, a
+ * shared pool of daemon threads is used.
+ *
+ * Progress is reported through a SmartProgressListener, which will be called from the background thread. An operation
+ * can be canceled either through the listener, or by canceling the returned future; either way, the future ends up
+ * canceled. Operations that can't be stopped partway through (insert, delete and replace) will run to completion even if
+ * the future is canceled. If an operation fails, the future completes exceptionally with the IOException.
+ */
+public class SmartFileAsync {
+
+	//shared by all instances that don't have their own executor
+	private static ExecutorService defaultExecutor = null;
+
+	private final Executor executor;
+
+	/**
+	 * Create a SmartFileAsync that runs operations on a shared pool of daemon threads.
+	 */
+	public SmartFileAsync() {
+		this(getDefaultExecutor());
+	}
+
+	/**
+	 * Create a SmartFileAsync that runs operations on the specified executor.
+	 *
+	 * @param executor the executor to run operations on
+	 */
+	public SmartFileAsync(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Return the executor that operations run on.
+	 *
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Copy a file to a new location in the background. See SmartFile.copyFile().
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param overwrite whether to overwrite if file exists already
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the copy is finished
+	 */
+	public CompletableFuture<Void> copyFile(final File source, final File dest, final boolean overwrite, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				SmartFile.copyFile(source, dest, overwrite, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Write data from a source file to the destination file in the background. See SmartFile.writeToFile().
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param sourceStart start position in the source file for the data to be copied
+	 * @param sourceEnd end position in the source file for the data to be copied
+	 * @param destStart start position in the destination file to begin writing data
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the write is finished
+	 */
+	public CompletableFuture<Void> writeToFile(final File source, final File dest, final long sourceStart, final long sourceEnd, final long destStart,
+			SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				SmartFile.writeToFile(source, dest, sourceStart, sourceEnd, destStart, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Append data from a source file to the end of the destination file in the background. See SmartFile.appendToFile().
+	 *
+	 * @param source the source file
+	 * @param dest the destination file
+	 * @param start start position for the data to be copied
+	 * @param end end position for the data to be copied
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the append is finished
+	 */
+	public CompletableFuture<Void> appendToFile(final File source, final File dest, final long start, final long end, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				SmartFile.appendToFile(source, dest, start, end, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Insert data from one file into another file in the background. See SmartFile.insertIntoFile().
+	 *
+	 * @param source the source file to copy from
+	 * @param sourceStart the start position in the source file to copy from
+	 * @param sourceEnd the end position in the source file to copy from
+	 * @param dest the destination file
+	 * @param destStart the position in the destination file to begin writing inserted data
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the insert is finished
+	 */
+	public CompletableFuture<Void> insertIntoFile(final File source, final long sourceStart, final long sourceEnd, final File dest, final long destStart,
+			SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				SmartFile.insertIntoFile(source, sourceStart, sourceEnd, dest, destStart, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Insert data from a byte array into a file in the background. See SmartFile.insertIntoFile().
+	 *
+	 * @param file the file to insert into
+	 * @param bytearray the array to write data from
+	 * @param start the place in the file to begin writing the data
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the insert is finished
+	 */
+	public CompletableFuture<Void> insertIntoFile(final SmartFile file, final byte[] bytearray, final long start, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				file.insertIntoFile(bytearray, start, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Delete a portion of a file in the background. See SmartFile.deleteFromFile().
+	 *
+	 * @param file the file to delete from
+	 * @param start start position for the data to be deleted
+	 * @param end end position for the data to be deleted
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the delete is finished
+	 */
+	public CompletableFuture<Void> deleteFromFile(final SmartFile file, final long start, final long end, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				file.deleteFromFile(start, end, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Replace part of one file with part of another in the background. See SmartFile.replace().
+	 *
+	 * @param source the source file that data will be copied from
+	 * @param sourceStart the start byte position for data to be copied
+	 * @param sourceEnd the end byte position for data to be copied
+	 * @param dest the destination file that will be written to
+	 * @param destStart the start byte position that will be replaced
+	 * @param destEnd the end byte position that will be replaced
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the replace is finished
+	 */
+	public CompletableFuture<Void> replace(final File source, final long sourceStart, final long sourceEnd, final File dest, final long destStart,
+			final long destEnd, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				SmartFile.replace(source, sourceStart, sourceEnd, dest, destStart, destEnd, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Replace part of a file with a byte array in the background. See SmartFile.replace().
+	 *
+	 * @param file the file to write to
+	 * @param bytearray array of bytes to insert into file
+	 * @param start beginning byte position of data that will be replaced
+	 * @param end end byte position of data that will be replaced
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future that completes when the replace is finished
+	 */
+	public CompletableFuture<Void> replace(final SmartFile file, final byte[] bytearray, final long start, final long end, SmartProgressListener listener) {
+		return submit(new Task<Void>() {
+			public Void run(SmartProgressListener progress) throws IOException {
+				file.replace(bytearray, start, end, progress);
+				return null;
+			}
+		}, listener);
+	}
+
+	/**
+	 * Calculate the MD5 checksum of a file in the background. See SmartFile.getMD5Checksum().
+	 *
+	 * @param file the file to checksum
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return a future for the checksum value
+	 */
+	public CompletableFuture<String> getMD5Checksum(final SmartFile file, SmartProgressListener listener) {
+		return submit(new Task<String>() {
+			public String run(SmartProgressListener progress) throws IOException {
+				return file.getMD5Checksum(0, file.length(), progress);
+			}
+		}, listener);
+	}
+
+	/**
+	 * Calculate one or more checksums for a file in the background, reading it only once. See SmartFile.getChecksums().
+	 *
+	 * @param file the file to checksum
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @param algorithms the checksum algorithms to calculate
+	 * @return a future for the checksum values
+	 */
+	public CompletableFuture<SmartChecksum> getChecksums(final SmartFile file, SmartProgressListener listener, final ChecksumAlgorithm... algorithms) {
+		return submit(new Task<SmartChecksum>() {
+			public SmartChecksum run(SmartProgressListener progress) throws IOException {
+				return file.getChecksums(0, file.length(), progress, algorithms);
+			}
+		}, listener);
+	}
+
+	private <T> CompletableFuture<T> submit(final Task<T> task, SmartProgressListener listener) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final FutureProgressListener progress = new FutureProgressListener(future, listener);
+		//the task runs at the priority of the thread that submitted it
+		final SmartIOThrottle.Priority priority = SmartIOThrottle.getThreadPriority();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (future.isDone()) {
+						//canceled before it started
+						return;
+					}
+					SmartIOThrottle.Priority previous = SmartIOThrottle.getThreadPriority();
+					SmartIOThrottle.setThreadPriority(priority);
+					try {
+						T result = task.run(progress);
+						if (progress.wasCanceled()) {
+							future.cancel(false);
+						} else {
+							future.complete(result);
+						}
+					} catch (Throwable err) {
+						future.completeExceptionally(err);
+					} finally {
+						SmartIOThrottle.setThreadPriority(previous);
+					}
+				}
+			});
+		} catch (RejectedExecutionException err) {
+			future.completeExceptionally(err);
+		}
+		return future;
+	}
+
+	private static synchronized ExecutorService getDefaultExecutor() {
+		if (defaultExecutor == null) {
+			defaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "robusta-async");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return defaultExecutor;
+	}
+
+	/**
+	 * A single operation, run with the listener that it should report progress to.
+	 */
+	private interface Task<T> {
+		T run(SmartProgressListener progress) throws IOException;
+	}
+
+	/**
+	 * Passes progress through to the caller's listener (if any), and also treats a canceled future as a request to cancel.
+	 */
+	private static class FutureProgressListener implements SmartProgressListener {
+
+		private final Future<?> future;
+		private final SmartProgressListener delegate;
+		private volatile boolean canceled = false;
+
+		FutureProgressListener(Future<?> future, SmartProgressListener delegate) {
+			this.future = future;
+			this.delegate = delegate;
+		}
+
+		boolean wasCanceled() {
+			return canceled;
+		}
+
+		public void progressStarted(long total) {
+			if (delegate != null) {
+				delegate.progressStarted(total);
+			}
+		}
+
+		public void progressUpdated(long completed, long total) {
+			if (delegate != null) {
+				delegate.progressUpdated(completed, total);
+			}
+		}
+
+		public boolean isCanceled() {
+			return future.isCancelled() || ((delegate != null) && delegate.isCanceled());
+		}
+
+		public void progressCanceled() {
+			canceled = true;
+			if (delegate != null) {
+				delegate.progressCanceled();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,335 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import malictus.robusta.file.SegmentList.Segment;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.swing.*;
+
+/**
+ * A SmartFileEditSession collects a series of insert, delete, replace and write operations against a single file, and
+ * applies them all at once when committed. Each operation takes the same arguments as its SmartFile counterpart
+ * (insertIntoFile, deleteFromFile, replace, writeToFile), with positions relative to the file as it would look after
+ * all previous operations in the session, so the committed file is identical to one produced by calling those methods
+ * one after another. Rather than shifting the rest of the file for every operation, the session only keeps track of
+ * which parts of the original file (and of other files and byte arrays) make up the edited file, and then writes the
+ * result in one sequential pass.
+ *
+ * Source files passed to the session are not read until the session is committed, so they must not change in the meantime.
+ */
+public class SmartFileEditSession {
+
+	private final File file;
+	//the pieces that make up the edited file, in order
+	private final SegmentList segments;
+	private boolean edited;
+
+	/**
+	 * Start a new edit session for the specified file. If the file does not exist yet, it is treated as being empty,
+	 * and will be created when the session is committed.
+	 *
+	 * @param file the file to edit
+	 */
+	public SmartFileEditSession(File file) {
+		this.file = file;
+		this.segments = new SegmentList(file);
+	}
+
+	/**
+	 * Return the file that this session edits.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the length the file will have once the session is committed.
+	 *
+	 * @return the edited length of the file
+	 */
+	public long length() {
+		return segments.length();
+	}
+
+	/**
+	 * Return whether any edits have been made since the session began or was last committed.
+	 *
+	 * @return true if the session has uncommitted edits
+	 */
+	public boolean hasEdits() {
+		return edited;
+	}
+
+	/**
+	 * Insert data from a byte array into the file. See SmartFile.insertIntoFile(byte[], long).
+	 *
+	 * @param bytearray the array to write data from
+	 * @param start the place in the file to begin writing the data
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void insert(byte[] bytearray, long start) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		insert(bytearray, 0, bytearray.length, start);
+	}
+
+	/**
+	 * Insert data from a byte array into the file. See SmartFile.insertIntoFile(byte[], int, int, long, SmartProgressWindow).
+	 *
+	 * @param bytearray the array to write data from
+	 * @param offset start position to begin reading in the byte array
+	 * @param len number of bytes to read in byte array
+	 * @param start the place in the file to begin writing the data
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void insert(byte[] bytearray, int offset, int len, long start) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		if (bytearray.length == 0) {
+			return;
+		}
+		if ((start < 0) || (start > segments.length())) {
+			throw new IOException("Incorrect start value");
+		}
+		if ((offset < 0) || (len < 0) || (offset + len > bytearray.length)) {
+			throw new IOException("Incorrect byte array offset or length");
+		}
+		List<Segment> newSegs = new ArrayList<Segment>();
+		if (len > 0) {
+			newSegs.add(new Segment(Arrays.copyOfRange(bytearray, offset, offset + len), 0, len));
+		}
+		insertSegments(start, newSegs);
+	}
+
+	/**
+	 * Insert data from another file into the file. See SmartFile.insertIntoFile(File, long, long, File, long).
+	 * The source may be the file being edited, in which case data is copied from the file as it looks at this point in the session.
+	 *
+	 * @param source the source file to copy from
+	 * @param sourceStart the start position in the source file to copy from
+	 * @param sourceEnd the end position in the source file to copy from
+	 * @param destStart the position in the file to begin writing inserted data
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void insert(File source, long sourceStart, long sourceEnd, long destStart) throws IOException {
+		if ((sourceEnd < sourceStart) || (sourceStart < 0) || (sourceEnd > sourceLength(source))) {
+			throw new IOException("Incorrect source start and end points");
+		}
+		if ((destStart < 0) || (destStart > segments.length())) {
+			throw new IOException("Incorrect destination start point");
+		}
+		insertSegments(destStart, sourceSegments(source, sourceStart, sourceEnd));
+	}
+
+	/**
+	 * Delete the specified portion of the file. See SmartFile.deleteFromFile(long, long).
+	 *
+	 * @param start start position for the data to be deleted
+	 * @param end end position for the data to be deleted
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void delete(long start, long end) throws IOException {
+		if ((start < 0) || (start > segments.length()) || (end < start)) {
+			throw new IOException("Incorrect start and end points");
+		}
+		removeRange(start, Math.min(end, segments.length()));
+	}
+
+	/**
+	 * Replace part of the file with the specified byte array. See SmartFile.replace(byte[], long, long).
+	 *
+	 * @param bytearray array of bytes to insert into file
+	 * @param start beginning byte position of data that will be replaced
+	 * @param end end byte position of data that will be replaced
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void replace(byte[] bytearray, long start, long end) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		if ((start < 0) || (start > segments.length())) {
+			throw new IOException("Incorrect start value");
+		}
+		if ((end < start) || (end > segments.length())) {
+			throw new IOException("Incorrect end value");
+		}
+		removeRange(start, end);
+		List<Segment> newSegs = new ArrayList<Segment>();
+		if (bytearray.length > 0) {
+			newSegs.add(new Segment(bytearray.clone(), 0, bytearray.length));
+		}
+		insertSegments(start, newSegs);
+	}
+
+	/**
+	 * Replace part of the file with part of another file. See SmartFile.replace(File, long, long, File, long, long).
+	 * The source may be the file being edited, in which case data is copied from the file as it looks at this point in the session.
+	 *
+	 * @param source the source file that data will be copied from
+	 * @param sourceStart the start byte position for data to be copied
+	 * @param sourceEnd the end byte position for data to be copied
+	 * @param destStart the start byte position that will be replaced
+	 * @param destEnd the end byte position that will be replaced
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void replace(File source, long sourceStart, long sourceEnd, long destStart, long destEnd) throws IOException {
+		if ((sourceStart < 0) || (sourceEnd < sourceStart) || (sourceEnd > sourceLength(source))) {
+			throw new IOException("Incorrect source start and end values");
+		}
+		if ((destStart < 0) || (destStart > segments.length())) {
+			throw new IOException("Incorrect dest start value");
+		}
+		if ((destEnd < destStart) || (destEnd > segments.length())) {
+			throw new IOException("Incorrect dest end value");
+		}
+		//gather the source data first, in case it comes from the part of this file that is being replaced
+		List<Segment> newSegs = sourceSegments(source, sourceStart, sourceEnd);
+		removeRange(destStart, destEnd);
+		insertSegments(destStart, newSegs);
+	}
+
+	/**
+	 * Write data from another file over the file, extending it if necessary. See SmartFile.writeToFile(File, File, long, long, long).
+	 * The source may be the file being edited, in which case data is copied from the file as it looks at this point in the session.
+	 *
+	 * @param source the source file
+	 * @param sourceStart start position in the source file for the data to be copied
+	 * @param sourceEnd end position in the source file for the data to be copied
+	 * @param destStart start position in the file to begin writing data
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void write(File source, long sourceStart, long sourceEnd, long destStart) throws IOException {
+		if ((sourceStart < 0) || (sourceStart >= sourceEnd)) {
+			throw new IOException("Incorrect start and end times");
+		}
+		if (sourceEnd > sourceLength(source)) {
+			throw new IOException("End time exceeds file length");
+		}
+		if ((destStart < 0) || (destStart > segments.length())) {
+			throw new IOException("Incorrect destination start time");
+		}
+		List<Segment> newSegs = sourceSegments(source, sourceStart, sourceEnd);
+		removeRange(destStart, Math.min(destStart + (sourceEnd - sourceStart), segments.length()));
+		insertSegments(destStart, newSegs);
+	}
+
+
+	/**
+	 * Write all edits to disk in a single pass.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public void commit() throws IOException {
+		commit((SmartProgressListener)null);
+	}
+
+	/**
+	 * Write all edits to disk in a single pass. The edited file is written next to the original and then moved over it,
+	 * so the original file is left untouched if the commit fails or is canceled. The new file keeps the permissions and
+	 * owner of the original, and if the file is a symbolic link, the file it points to is replaced and the link kept.
+	 * After a successful commit, the session may continue to be used for further edits.
+	 *
+	 * @param spd a SmartProgressWindow to track progress of the commit; may be null. If canceled, the file is left as it was and the edits are kept.
+	 * @throws IOException if the file can't be written
+	 */
+	public void commit(SmartProgressWindow spd) throws IOException {
+		commit((SmartProgressListener)spd);
+	}
+
+	/**
+	 * Write all edits to disk in a single pass.
+	 *
+	 * @param listener a SmartProgressListener to track progress of the commit; may be null. If canceled, the file is left as it was and the edits are kept.
+	 * @throws IOException if the file can't be written
+	 */
+	public void commit(SmartProgressListener listener) throws IOException {
+		File target = SmartFile.replaceTarget(file);
+		File temp = File.createTempFile("robusta", ".edit", target.getAbsoluteFile().getParentFile());
+		Map<File, FileChannel> sources = new HashMap<File, FileChannel>();
+		FileOutputStream fos = new FileOutputStream(temp);
+		boolean done = false;
+		try {
+			if (!segments.writeTo(fos.getChannel(), sources, listener)) {
+				return;
+			}
+			fos.close();
+			SegmentList.closeAll(sources);
+			if (target.exists()) {
+				SmartFile.copyAttributes(target, temp);
+			}
+			SmartFile.moveOver(temp, target);
+			done = true;
+		} finally {
+			if (!done) {
+				fos.close();
+				SegmentList.closeAll(sources);
+				temp.delete();
+			}
+		}
+		reset();
+	}
+
+	/**
+	 * Throw away any edits made since the session began or was last committed.
+	 */
+	public void discard() {
+		reset();
+	}
+
+	private void reset() {
+		segments.reset(file);
+		edited = false;
+	}
+
+	/**
+	 * Return the length of a source file, which is the edited length if the source is the file being edited.
+	 */
+	private long sourceLength(File source) throws IOException {
+		if (isEditedFile(source)) {
+			return segments.length();
+		}
+		return source.length();
+	}
+
+	/**
+	 * Return whether a source is the file being edited, under any name; its segments then stand for its edited content.
+	 */
+	private boolean isEditedFile(File source) throws IOException {
+		return SmartFile.isSameFile(source, file);
+	}
+
+	/**
+	 * Return the segments that represent a range of a source file.
+	 */
+	private List<Segment> sourceSegments(File source, long start, long end) throws IOException {
+		if (isEditedFile(source)) {
+			//copy from this file, as it currently stands
+			return segments.slice(start, end);
+		}
+		List<Segment> result = new ArrayList<Segment>();
+		if (start == end) {
+			return result;
+		}
+		if (!source.exists()) {
+			throw new IOException("File does not exist");
+		}
+		result.add(new Segment(source.getAbsoluteFile(), start, end - start));
+		return result;
+	}
+
+	private void removeRange(long start, long end) {
+		segments.remove(start, end);
+		edited = true;
+	}
+
+	private void insertSegments(long position, List<Segment> newSegs) {
+		segments.insert(position, newSegs);
+		edited = true;
+	}
+
+}
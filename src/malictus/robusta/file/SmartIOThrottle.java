@@ -0,0 +1,306 @@
+package malictus.robusta.file;
+
+import java.io.InterruptedIOException;
+
+/**
+ * A SmartIOThrottle limits how fast SmartFile operations read and write, so that bulk work such as copying or checksumming
+ * doesn't starve other users of the same disk. Every read/write loop in this package charges the default throttle for
+ * each block it moves, and waits if it has run over its budget.
+ *
+ * Budgets are token buckets, shared by all threads and adjustable at any time. There is a budget for all I/O together
+ * (see setTotalRate()), and a budget for each of three priority classes (see setRate()):
+ *
+ * FOREGROUND work, the default, is never held back by the total budget; it only uses it up. BACKGROUND work waits until
+ * there is room in the total budget, so it fills only the bandwidth that foreground work leaves spare. IDLE work is like
+ * background work, but also waits until no other I/O has been seen for a while (see setIdleDelay()).
+ *
+ * The class is chosen per thread with setThreadPriority(), and is inherited by the worker threads of operations that run in
+ * parallel. All budgets are unlimited by default, in which case the throttle costs next to nothing.
+ */
+public class SmartIOThrottle {
+
+	/**
+	 * A rate that means no limit.
+	 */
+	public static final long UNLIMITED = 0;
+	/**
+	 * How long IDLE work waits after other I/O by default, in milliseconds.
+	 */
+	public static final long DEFAULT_IDLE_DELAY = 100;
+
+	/**
+	 * The priority classes that work can run at.
+	 */
+	public enum Priority {FOREGROUND, BACKGROUND, IDLE}
+
+	private static volatile SmartIOThrottle defaultThrottle = new SmartIOThrottle();
+
+	private static final ThreadLocal<Priority> threadPriority = new ThreadLocal<Priority>() {
+		protected Priority initialValue() {
+			return Priority.FOREGROUND;
+		}
+	};
+
+	private final TokenBucket total = new TokenBucket();
+	private final TokenBucket[] classes = new TokenBucket[Priority.values().length];
+	private volatile long idleDelay = DEFAULT_IDLE_DELAY;
+	//when FOREGROUND or BACKGROUND I/O was last charged, from System.nanoTime()
+	private volatile long lastActive = System.nanoTime();
+
+	/**
+	 * Create a new throttle, with no limits.
+	 */
+	public SmartIOThrottle() {
+		for (int i = 0; i < classes.length; i++) {
+			classes[i] = new TokenBucket();
+		}
+	}
+
+	/**
+	 * Return the throttle that SmartFile operations use.
+	 *
+	 * @return the default throttle
+	 */
+	public static SmartIOThrottle getDefault() {
+		return defaultThrottle;
+	}
+
+	/**
+	 * Replace the throttle that SmartFile operations use.
+	 *
+	 * @param throttle the new default throttle
+	 */
+	public static void setDefault(SmartIOThrottle throttle) {
+		if (throttle == null) {
+			throw new NullPointerException("throttle");
+		}
+		defaultThrottle = throttle;
+	}
+
+	/**
+	 * Return the priority class that SmartFile operations started by the current thread run at.
+	 *
+	 * @return the priority; FOREGROUND unless it has been changed
+	 */
+	public static Priority getThreadPriority() {
+		return threadPriority.get();
+	}
+
+	/**
+	 * Set the priority class that SmartFile operations started by the current thread run at.
+	 *
+	 * @param priority the new priority
+	 */
+	public static void setThreadPriority(Priority priority) {
+		if (priority == null) {
+			throw new NullPointerException("priority");
+		}
+		threadPriority.set(priority);
+	}
+
+	/**
+	 * Return the limit on all I/O together.
+	 *
+	 * @return the rate, in bytes per second, or UNLIMITED
+	 */
+	public long getTotalRate() {
+		return total.getRate();
+	}
+
+	/**
+	 * Set the limit on all I/O together. Foreground work is never held back by this limit, but what it uses isn't available
+	 * to background and idle work. This takes effect immediately, including for work that is already waiting.
+	 *
+	 * @param bytesPerSecond the new rate, in bytes per second, or UNLIMITED
+	 */
+	public void setTotalRate(long bytesPerSecond) {
+		total.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Return the limit on I/O in one priority class.
+	 *
+	 * @param priority the priority class
+	 * @return the rate, in bytes per second, or UNLIMITED
+	 */
+	public long getRate(Priority priority) {
+		return classes[priority.ordinal()].getRate();
+	}
+
+	/**
+	 * Set the limit on I/O in one priority class, which is shared by all threads running at that priority. This takes
+	 * effect immediately, including for work that is already waiting.
+	 *
+	 * @param priority the priority class
+	 * @param bytesPerSecond the new rate, in bytes per second, or UNLIMITED
+	 */
+	public void setRate(Priority priority, long bytesPerSecond) {
+		classes[priority.ordinal()].setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Return how long IDLE work waits after any other I/O before it goes ahead.
+	 *
+	 * @return the delay, in milliseconds
+	 */
+	public long getIdleDelay() {
+		return idleDelay;
+	}
+
+	/**
+	 * Set how long IDLE work waits after any other I/O before it goes ahead.
+	 *
+	 * @param millis the new delay, in milliseconds; 0 to let idle work run like background work
+	 */
+	public void setIdleDelay(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Incorrect idle delay");
+		}
+		idleDelay = millis;
+	}
+
+	/**
+	 * Charge this throttle for I/O done by the current thread, at the current thread's priority, waiting if it is over budget.
+	 *
+	 * @param bytes the number of bytes read or written
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		acquire(bytes, threadPriority.get());
+	}
+
+	/**
+	 * Charge this throttle for I/O done at a given priority, waiting if it is over budget. This is for work done on behalf
+	 * of another thread, such as by a worker pool.
+	 *
+	 * @param bytes the number of bytes read or written
+	 * @param priority the priority to charge at
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void acquire(long bytes, Priority priority) throws InterruptedIOException {
+		if (priority == Priority.FOREGROUND) {
+			lastActive = System.nanoTime();
+			total.charge(bytes);
+			classes[priority.ordinal()].acquire(bytes);
+			return;
+		}
+		if (priority == Priority.IDLE) {
+			waitForIdle();
+		} else {
+			lastActive = System.nanoTime();
+		}
+		classes[priority.ordinal()].acquire(bytes);
+		total.acquire(bytes);
+	}
+
+	/**
+	 * Charge the default throttle for I/O done by the current thread.
+	 */
+	static void charge(long bytes) throws InterruptedIOException {
+		defaultThrottle.acquire(bytes);
+	}
+
+	/**
+	 * Charge the default throttle for I/O done at a given priority.
+	 */
+	static void charge(long bytes, Priority priority) throws InterruptedIOException {
+		defaultThrottle.acquire(bytes, priority);
+	}
+
+	private void waitForIdle() throws InterruptedIOException {
+		while (true) {
+			long delay = idleDelay * 1000000L;
+			long quiet = System.nanoTime() - lastActive;
+			if (quiet >= delay) {
+				return;
+			}
+			try {
+				Thread.sleep(Math.max(1, (delay - quiet) / 1000000L));
+			} catch (InterruptedException err) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for idle disk");
+			}
+		}
+	}
+
+	/**
+	 * A token bucket. Work goes ahead as long as the bucket isn't in debt, and takes out what it used afterwards, which may
+	 * put the bucket into debt; the next work then waits until the debt has been paid off at the bucket's rate. Up to a
+	 * quarter of a second of unused bandwidth is saved up, so that short pauses don't waste it.
+	 */
+	private static class TokenBucket {
+
+		private volatile long rate = UNLIMITED;
+		private double tokens = 0;
+		private long lastRefill = System.nanoTime();
+
+		long getRate() {
+			return rate;
+		}
+
+		synchronized void setRate(long bytesPerSecond) {
+			if (bytesPerSecond < 0) {
+				throw new IllegalArgumentException("Incorrect rate");
+			}
+			refill();
+			rate = bytesPerSecond;
+			if (bytesPerSecond == UNLIMITED) {
+				tokens = 0;
+			}
+			//let anything waiting work out its wait again
+			notifyAll();
+		}
+
+		/**
+		 * Take out tokens without waiting. Debt is kept to a second's worth, so that heavy foreground use can't lock out
+		 * lower priorities for long after it stops.
+		 */
+		void charge(long bytes) {
+			if (rate == UNLIMITED) {
+				return;
+			}
+			synchronized (this) {
+				refill();
+				tokens = Math.max(tokens - bytes, -(double)rate);
+			}
+		}
+
+		/**
+		 * Wait until the bucket is out of debt, then take out tokens.
+		 */
+		void acquire(long bytes) throws InterruptedIOException {
+			if (rate == UNLIMITED) {
+				return;
+			}
+			synchronized (this) {
+				try {
+					while (true) {
+						refill();
+						long current = rate;
+						if ((current == UNLIMITED) || (tokens >= 0)) {
+							break;
+						}
+						long millis = (long)Math.ceil((-tokens * 1000.0) / current);
+						wait(Math.max(1, millis));
+					}
+				} catch (InterruptedException err) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while throttled");
+				}
+				if (rate != UNLIMITED) {
+					tokens = tokens - bytes;
+				}
+			}
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			long current = rate;
+			if (current != UNLIMITED) {
+				tokens = Math.min(current / 4.0, tokens + ((now - lastRefill) * current) / 1e9);
+			}
+			lastRefill = now;
+		}
+	}
+
+}
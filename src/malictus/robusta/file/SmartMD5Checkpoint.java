@@ -0,0 +1,137 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.string.StringUtils;
+
+/**
+ * A SmartMD5Checkpoint is the MD5 checksum of a file that only grows, such as a log or a recording, along with the state
+ * of the hash at the end of the file. Passing it to SmartFile.updateMD5Checksum() later hashes only the data that has been
+ * appended since, rather than the whole file again. Checkpoints are Serializable, so they can be kept between runs.
+ *
+ * A checkpoint also holds a checksum of the last few KB it covers. If the file has shrunk, or that part of it has changed,
+ * the file has not simply been appended to, and it is hashed again from the start.
+ */
+public class SmartMD5Checkpoint implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//how much of the end of the hashed data is checked to make sure the file has only been appended to
+	private static final int GUARD_SIZE = 4096;
+
+	private final int[] state;
+	private final long length;
+	private final byte[] pending;
+	private final long guardChecksum;
+	private final byte[] digest;
+	private final long bytesHashed;
+
+	private SmartMD5Checkpoint(MD5 md5, long guardChecksum, long bytesHashed) {
+		this.state = md5.getState();
+		this.length = md5.getLength();
+		this.pending = md5.getPending();
+		this.guardChecksum = guardChecksum;
+		this.digest = md5.digest();
+		this.bytesHashed = bytesHashed;
+	}
+
+	/**
+	 * Return the number of bytes of the file that the checksum covers.
+	 *
+	 * @return the length, in bytes
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Return the MD5 checksum of the file, up to getLength(), in the same form as SmartFile.getMD5Checksum().
+	 *
+	 * @return the checksum, as an uppercase hex string
+	 */
+	public String getMD5Checksum() {
+		return StringUtils.toHexString(digest);
+	}
+
+	/**
+	 * Return the number of bytes that were read to create this checkpoint. This is the length of the newly appended data,
+	 * or the whole file if it had to be hashed from the start.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesHashed() {
+		return bytesHashed;
+	}
+
+	/**
+	 * Calculate the checksum of a file, carrying on from a previous checkpoint where possible.
+	 *
+	 * @param file the file
+	 * @param previous a checkpoint from an earlier pass over the file, or null to hash it from the start
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return the new checkpoint, or null if the task was canceled
+	 * @throws IOException if the file can't be read
+	 */
+	static SmartMD5Checkpoint calculate(File file, SmartMD5Checkpoint previous, SmartProgressListener listener) throws IOException {
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(file);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		ByteBuffer buffer = pool.acquireHeap(Math.max(bufferSize, GUARD_SIZE));
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			FileChannel in = fin.getChannel();
+			long end = in.size();
+			MD5 md5 = new MD5();
+			if ((previous != null) && (previous.length <= end) && (guardChecksum(in, previous.length, buffer) == previous.guardChecksum)) {
+				md5 = new MD5(previous.state, previous.length, previous.pending);
+			}
+			long start = md5.getLength();
+			if (listener != null) {
+				listener.progressStarted(end - start);
+			}
+			long pos = start;
+			while (pos < end) {
+				if (listener != null) {
+					if (listener.isCanceled()) {
+						listener.progressCanceled();
+						return null;
+					}
+					listener.progressUpdated(pos - start, end - start);
+				}
+				buffer.clear();
+				buffer.limit((int)Math.min(bufferSize, end - pos));
+				int len = in.read(buffer, pos);
+				if (len < 0) {
+					throw new IOException("Unexpected end of file");
+				}
+				SmartIOThrottle.charge(len);
+				md5.update(buffer.array(), 0, len);
+				pos = pos + len;
+			}
+			return new SmartMD5Checkpoint(md5, guardChecksum(in, end, buffer), end - start);
+		} finally {
+			fin.close();
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Return a CRC32 of the last few KB before a position in a file.
+	 */
+	private static long guardChecksum(FileChannel in, long end, ByteBuffer buffer) throws IOException {
+		long start = Math.max(0, end - GUARD_SIZE);
+		buffer.clear();
+		buffer.limit((int)(end - start));
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer, start + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file");
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, buffer.position());
+		return crc.getValue();
+	}
+
+}
@@ -0,0 +1,476 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import malictus.robusta.file.SmartDeltaSync.DeltaHandler;
+import malictus.robusta.file.SmartDeltaSync.Signature;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * SmartPatch creates and applies binary patches: compact descriptions of how to turn one version of a file into another,
+ * so that only the differences need to be shipped between sites rather than the whole file. The old file is found in the
+ * new one in the same way as SmartDeltaSync does it, block by block with a rolling checksum, and the patch is a list of
+ * operations that walk through the old file from start to end:
+ *
+ * COPY n - copy the next n bytes of the old file
+ * DELETE n - skip the next n bytes of the old file
+ * INSERT n - insert the next n bytes of the patch
+ *
+ * Patches are written and read as streams, so memory use doesn't depend on the size of the files. Each patch ends with
+ * the MD5 hash of the new file, so that a patch applied to the wrong file is caught.
+ */
+public class SmartPatch {
+
+	//"RBPT"
+	private static final int MAGIC = 0x52425054;
+	private static final int VERSION = 1;
+	private static final int OP_END = 0;
+	private static final int OP_COPY = 1;
+	private static final int OP_DELETE = 2;
+	private static final int OP_INSERT = 3;
+
+	private SmartPatch() {
+	}
+
+	/**
+	 * Create a patch that turns one file into another, with a block size chosen based on the file size.
+	 *
+	 * @param oldFile the old version of the file
+	 * @param newFile the new version of the file
+	 * @param patchFile the file to write the patch to; replaced if it exists
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, any partly written patch is deleted.
+	 * @return true if the patch was created, or false if the task was canceled
+	 * @throws IOException if the files can't be read, or the patch can't be written
+	 */
+	public static boolean createPatch(File oldFile, File newFile, File patchFile, SmartProgressListener listener) throws IOException {
+		return createPatch(oldFile, newFile, patchFile, 0, listener);
+	}
+
+	/**
+	 * Create a patch that turns one file into another.
+	 *
+	 * @param oldFile the old version of the file
+	 * @param newFile the new version of the file
+	 * @param patchFile the file to write the patch to; replaced if it exists
+	 * @param blockSize the size of the blocks the old file is split into, in bytes; if 0, a block size is chosen based
+	 * 			on the file size. Smaller blocks find more of the old file, at the cost of more time.
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, any partly written patch is deleted.
+	 * @return true if the patch was created, or false if the task was canceled
+	 * @throws IOException if the files can't be read, or the patch can't be written
+	 */
+	public static boolean createPatch(File oldFile, File newFile, File patchFile, int blockSize, final SmartProgressListener listener) throws IOException {
+		long oldLength = oldFile.length();
+		final long total = oldLength + newFile.length();
+		if (blockSize <= 0) {
+			blockSize = SmartDeltaSync.chooseBlockSize(Math.max(oldLength, newFile.length()));
+		}
+		//reading the old file is the first part of the task
+		SmartProgressListener signatureListener = null;
+		if (listener != null) {
+			listener.progressStarted(total);
+			signatureListener = new SmartProgressListener() {
+				public void progressStarted(long ignored) {
+				}
+
+				public void progressUpdated(long completed, long ignored) {
+					listener.progressUpdated(completed, total);
+				}
+
+				public boolean isCanceled() {
+					return listener.isCanceled();
+				}
+
+				public void progressCanceled() {
+					listener.progressCanceled();
+				}
+			};
+		}
+		Signature signature = Signature.calculate(oldFile, blockSize, signatureListener);
+		if (signature == null) {
+			return false;
+		}
+		return writePatch(signature, newFile, patchFile, listener, oldLength, total);
+	}
+
+	/**
+	 * Create a patch from the signature of the old file, rather than the old file itself. This allows the site that has
+	 * the old file to send only its signature, and receive only the patch.
+	 *
+	 * @param oldSignature the signature of the old version of the file; see SmartDeltaSync.Signature.calculate()
+	 * @param newFile the new version of the file
+	 * @param patchFile the file to write the patch to; replaced if it exists
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, any partly written patch is deleted.
+	 * @return true if the patch was created, or false if the task was canceled
+	 * @throws IOException if the new file can't be read, or the patch can't be written
+	 */
+	public static boolean createPatch(Signature oldSignature, File newFile, File patchFile, SmartProgressListener listener) throws IOException {
+		if (listener != null) {
+			listener.progressStarted(newFile.length());
+		}
+		return writePatch(oldSignature, newFile, patchFile, listener, 0, newFile.length());
+	}
+
+	private static boolean writePatch(Signature signature, File newFile, File patchFile, SmartProgressListener listener, long progressBase,
+			long progressTotal) throws IOException {
+		//the scan reads every byte of the new file once, in order, so it hashes the file as it goes
+		Digester hash = ChecksumAlgorithm.MD5.createDigester();
+		FileInputStream fin = new FileInputStream(newFile);
+		DataOutputStream out = null;
+		boolean done = false;
+		try {
+			FileChannel in = fin.getChannel();
+			long newLength = in.size();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(patchFile), 65536));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(signature.getFileLength());
+			out.writeLong(newLength);
+			PatchWriter writer = new PatchWriter(in, out, signature, SmartDeviceProfile.bufferSizeFor(newFile), listener, progressBase, progressTotal);
+			try {
+				SmartDeltaSync.scan(signature, in, newLength, writer, hash);
+			} catch (CancellationException err) {
+				listener.progressCanceled();
+				return false;
+			}
+			writer.finish();
+			out.writeByte(OP_END);
+			out.write(hash.digest());
+			out.close();
+			out = null;
+			done = true;
+		} finally {
+			fin.close();
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException err) {
+					//already failing
+				}
+			}
+			if (!done) {
+				patchFile.delete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Apply a patch to a file, writing the result to another file in a single pass. The old file itself is not changed,
+	 * unless it is also the destination. A file that is replaced keeps its permissions and owner, and if it is a symbolic
+	 * link, the file it points to is replaced and the link kept.
+	 *
+	 * @param oldFile the old version of the file, which the patch was created from
+	 * @param patchFile the patch
+	 * @param newFile the file to write the new version to; replaced if it exists. This may be the same as the old file.
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, the new file is left as it was.
+	 * @return true if the patch was applied, or false if the task was canceled
+	 * @throws IOException if the patch is not for the old file or is corrupt, or the files can't be read or written
+	 */
+	public static boolean applyPatch(File oldFile, File patchFile, File newFile, SmartProgressListener listener) throws IOException {
+		int bufferSize = SmartDeviceProfile.bufferSizeFor(oldFile, newFile);
+		SmartBufferPool pool = SmartBufferPool.getDefault();
+		File target = SmartFile.replaceTarget(newFile);
+		File temp = File.createTempFile("robusta", ".patch", target.getAbsoluteFile().getParentFile());
+		DataInputStream patch = null;
+		FileInputStream fin = null;
+		FileOutputStream fos = null;
+		ByteBuffer buffer = pool.acquireHeap(bufferSize);
+		boolean done = false;
+		try {
+			patch = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile), 65536));
+			fin = new FileInputStream(oldFile);
+			FileChannel in = fin.getChannel();
+			fos = new FileOutputStream(temp);
+			FileChannel out = fos.getChannel();
+			long newLength = readHeader(patch, in.size());
+			if (listener != null) {
+				listener.progressStarted(newLength);
+			}
+			Digester digester = ChecksumAlgorithm.MD5.createDigester();
+			long oldPos = 0;
+			long written = 0;
+			while (true) {
+				int op = patch.readByte();
+				if (op == OP_END) {
+					break;
+				}
+				long len = patch.readLong();
+				if ((len < 0) || ((op != OP_INSERT) && (oldPos + len > in.size())) || ((op != OP_DELETE) && (written + len > newLength))) {
+					throw new IOException("Patch is corrupt");
+				}
+				if (op == OP_DELETE) {
+					oldPos = oldPos + len;
+					continue;
+				}
+				if ((op != OP_COPY) && (op != OP_INSERT)) {
+					throw new IOException("Patch is corrupt");
+				}
+				long end = written + len;
+				while (written < end) {
+					if (listener != null) {
+						if (listener.isCanceled()) {
+							listener.progressCanceled();
+							return false;
+						}
+						listener.progressUpdated(written, newLength);
+					}
+					int count = (int)Math.min(bufferSize, end - written);
+					buffer.clear();
+					buffer.limit(count);
+					if (op == OP_COPY) {
+						while (buffer.hasRemaining()) {
+							if (in.read(buffer, oldPos + buffer.position()) < 0) {
+								throw new IOException("Unexpected end of file");
+							}
+						}
+						oldPos = oldPos + count;
+					} else {
+						patch.readFully(buffer.array(), 0, count);
+					}
+					SmartIOThrottle.charge(count);
+					digester.update(buffer.array(), 0, count);
+					buffer.rewind();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					written = written + count;
+				}
+			}
+			byte[] expected = new byte[16];
+			patch.readFully(expected);
+			if ((written != newLength) || !Arrays.equals(expected, digester.digest())) {
+				throw new IOException("Patched file doesn't match the patch; the patch may be for a different file");
+			}
+			fin.close();
+			fos.close();
+			patch.close();
+			if (target.exists()) {
+				SmartFile.copyAttributes(target, temp);
+			}
+			SmartFile.moveOver(temp, target);
+			done = true;
+		} catch (EOFException err) {
+			throw new IOException("Patch is truncated");
+		} finally {
+			pool.release(buffer);
+			if (!done) {
+				if (fin != null) {
+					fin.close();
+				}
+				if (fos != null) {
+					fos.close();
+				}
+				if (patch != null) {
+					patch.close();
+				}
+				temp.delete();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Apply a patch to a file in place, as a series of inserts and deletes in a SmartFileEditSession. Data that the patch
+	 * inserts is copied straight from the patch file when the session is committed. Unlike applyPatch(), the result is
+	 * only checked for length, not against the hash in the patch.
+	 *
+	 * @param file the old version of the file, which will be changed into the new version
+	 * @param patchFile the patch
+	 * @param listener a SmartProgressListener to track progress of the commit; may be null. If canceled, the file is left as it was.
+	 * @return true if the patch was applied, or false if the task was canceled
+	 * @throws IOException if the patch is not for the file or is corrupt, or the files can't be read or written
+	 */
+	public static boolean applyPatchInPlace(File file, File patchFile, SmartProgressListener listener) throws IOException {
+		DataInputStream patch = new DataInputStream(new BufferedInputStream(new FileInputStream(patchFile), 65536));
+		try {
+			long newLength = readHeader(patch, file.length());
+			//position in the patch file, for finding inserted data
+			long patchPos = 24;
+			SmartFileEditSession session = new SmartFileEditSession(file);
+			long pos = 0;
+			while (true) {
+				int op = patch.readByte();
+				if (op == OP_END) {
+					break;
+				}
+				long len = patch.readLong();
+				patchPos = patchPos + 9;
+				if ((len < 0) || ((op != OP_DELETE) && (pos + len > newLength))) {
+					throw new IOException("Patch is corrupt");
+				}
+				if (op == OP_COPY) {
+					pos = pos + len;
+				} else if (op == OP_DELETE) {
+					if (pos + len > session.length()) {
+						throw new IOException("Patch is corrupt");
+					}
+					session.delete(pos, pos + len);
+				} else if (op == OP_INSERT) {
+					session.insert(patchFile, patchPos, patchPos + len, pos);
+					skipFully(patch, len);
+					patchPos = patchPos + len;
+					pos = pos + len;
+				} else {
+					throw new IOException("Patch is corrupt");
+				}
+			}
+			if ((pos != newLength) || (session.length() != newLength)) {
+				throw new IOException("Patched file doesn't match the patch; the patch may be for a different file");
+			}
+			session.commit(listener);
+			patch.close();
+			return (listener == null) || !listener.isCanceled();
+		} catch (EOFException err) {
+			patch.close();
+			throw new IOException("Patch is truncated");
+		} catch (IOException err) {
+			patch.close();
+			throw err;
+		}
+	}
+
+	/**
+	 * Read and check the header of a patch, and return the length of the new file.
+	 */
+	private static long readHeader(DataInputStream patch, long oldLength) throws IOException {
+		if ((patch.readInt() != MAGIC) || (patch.readInt() != VERSION)) {
+			throw new IOException("Not a patch file");
+		}
+		if (patch.readLong() != oldLength) {
+			throw new IOException("Patch is for a different file");
+		}
+		long newLength = patch.readLong();
+		if (newLength < 0) {
+			throw new IOException("Patch is corrupt");
+		}
+		return newLength;
+	}
+
+	private static void skipFully(DataInputStream in, long len) throws IOException {
+		while (len > 0) {
+			long skipped = in.skip(len);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			len = len - skipped;
+		}
+	}
+
+	/**
+	 * Turns the results of a scan into patch operations. A match for a block at or after the current position in the old
+	 * file becomes a DELETE of anything skipped over and a COPY; a match for a block that has already been passed can't be
+	 * expressed as a COPY, so it is inserted like new data. Neighbouring operations of the same kind are combined.
+	 */
+	private static class PatchWriter implements DeltaHandler {
+
+		private final FileChannel in;
+		private final DataOutputStream out;
+		private final Signature signature;
+		private final int bufferSize;
+		private final SmartProgressListener listener;
+		private final long progressBase;
+		private final long progressTotal;
+		//position reached in the old file
+		private long oldPos = 0;
+		private long pendingCopy = 0;
+		private long literalStart = 0;
+		private long literalEnd = 0;
+
+		PatchWriter(FileChannel in, DataOutputStream out, Signature signature, int bufferSize, SmartProgressListener listener, long progressBase,
+				long progressTotal) {
+			this.in = in;
+			this.out = out;
+			this.signature = signature;
+			this.bufferSize = bufferSize;
+			this.listener = listener;
+			this.progressBase = progressBase;
+			this.progressTotal = progressTotal;
+		}
+
+		public void match(int block, long offset, int length) throws IOException {
+			long blockPos = (long)block * signature.getBlockSize();
+			if (blockPos < oldPos) {
+				literal(offset, length);
+				return;
+			}
+			flushLiteral();
+			if (blockPos > oldPos) {
+				flushCopy();
+				out.writeByte(OP_DELETE);
+				out.writeLong(blockPos - oldPos);
+				oldPos = blockPos;
+			}
+			pendingCopy = pendingCopy + length;
+			oldPos = oldPos + length;
+		}
+
+		public void literal(long offset, long length) throws IOException {
+			flushCopy();
+			if (literalEnd == offset) {
+				literalEnd = offset + length;
+				return;
+			}
+			flushLiteral();
+			literalStart = offset;
+			literalEnd = offset + length;
+		}
+
+		public void progress(long offset) {
+			if (listener != null) {
+				if (listener.isCanceled()) {
+					throw new CancellationException();
+				}
+				listener.progressUpdated(progressBase + offset, progressTotal);
+			}
+		}
+
+		void finish() throws IOException {
+			flushCopy();
+			flushLiteral();
+			if (oldPos < signature.getFileLength()) {
+				out.writeByte(OP_DELETE);
+				out.writeLong(signature.getFileLength() - oldPos);
+				oldPos = signature.getFileLength();
+			}
+		}
+
+		private void flushCopy() throws IOException {
+			if (pendingCopy > 0) {
+				out.writeByte(OP_COPY);
+				out.writeLong(pendingCopy);
+				pendingCopy = 0;
+			}
+		}
+
+		private void flushLiteral() throws IOException {
+			if (literalEnd <= literalStart) {
+				return;
+			}
+			out.writeByte(OP_INSERT);
+			out.writeLong(literalEnd - literalStart);
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquireHeap(bufferSize);
+			try {
+				long pos = literalStart;
+				while (pos < literalEnd) {
+					buffer.clear();
+					buffer.limit((int)Math.min(bufferSize, literalEnd - pos));
+					int len = in.read(buffer, pos);
+					if (len < 0) {
+						throw new IOException("Unexpected end of file");
+					}
+					SmartIOThrottle.charge(len);
+					out.write(buffer.array(), 0, len);
+					pos = pos + len;
+				}
+			} finally {
+				pool.release(buffer);
+			}
+			literalStart = literalEnd;
+		}
+	}
+
+}
@@ -0,0 +1,407 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import malictus.robusta.progress.SmartProgressListener;
+
+/**
+ * A SmartTreeCopy copies a directory and everything in it, with many files being copied at once. Directories are
+ * walked in parallel on a work-stealing pool. Small files are copied in batches on that same pool, so that the cost of
+ * scheduling is spread over many files, while large files are handed to a separate, smaller set of threads so that a few
+ * big files don't hold up all the small ones (or compete with each other for the disk).
+ *
+ * Files and directories keep their last-modified times. Symbolic links to directories are not followed.
+ *
+ * The counters may be read while the copy is in progress, from any thread, to report throughput.
+ */
+public class SmartTreeCopy {
+
+	/**
+	 * The default size at or above which a file is treated as large, 4 MB.
+	 */
+	public static final long DEFAULT_LARGE_FILE_SIZE = 4L * 1024L * 1024L;
+	/**
+	 * The default number of threads for copying large files.
+	 */
+	public static final int DEFAULT_LARGE_FILE_THREADS = 2;
+
+	//at most this many small files, or this many bytes of them, are copied by a single task
+	private static final int BATCH_FILES = 64;
+	private static final long BATCH_BYTES = 8L * 1024L * 1024L;
+
+	private final File source;
+	private final File dest;
+	private boolean overwrite = false;
+	private long largeFileSize = DEFAULT_LARGE_FILE_SIZE;
+	private int parallelism = Runtime.getRuntime().availableProcessors() * 2;
+	private int largeFileThreads = DEFAULT_LARGE_FILE_THREADS;
+
+	private final AtomicLong bytesCopied = new AtomicLong();
+	private final AtomicLong filesCopied = new AtomicLong();
+	private volatile long startTime = 0;
+	private volatile long endTime = 0;
+
+	//state for a copy in progress
+	private SmartProgressListener listener;
+	//the pools' threads copy at the priority of the thread that started the copy
+	private SmartIOThrottle.Priority priority;
+	private ExecutorService largeFilePool;
+	private final Queue<Future<?>> largeFiles = new ConcurrentLinkedQueue<Future<?>>();
+	private final Queue<File[]> directoryTimes = new ConcurrentLinkedQueue<File[]>();
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+	private volatile boolean canceled = false;
+
+	/**
+	 * Set up a copy of a directory tree.
+	 *
+	 * @param source the directory to copy
+	 * @param dest the directory to copy to; it will be created if it doesn't exist, and the contents of source will be copied into it
+	 */
+	public SmartTreeCopy(File source, File dest) {
+		this.source = source;
+		this.dest = dest;
+	}
+
+	/**
+	 * Set whether existing files in the destination are overwritten. If not (the default), the copy fails if any file exists already.
+	 *
+	 * @param overwrite whether to overwrite existing files
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+
+	/**
+	 * Set the size at or above which files are copied on the large-file threads.
+	 *
+	 * @param bytes the size, in bytes
+	 */
+	public void setLargeFileSize(long bytes) {
+		this.largeFileSize = bytes;
+	}
+
+	/**
+	 * Set the number of threads used for walking directories and copying small files. The default is twice the number
+	 * of processors, since the threads mostly wait on the disk.
+	 *
+	 * @param parallelism the number of threads
+	 */
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Set the number of threads used for copying large files.
+	 *
+	 * @param threads the number of threads
+	 */
+	public void setLargeFileThreads(int threads) {
+		this.largeFileThreads = threads;
+	}
+
+	/**
+	 * Return the number of bytes copied so far.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesCopied() {
+		return bytesCopied.get();
+	}
+
+	/**
+	 * Return the number of files copied so far.
+	 *
+	 * @return the number of files
+	 */
+	public long getFilesCopied() {
+		return filesCopied.get();
+	}
+
+	/**
+	 * Return the time spent copying so far, or the total time if the copy is finished.
+	 *
+	 * @return the time, in milliseconds
+	 */
+	public long getElapsedMillis() {
+		if (startTime == 0) {
+			return 0;
+		}
+		long end = (endTime != 0) ? endTime : System.nanoTime();
+		return (end - startTime) / 1000000L;
+	}
+
+	/**
+	 * Return the average number of bytes copied per second.
+	 *
+	 * @return the number of bytes per second
+	 */
+	public double getBytesPerSecond() {
+		return perSecond(bytesCopied.get());
+	}
+
+	/**
+	 * Return the average number of files copied per second.
+	 *
+	 * @return the number of files per second
+	 */
+	public double getFilesPerSecond() {
+		return perSecond(filesCopied.get());
+	}
+
+	/**
+	 * Copy the tree. Progress is reported in bytes; the total isn't known in advance, so it is reported as 0. The listener
+	 * may be called from several threads, but never from more than one at a time.
+	 *
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, files that were already
+	 * 			copied are left in place, and files being copied may be left incomplete.
+	 * @return true if the copy finished, or false if it was canceled
+	 * @throws IOException if the source isn't a directory, or any file can't be copied
+	 */
+	public boolean copy(SmartProgressListener listener) throws IOException {
+		if (!source.isDirectory()) {
+			throw new IOException("Source is not a directory");
+		}
+		if (dest.getAbsoluteFile().toPath().normalize().startsWith(source.getAbsoluteFile().toPath().normalize())) {
+			throw new IOException("Destination is inside the source directory");
+		}
+		this.listener = listener;
+		priority = SmartIOThrottle.getThreadPriority();
+		bytesCopied.set(0);
+		filesCopied.set(0);
+		largeFiles.clear();
+		directoryTimes.clear();
+		failure.set(null);
+		canceled = false;
+		endTime = 0;
+		startTime = System.nanoTime();
+		if (listener != null) {
+			listener.progressStarted(0);
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		largeFilePool = Executors.newFixedThreadPool(largeFileThreads);
+		try {
+			pool.invoke(new DirectoryTask(source, dest));
+			//large files may still be going once all the directories have been walked
+			Future<?> next = largeFiles.poll();
+			while (next != null) {
+				try {
+					next.get();
+				} catch (ExecutionException err) {
+					fail(err.getCause());
+				}
+				next = largeFiles.poll();
+			}
+		} catch (InterruptedException err) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying");
+		} finally {
+			pool.shutdown();
+			largeFilePool.shutdown();
+			endTime = System.nanoTime();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		if (canceled) {
+			listener.progressCanceled();
+			return false;
+		}
+		//directories were modified as their contents were copied, so their times are set last
+		for (File[] pair : directoryTimes) {
+			pair[1].setLastModified(pair[0].lastModified());
+		}
+		return true;
+	}
+
+	private double perSecond(long count) {
+		long millis = getElapsedMillis();
+		if (millis == 0) {
+			return 0;
+		}
+		return count * 1000.0 / millis;
+	}
+
+	/**
+	 * Return true if the copy should stop, because of an error or because it was canceled.
+	 */
+	private boolean stopped() {
+		if (canceled || (failure.get() != null)) {
+			return true;
+		}
+		if ((listener != null) && listener.isCanceled()) {
+			canceled = true;
+		}
+		return canceled;
+	}
+
+	private void fail(Throwable err) {
+		if (err instanceof IOException) {
+			failure.compareAndSet(null, (IOException)err);
+		} else {
+			failure.compareAndSet(null, new IOException("Error while copying: " + err));
+		}
+	}
+
+	private void addBytes(long count) {
+		long total = bytesCopied.addAndGet(count);
+		if (listener != null) {
+			synchronized (listener) {
+				listener.progressUpdated(total, 0);
+			}
+		}
+	}
+
+	private void copyOne(File from, File to) throws IOException {
+		if (to.exists() && !overwrite) {
+			throw new IOException("File already exists: " + to.getPath());
+		}
+		SmartFile.copyFile(from, to, true, (SmartProgressListener)null);
+		to.setLastModified(from.lastModified());
+		filesCopied.incrementAndGet();
+		addBytes(from.length());
+	}
+
+	/**
+	 * Creates one destination directory, schedules its files, and walks its subdirectories in parallel.
+	 */
+	private class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File from;
+		private final File to;
+
+		DirectoryTask(File from, File to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (stopped()) {
+				return;
+			}
+			try {
+				if (!to.isDirectory() && !to.mkdirs()) {
+					throw new IOException("Can't create directory " + to.getPath());
+				}
+				File[] children = from.listFiles();
+				if (children == null) {
+					throw new IOException("Can't read directory " + from.getPath());
+				}
+				directoryTimes.add(new File[] {from, to});
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				List<File> batch = new ArrayList<File>();
+				long batchBytes = 0;
+				for (File child : children) {
+					if (child.isDirectory()) {
+						if (!Files.isSymbolicLink(child.toPath())) {
+							tasks.add(new DirectoryTask(child, new File(to, child.getName())));
+						}
+						continue;
+					}
+					long length = child.length();
+					if (length >= largeFileSize) {
+						largeFiles.add(largeFilePool.submit(new LargeFileTask(child, new File(to, child.getName()))));
+						continue;
+					}
+					batch.add(child);
+					batchBytes = batchBytes + length;
+					if ((batch.size() >= BATCH_FILES) || (batchBytes >= BATCH_BYTES)) {
+						tasks.add(new BatchTask(batch, to));
+						batch = new ArrayList<File>();
+						batchBytes = 0;
+					}
+				}
+				if (!batch.isEmpty()) {
+					tasks.add(new BatchTask(batch, to));
+				}
+				invokeAll(tasks);
+			} catch (IOException err) {
+				fail(err);
+			}
+		}
+	}
+
+	/**
+	 * Copies a batch of small files, one after another.
+	 */
+	private class BatchTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<File> files;
+		private final File to;
+
+		BatchTask(List<File> files, File to) {
+			this.files = files;
+			this.to = to;
+		}
+
+		protected void compute() {
+			SmartIOThrottle.setThreadPriority(priority);
+			for (File file : files) {
+				if (stopped()) {
+					return;
+				}
+				try {
+					copyOne(file, new File(to, file.getName()));
+				} catch (IOException err) {
+					fail(err);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies a single large file, reporting progress as it goes.
+	 */
+	private class LargeFileTask implements Callable<Void> {
+
+		private final File from;
+		private final File to;
+
+		LargeFileTask(File from, File to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public Void call() throws IOException {
+			SmartIOThrottle.setThreadPriority(priority);
+			if (stopped()) {
+				return null;
+			}
+			if (to.exists() && !overwrite) {
+				throw new IOException("File already exists: " + to.getPath());
+			}
+			final long[] reported = new long[1];
+			SmartFile.copyFile(from, to, true, new SmartProgressListener() {
+				public void progressStarted(long total) {
+				}
+
+				public void progressUpdated(long completed, long total) {
+					addBytes(completed - reported[0]);
+					reported[0] = completed;
+				}
+
+				public boolean isCanceled() {
+					return stopped();
+				}
+
+				public void progressCanceled() {
+				}
+			});
+			if (stopped()) {
+				return null;
+			}
+			to.setLastModified(from.lastModified());
+			filesCopied.incrementAndGet();
+			addBytes(from.length() - reported[0]);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.string.StringUtils;
+import malictus.robusta.swing.*;
+
+/**
+ * A SmartTreeHash is a hash tree (Merkle tree) for a file. The file is split into fixed-size chunks which are hashed
+ * independently, in parallel, and the chunk hashes are then combined pairwise into a single root hash. The tree is
+ * built by splitting the list of chunks in half until single chunks remain, and each parent is the hash of its two
+ * children's hashes, one after the other.
+ *
+ * Since the individual chunk hashes are kept, a SmartTreeHash can later be used to find out exactly which chunks of a
+ * copy of the file are corrupt. SmartTreeHash objects are Serializable so that they can be stored for that purpose.
+ */
+public class SmartTreeHash implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The default chunk size, 4 MB.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	//shared by all tree hashes
+	private static ForkJoinPool hashPool = null;
+
+	private final ChecksumAlgorithm algorithm;
+	private final int chunkSize;
+	private final long fileLength;
+	private final byte[][] chunkHashes;
+	private final byte[] rootHash;
+
+	private SmartTreeHash(ChecksumAlgorithm algorithm, int chunkSize, long fileLength, byte[][] chunkHashes, byte[] rootHash) {
+		this.algorithm = algorithm;
+		this.chunkSize = chunkSize;
+		this.fileLength = fileLength;
+		this.chunkHashes = chunkHashes;
+		this.rootHash = rootHash;
+	}
+
+	/**
+	 * Return the algorithm used to hash the chunks and combine them.
+	 *
+	 * @return the algorithm
+	 */
+	public ChecksumAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Return the size of each chunk. The last chunk may be smaller.
+	 *
+	 * @return the chunk size, in bytes
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Return the length of the file that was hashed.
+	 *
+	 * @return the file length, in bytes
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	/**
+	 * Return the number of chunks. An empty file has a single, empty chunk.
+	 *
+	 * @return the number of chunks
+	 */
+	public int getChunkCount() {
+		return chunkHashes.length;
+	}
+
+	/**
+	 * Return the hash of a single chunk.
+	 *
+	 * @param index the index of the chunk, starting from 0
+	 * @return the hash
+	 */
+	public byte[] getChunkHash(int index) {
+		return chunkHashes[index].clone();
+	}
+
+	/**
+	 * Return the hash of a single chunk as an uppercase hex string.
+	 *
+	 * @param index the index of the chunk, starting from 0
+	 * @return the hex string
+	 */
+	public String getChunkHex(int index) {
+		return StringUtils.toHexString(chunkHashes[index]);
+	}
+
+	/**
+	 * Return the root hash of the tree.
+	 *
+	 * @return the root hash
+	 */
+	public byte[] getRootHash() {
+		return rootHash.clone();
+	}
+
+	/**
+	 * Return the root hash of the tree as an uppercase hex string.
+	 *
+	 * @return the hex string
+	 */
+	public String getRootHex() {
+		return StringUtils.toHexString(rootHash);
+	}
+
+	/**
+	 * Compare this tree with another one, and return the indexes of chunks that are different. Chunks that only exist
+	 * in one of the two trees count as different.
+	 *
+	 * @param other the tree to compare with; must use the same algorithm and chunk size
+	 * @return the indexes of the chunks that differ, in order; empty if the trees are identical
+	 * @throws IOException if the trees use a different algorithm or chunk size
+	 */
+	public List<Integer> findMismatchedChunks(SmartTreeHash other) throws IOException {
+		if ((other.algorithm != algorithm) || (other.chunkSize != chunkSize)) {
+			throw new IOException("Tree hashes were not created with the same settings");
+		}
+		List<Integer> result = new ArrayList<Integer>();
+		int max = Math.max(chunkHashes.length, other.chunkHashes.length);
+		for (int i = 0; i < max; i++) {
+			if ((i >= chunkHashes.length) || (i >= other.chunkHashes.length) || !Arrays.equals(chunkHashes[i], other.chunkHashes[i])) {
+				result.add(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Hash a file with the same settings as this tree, and return the indexes of any chunks that don't match.
+	 *
+	 * @param file the file to verify
+	 * @param spw a SmartProgressWindow for displaying progress information; may be null
+	 * @return the indexes of the chunks that are corrupt, in order; empty if the file matches. If canceled, null is returned.
+	 * @throws IOException if file not found or can't be read
+	 */
+	public List<Integer> verify(File file, SmartProgressWindow spw) throws IOException {
+		return verify(file, (SmartProgressListener)spw);
+	}
+
+	/**
+	 * Hash a file with the same settings as this tree, and return the indexes of any chunks that don't match.
+	 *
+	 * @param file the file to verify
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return the indexes of the chunks that are corrupt, in order; empty if the file matches. If canceled, null is returned.
+	 * @throws IOException if file not found or can't be read
+	 */
+	public List<Integer> verify(File file, SmartProgressListener listener) throws IOException {
+		SmartTreeHash actual = calculate(file, algorithm, chunkSize, listener);
+		if (actual == null) {
+			return null;
+		}
+		return findMismatchedChunks(actual);
+	}
+
+	/**
+	 * Calculate the tree hash of a file.
+	 *
+	 * @param file the file to hash
+	 * @param algorithm the hash algorithm to use
+	 * @param chunkSize the size of each chunk
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @return the tree hash, or null if the task was canceled
+	 * @throws IOException if file not found or can't be read
+	 */
+	static SmartTreeHash calculate(File file, ChecksumAlgorithm algorithm, int chunkSize, SmartProgressListener listener) throws IOException {
+		if (chunkSize <= 0) {
+			throw new IOException("Incorrect chunk size");
+		}
+		//fail early if the algorithm isn't available
+		algorithm.createDigester();
+		FileInputStream fin = new FileInputStream(file);
+		try {
+			FileChannel in = fin.getChannel();
+			long length = in.size();
+			if (listener != null) {
+				listener.progressStarted(length);
+			}
+			int chunks = (int)Math.max(1, (length + chunkSize - 1) / chunkSize);
+			byte[][] chunkHashes = new byte[chunks][];
+			HashTask root = new HashTask(in, algorithm, chunkSize, SmartDeviceProfile.bufferSizeFor(file), length, chunkHashes, 0, chunks,
+					new AtomicLong(), listener, SmartIOThrottle.getThreadPriority());
+			byte[] rootHash;
+			try {
+				rootHash = getHashPool().invoke(root);
+			} catch (CancellationException err) {
+				fin.close();
+				listener.progressCanceled();
+				return null;
+			} catch (RuntimeException err) {
+				//the IOException from a worker thread may be wrapped more than once
+				Throwable cause = err.getCause();
+				while ((cause != null) && !(cause instanceof IOException)) {
+					cause = cause.getCause();
+				}
+				if (cause != null) {
+					throw (IOException)cause;
+				}
+				throw err;
+			}
+			fin.close();
+			return new SmartTreeHash(algorithm, chunkSize, length, chunkHashes, rootHash);
+		} catch (IOException err) {
+			fin.close();
+			throw err;
+		}
+	}
+
+	private static synchronized ForkJoinPool getHashPool() {
+		if (hashPool == null) {
+			hashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return hashPool;
+	}
+
+	/**
+	 * Hashes a range of chunks, by splitting the range in half and hashing each half in parallel.
+	 */
+	private static class HashTask extends RecursiveTask<byte[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileChannel in;
+		private final ChecksumAlgorithm algorithm;
+		private final int chunkSize;
+		private final int bufferSize;
+		private final long length;
+		private final byte[][] chunkHashes;
+		private final int first;
+		private final int last;
+		private final AtomicLong done;
+		private final SmartProgressListener listener;
+		//the priority of the thread that started the hash, which the pool's threads don't have
+		private final SmartIOThrottle.Priority priority;
+
+		HashTask(FileChannel in, ChecksumAlgorithm algorithm, int chunkSize, int bufferSize, long length, byte[][] chunkHashes, int first, int last,
+				AtomicLong done, SmartProgressListener listener, SmartIOThrottle.Priority priority) {
+			this.in = in;
+			this.algorithm = algorithm;
+			this.chunkSize = chunkSize;
+			this.bufferSize = bufferSize;
+			this.length = length;
+			this.chunkHashes = chunkHashes;
+			this.first = first;
+			this.last = last;
+			this.done = done;
+			this.listener = listener;
+			this.priority = priority;
+		}
+
+		protected byte[] compute() {
+			try {
+				if (last - first == 1) {
+					return hashChunk(first);
+				}
+				int mid = (first + last) >>> 1;
+				HashTask left = new HashTask(in, algorithm, chunkSize, bufferSize, length, chunkHashes, first, mid, done, listener, priority);
+				HashTask right = new HashTask(in, algorithm, chunkSize, bufferSize, length, chunkHashes, mid, last, done, listener, priority);
+				left.fork();
+				byte[] rightHash = right.compute();
+				byte[] leftHash = left.join();
+				Digester digester = algorithm.createDigester();
+				digester.update(leftHash, 0, leftHash.length);
+				digester.update(rightHash, 0, rightHash.length);
+				return digester.digest();
+			} catch (IOException err) {
+				throw new RuntimeException(err);
+			}
+		}
+
+		private byte[] hashChunk(int index) throws IOException {
+			Digester digester = algorithm.createDigester();
+			SmartBufferPool pool = SmartBufferPool.getDefault();
+			ByteBuffer buffer = pool.acquireHeap(bufferSize);
+			try {
+				long pos = (long)index * chunkSize;
+				long end = Math.min(length, pos + chunkSize);
+				while (pos < end) {
+					if ((listener != null) && listener.isCanceled()) {
+						throw new CancellationException();
+					}
+					buffer.clear();
+					buffer.limit((int)Math.min(bufferSize, end - pos));
+					int len = in.read(buffer, pos);
+					if (len < 0) {
+						throw new IOException("Unexpected end of file");
+					}
+					SmartIOThrottle.charge(len, priority);
+					digester.update(buffer.array(), 0, len);
+					pos = pos + len;
+					long total = done.addAndGet(len);
+					if (listener != null) {
+						listener.progressUpdated(total, length);
+					}
+				}
+			} finally {
+				pool.release(buffer);
+			}
+			chunkHashes[index] = digester.digest();
+			return chunkHashes[index];
+		}
+	}
+
+}
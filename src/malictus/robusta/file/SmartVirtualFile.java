@@ -0,0 +1,336 @@
+package malictus.robusta.file;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import malictus.robusta.file.SegmentList.Segment;
+import malictus.robusta.progress.SmartProgressListener;
+import malictus.robusta.swing.*;
+
+/**
+ * A SmartVirtualFile is an editable view of a file, implemented as a piece table. The edited content is described by
+ * a list of spans over the original file and over an in-memory buffer that holds all inserted data; inserts, deletes and
+ * replaces only update that list, and nothing is written to disk until the file is materialized. Edits are visible right
+ * away through the RandomAccessFile-style read methods.
+ *
+ * An edit doesn't touch the file's data, so its cost doesn't depend on the size of the file, but it isn't constant
+ * either: the pieces are kept in an array, so each edit, and the first read after one, takes time proportional to the
+ * number of pieces, which grows by up to two with every edit. This is fast for the thousands of edits of an interactive
+ * session; a long run of scattered edits is better materialized now and then.
+ *
+ * The underlying file must not be changed by anything else while a SmartVirtualFile is open on it.
+ */
+public class SmartVirtualFile {
+
+	//size of each block of the append buffer
+	private static final int ADD_BLOCK_SIZE = 65536;
+
+	private final File file;
+	private final SegmentList pieces;
+	//open channels for reading the original file
+	private final Map<File, FileChannel> channels = new HashMap<File, FileChannel>();
+	//the append buffer; inserted data is only ever added to the end of it, so pieces never need to be updated
+	private byte[] addBlock = new byte[ADD_BLOCK_SIZE];
+	private int addBlockUsed = 0;
+	private long filePointer = 0;
+
+	/**
+	 * Open a virtual view of the specified file. If the file does not exist, the view starts out empty.
+	 *
+	 * @param file the file to edit
+	 */
+	public SmartVirtualFile(File file) {
+		this.file = file;
+		this.pieces = new SegmentList(file);
+	}
+
+	/**
+	 * Return the file that this view is over.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Return the length of the edited content.
+	 *
+	 * @return the length of the edited content, in bytes
+	 */
+	public long length() {
+		return pieces.length();
+	}
+
+	/**
+	 * Return the current read position.
+	 *
+	 * @return the offset from the beginning of the edited content, in bytes
+	 */
+	public long getFilePointer() {
+		return filePointer;
+	}
+
+	/**
+	 * Set the read position. The position may be set beyond the end of the content, in which case reads will return -1.
+	 *
+	 * @param pos the offset from the beginning of the edited content, in bytes
+	 * @throws IOException if pos is less than 0
+	 */
+	public void seek(long pos) throws IOException {
+		if (pos < 0) {
+			throw new IOException("Negative seek offset");
+		}
+		filePointer = pos;
+	}
+
+	/**
+	 * Read a single byte of the edited content.
+	 *
+	 * @return the byte read (0 to 255), or -1 if at the end of the content
+	 * @throws IOException if the underlying file can't be read
+	 */
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		if (read(b, 0, 1) != 1) {
+			return -1;
+		}
+		return b[0] & 0xff;
+	}
+
+	/**
+	 * Read up to b.length bytes of the edited content.
+	 *
+	 * @param b the array to read into
+	 * @return the number of bytes read, or -1 if at the end of the content
+	 * @throws IOException if the underlying file can't be read
+	 */
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	/**
+	 * Read up to len bytes of the edited content.
+	 *
+	 * @param b the array to read into
+	 * @param off the position in the array to start at
+	 * @param len the maximum number of bytes to read
+	 * @return the number of bytes read, or -1 if at the end of the content
+	 * @throws IOException if the underlying file can't be read
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = pieces.read(filePointer, b, off, len, channels);
+		if (count > 0) {
+			filePointer = filePointer + count;
+		}
+		return count;
+	}
+
+	/**
+	 * Read exactly b.length bytes of the edited content.
+	 *
+	 * @param b the array to read into
+	 * @throws EOFException if the end of the content is reached first
+	 * @throws IOException if the underlying file can't be read
+	 */
+	public void readFully(byte[] b) throws IOException {
+		int total = 0;
+		while (total < b.length) {
+			int count = read(b, total, b.length - total);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			total = total + count;
+		}
+	}
+
+	/**
+	 * Insert data from a byte array into the content.
+	 *
+	 * @param bytearray the array to insert
+	 * @param start the position in the content to insert at
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void insert(byte[] bytearray, long start) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		insert(bytearray, 0, bytearray.length, start);
+	}
+
+	/**
+	 * Insert data from a byte array into the content.
+	 *
+	 * @param bytearray the array to insert from
+	 * @param offset start position to begin reading in the byte array
+	 * @param len number of bytes to read in byte array
+	 * @param start the position in the content to insert at
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void insert(byte[] bytearray, int offset, int len, long start) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		if ((start < 0) || (start > pieces.length())) {
+			throw new IOException("Incorrect start value");
+		}
+		if ((offset < 0) || (len < 0) || (offset + len > bytearray.length)) {
+			throw new IOException("Incorrect byte array offset or length");
+		}
+		pieces.insert(start, addToBuffer(bytearray, offset, len));
+	}
+
+	/**
+	 * Delete part of the content.
+	 *
+	 * @param start start position for the data to be deleted
+	 * @param end end position for the data to be deleted
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void delete(long start, long end) throws IOException {
+		if ((start < 0) || (end < start) || (end > pieces.length())) {
+			throw new IOException("Incorrect start and end points");
+		}
+		pieces.remove(start, end);
+	}
+
+	/**
+	 * Replace part of the content with the specified byte array, which does not have to be the same size as the portion
+	 * being replaced.
+	 *
+	 * @param bytearray array of bytes to insert
+	 * @param start beginning byte position of data that will be replaced
+	 * @param end end byte position of data that will be replaced
+	 * @throws IOException if the parameters are incorrect
+	 */
+	public void replace(byte[] bytearray, long start, long end) throws IOException {
+		if (bytearray == null) {
+			throw new IOException("Byte array is null");
+		}
+		delete(start, end);
+		pieces.insert(start, addToBuffer(bytearray, 0, bytearray.length));
+	}
+
+	/**
+	 * Write the edited content over the underlying file.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public void materialize() throws IOException {
+		materialize((SmartProgressListener)null);
+	}
+
+	/**
+	 * Write the edited content over the underlying file, in a single sequential pass. The content is written next to the
+	 * file and then moved over it, so the file is left untouched if this fails or is canceled. The new file keeps the
+	 * permissions and owner of the old one, and if the file is a symbolic link, the file it points to is replaced and the
+	 * link kept. Afterwards, the view
+	 * represents the new file, with no pending edits.
+	 *
+	 * @param spd a SmartProgressWindow to track progress; may be null. If canceled, the file is left as it was and the edits are kept.
+	 * @throws IOException if the file can't be written
+	 */
+	public void materialize(SmartProgressWindow spd) throws IOException {
+		materialize((SmartProgressListener)spd);
+	}
+
+	/**
+	 * Write the edited content over the underlying file, in a single sequential pass.
+	 *
+	 * @param listener a SmartProgressListener to track progress; may be null. If canceled, the file is left as it was and the edits are kept.
+	 * @throws IOException if the file can't be written
+	 */
+	public void materialize(SmartProgressListener listener) throws IOException {
+		File target = SmartFile.replaceTarget(file);
+		File temp = File.createTempFile("robusta", ".edit", target.getAbsoluteFile().getParentFile());
+		boolean done = false;
+		try {
+			if (!writeTo(temp, listener)) {
+				return;
+			}
+			SegmentList.closeAll(channels);
+			if (target.exists()) {
+				SmartFile.copyAttributes(target, temp);
+			}
+			SmartFile.moveOver(temp, target);
+			done = true;
+		} finally {
+			if (!done) {
+				temp.delete();
+			}
+		}
+		pieces.reset(file);
+		addBlock = new byte[ADD_BLOCK_SIZE];
+		addBlockUsed = 0;
+	}
+
+	/**
+	 * Write the edited content to a different file, leaving the underlying file and the edits as they are.
+	 *
+	 * @param dest the file to write to; any existing file will be overwritten
+	 * @param spd a SmartProgressWindow to track progress; may be null
+	 * @throws IOException if the file can't be written
+	 */
+	public void materialize(File dest, SmartProgressWindow spd) throws IOException {
+		materialize(dest, (SmartProgressListener)spd);
+	}
+
+	/**
+	 * Write the edited content to a different file, leaving the underlying file and the edits as they are.
+	 *
+	 * @param dest the file to write to; any existing file will be overwritten
+	 * @param listener a SmartProgressListener to track progress; may be null
+	 * @throws IOException if the file can't be written
+	 */
+	public void materialize(File dest, SmartProgressListener listener) throws IOException {
+		//writing straight to another name for the underlying file would truncate it while the pieces still read from it
+		if (SmartFile.isSameFile(dest, file)) {
+			materialize(listener);
+			return;
+		}
+		writeTo(dest, listener);
+	}
+
+	/**
+	 * Close any open references to the underlying file. Edits that haven't been materialized are lost.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void close() throws IOException {
+		SegmentList.closeAll(channels);
+	}
+
+	private boolean writeTo(File dest, SmartProgressListener listener) throws IOException {
+		FileOutputStream fos = new FileOutputStream(dest);
+		try {
+			return pieces.writeTo(fos.getChannel(), channels, listener);
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Copy bytes into the append buffer, and return the pieces that refer to them.
+	 */
+	private List<Segment> addToBuffer(byte[] bytearray, int offset, int len) {
+		List<Segment> result = new ArrayList<Segment>();
+		while (len > 0) {
+			if (addBlockUsed == addBlock.length) {
+				//older blocks stay alive for as long as pieces refer to them
+				addBlock = new byte[Math.max(ADD_BLOCK_SIZE, len)];
+				addBlockUsed = 0;
+			}
+			int count = Math.min(len, addBlock.length - addBlockUsed);
+			System.arraycopy(bytearray, offset, addBlock, addBlockUsed, count);
+			result.add(new Segment(addBlock, addBlockUsed, count));
+			addBlockUsed = addBlockUsed + count;
+			offset = offset + count;
+			len = len - count;
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,114 @@
+package malictus.robusta.file;
+
+/**
+ * A streaming implementation of the 64-bit xxHash algorithm (XXH64), with a seed of 0. The digest is the hash value
+ * in big-endian order, which is the canonical form used by the reference implementation.
+ */
+class XXHash64 implements Digester {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private long v1 = PRIME1 + PRIME2;
+	private long v2 = PRIME2;
+	private long v3 = 0;
+	private long v4 = -PRIME1;
+	private long totalLength = 0;
+	//input that doesn't yet fill a 32-byte stripe
+	private final byte[] pending = new byte[32];
+	private int pendingLength = 0;
+
+	public void update(byte[] b, int off, int len) {
+		totalLength = totalLength + len;
+		if (pendingLength > 0) {
+			int count = Math.min(len, 32 - pendingLength);
+			System.arraycopy(b, off, pending, pendingLength, count);
+			pendingLength = pendingLength + count;
+			off = off + count;
+			len = len - count;
+			if (pendingLength < 32) {
+				return;
+			}
+			stripe(pending, 0);
+			pendingLength = 0;
+		}
+		while (len >= 32) {
+			stripe(b, off);
+			off = off + 32;
+			len = len - 32;
+		}
+		System.arraycopy(b, off, pending, 0, len);
+		pendingLength = len;
+	}
+
+	public byte[] digest() {
+		long h;
+		if (totalLength >= 32) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = PRIME5;
+		}
+		h = h + totalLength;
+		int i = 0;
+		while (i + 8 <= pendingLength) {
+			h = h ^ round(0, readLong(pending, i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+			i = i + 8;
+		}
+		if (i + 4 <= pendingLength) {
+			h = h ^ ((readInt(pending, i) & 0xFFFFFFFFL) * PRIME1);
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i = i + 4;
+		}
+		while (i < pendingLength) {
+			h = h ^ ((pending[i] & 0xFF) * PRIME5);
+			h = Long.rotateLeft(h, 11) * PRIME1;
+			i++;
+		}
+		h = h ^ (h >>> 33);
+		h = h * PRIME2;
+		h = h ^ (h >>> 29);
+		h = h * PRIME3;
+		h = h ^ (h >>> 32);
+		byte[] out = new byte[8];
+		for (int j = 0; j < 8; j++) {
+			out[j] = (byte)(h >>> (56 - (j * 8)));
+		}
+		return out;
+	}
+
+	private void stripe(byte[] b, int off) {
+		v1 = round(v1, readLong(b, off));
+		v2 = round(v2, readLong(b, off + 8));
+		v3 = round(v3, readLong(b, off + 16));
+		v4 = round(v4, readLong(b, off + 24));
+	}
+
+	private static long round(long acc, long input) {
+		acc = acc + (input * PRIME2);
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc = acc ^ round(0, val);
+		return acc * PRIME1 + PRIME4;
+	}
+
+	private static long readLong(byte[] b, int off) {
+		return (b[off] & 0xFFL) | ((b[off + 1] & 0xFFL) << 8) | ((b[off + 2] & 0xFFL) << 16) | ((b[off + 3] & 0xFFL) << 24)
+				| ((b[off + 4] & 0xFFL) << 32) | ((b[off + 5] & 0xFFL) << 40) | ((b[off + 6] & 0xFFL) << 48) | ((b[off + 7] & 0xFFL) << 56);
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+	}
+
+}
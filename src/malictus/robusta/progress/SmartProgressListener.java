@@ -0,0 +1,43 @@
+package malictus.robusta.progress;
+
+/**
+ * A listener interface for tracking the progress of long-running file operations, and for canceling them. Unlike
+ * SmartProgressWindow, this doesn't depend on Swing, so it can be used in headless applications. SmartProgressWindow
+ * implements this interface, so a window can be used wherever a listener is expected; the interface has a package of its
+ * own so that the swing package doesn't depend on the file package. Because a window is a listener, passing a literal
+ * null to a method that has both kinds of overload picks the SmartProgressWindow one, which does the same thing.
+ *
+ * Methods may be called from whichever thread is doing the work, which is not necessarily the thread that started the
+ * operation.
+ */
+public interface SmartProgressListener {
+
+	/**
+	 * Invoked when an operation (or a separate stage of an operation) begins.
+	 *
+	 * @param total the total amount of work, usually in bytes; 0 if unknown
+	 */
+	public void progressStarted(long total);
+
+	/**
+	 * Invoked periodically as an operation proceeds.
+	 *
+	 * @param completed the amount of work completed so far, usually in bytes
+	 * @param total the total amount of work, usually in bytes; 0 if unknown
+	 */
+	public void progressUpdated(long completed, long total);
+
+	/**
+	 * Polled periodically by operations that can be canceled. Operations that can't safely be stopped partway through
+	 * (such as inserting into or deleting from a file) never call this.
+	 *
+	 * @return true if the operation should stop as soon as possible
+	 */
+	public boolean isCanceled();
+
+	/**
+	 * Invoked when an operation stops early because isCanceled() returned true.
+	 */
+	public void progressCanceled();
+
+}
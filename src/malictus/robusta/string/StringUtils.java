@@ -7,6 +7,8 @@ import java.util.*;
  */
 public class StringUtils {
 
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
 	private StringUtils() {}
 
 	/**
@@ -41,6 +43,21 @@ public class StringUtils {
 		return x;
 	}
 
+	/**
+	 * Convert an array of bytes into a string of uppercase hex digits, two per byte, with no header or separators.
+	 *
+	 * @param bytes the bytes
+	 * @return the hex string
+	 */
+	public static String toHexString(byte[] bytes) {
+		char[] out = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			out[i * 2] = HEX_DIGITS[(bytes[i] >>> 4) & 0x0F];
+			out[(i * 2) + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+		}
+		return new String(out);
+	}
+
 	/**
 	 * Given a string, return the string's file extension, defined as everything in the
 	 * string after the last period (.) If no periods are present in string, an empty
@@ -2,6 +2,7 @@ package malictus.robusta.swing;
 
 import javax.swing.*;
 import java.util.*;
+import malictus.robusta.progress.SmartProgressListener;
 
 /**
  * SmartProgressWindow
@@ -11,9 +12,13 @@ import java.util.*;
  * the task, and sets the dialog to visible. To monitor progress through the task, modify the status string or the progressCounter. When the task is finished,
  * set finished variable to true. If you use the 'cancel' button, you'll need to manually check for the canceled variable to be set to true while the task
  * is working in order to truly cancel by calling wasCanceled().
+ * 
+ * A SmartProgressWindow is also a SmartProgressListener, so it can be passed to any file operation that reports progress.
+ * Progress is shown as a percentage, and the cancel button cancels the operation. The window is told that the task is
+ * finished if it is canceled, but not when the task completes normally.
  *
  */
-public abstract class SmartProgressWindow extends JDialog {
+public abstract class SmartProgressWindow extends JDialog implements SmartProgressListener {
 
 	private JPanel jContentPane = null;
 	private JLabel lblProg = null;
@@ -142,6 +147,45 @@ public abstract class SmartProgressWindow extends JDialog {
 		finished = true;
 	}
 
+	/**
+	 * Reset the progress bar to show percentages, starting at zero
+	 * 
+	 * @param total the total amount of work; not used
+	 */
+	public void progressStarted(long total) {
+		setProgressCounterMax(100);
+		setProgressCounter(0);
+	}
+
+	/**
+	 * Show progress as a percentage of the total
+	 * 
+	 * @param completed the amount of work completed so far
+	 * @param total the total amount of work; 0 if unknown, in which case the progress bar is left as it is
+	 */
+	public void progressUpdated(long completed, long total) {
+		if (total > 0) {
+			float x = ((float)completed / (float)total) * 100f;
+			setProgressCounter((int)x);
+		}
+	}
+
+	/**
+	 * Same as wasCanceled()
+	 * 
+	 * @return true if the progress was canceled, false otherwise
+	 */
+	public boolean isCanceled() {
+		return wasCanceled();
+	}
+
+	/**
+	 * Close the window once an operation has stopped because it was canceled
+	 */
+	public void progressCanceled() {
+		taskFinished();
+	}
+
 	/**
 	 * The SmartProgressWindow uses this task to periodically update the status text and progress counter, 
 	 * and to close the window at the appropriate time.